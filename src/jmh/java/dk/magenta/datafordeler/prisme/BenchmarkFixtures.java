@@ -0,0 +1,206 @@
+package dk.magenta.datafordeler.prisme;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import dk.magenta.datafordeler.core.Application;
+import dk.magenta.datafordeler.core.database.QueryManager;
+import dk.magenta.datafordeler.core.database.SessionManager;
+import dk.magenta.datafordeler.core.io.ImportMetadata;
+import dk.magenta.datafordeler.core.util.InputStreamReader;
+import dk.magenta.datafordeler.cpr.data.person.PersonEntity;
+import dk.magenta.datafordeler.cpr.data.person.PersonEntityManager;
+import dk.magenta.datafordeler.cpr.data.person.PersonRecordQuery;
+import dk.magenta.datafordeler.cvr.CvrPlugin;
+import dk.magenta.datafordeler.cvr.query.CompanyRecordQuery;
+import dk.magenta.datafordeler.cvr.records.CompanyRecord;
+import dk.magenta.datafordeler.geo.GeoLookupService;
+import org.hibernate.Session;
+import org.hibernate.Transaction;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Collections;
+import java.util.List;
+import java.util.StringJoiner;
+
+/**
+ * Data for the wrapper benchmarks. Starts the application on the test database, loads the geo test data,
+ * and builds synthetic persons and companies from the test resources, which are parsed by the real entity managers
+ * so the benchmarks wrap the same object graphs as production.
+ * Entities are read through a session which is kept open until {@link #close()}, so lazy collections can be loaded.
+ */
+public class BenchmarkFixtures extends TestBase {
+
+    private static final DateTimeFormatter CPR_TIMESTAMP = DateTimeFormatter.ofPattern("yyyyMMddHHmm");
+
+    // Synthetic address history is placed before the earliest address in person.txt
+    private static final LocalDateTime HISTORY_START = LocalDateTime.of(1960, 1, 1, 12, 0);
+
+    @Autowired
+    private SessionManager sessionManager;
+
+    @Autowired
+    private PersonEntityManager personEntityManager;
+
+    @Autowired
+    private CvrPlugin cvrPlugin;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Autowired
+    private PersonOutputWrapperPrisme personOutputWrapper;
+
+    @Autowired
+    private CvrOutputWrapperPrisme cvrOutputWrapper;
+
+    private ConfigurableApplicationContext context;
+
+    private Session session;
+
+    public static BenchmarkFixtures start() throws Exception {
+        ConfigurableApplicationContext context = new SpringApplicationBuilder(Application.class)
+                .properties("server.port=0")
+                .run();
+        BenchmarkFixtures fixtures = new BenchmarkFixtures();
+        context.getAutowireCapableBeanFactory().autowireBean(fixtures);
+        fixtures.context = context;
+        fixtures.loadAllGeoAdress(fixtures.sessionManager);
+        fixtures.session = fixtures.sessionManager.getSessionFactory().openSession();
+        return fixtures;
+    }
+
+    public void close() {
+        if (this.session != null) {
+            this.session.close();
+        }
+        this.context.close();
+    }
+
+    public ObjectMapper getObjectMapper() {
+        return this.objectMapper;
+    }
+
+    public PersonOutputWrapperPrisme getPersonOutputWrapper() {
+        return this.personOutputWrapper;
+    }
+
+    public CvrOutputWrapperPrisme getCvrOutputWrapper() {
+        return this.cvrOutputWrapper;
+    }
+
+    /**
+     * A lookup service on the real geo test data, to record a {@link StubGeoLookupService} from
+     */
+    public GeoLookupService getGeoLookupService() {
+        return new GeoLookupService(this.session);
+    }
+
+    /**
+     * Load the person in person.txt under the given CPR number, with historyLength extra historic addresses
+     * prepended to its address history. The records are read without bitemporal filters, so the wrapper
+     * has to pick the current ones from the full history.
+     */
+    public PersonEntity loadPerson(String cprNumber, int historyLength) throws Exception {
+        String testData = InputStreamReader.readInputStream(BenchmarkFixtures.class.getResourceAsStream("/person.txt"));
+        StringJoiner personData = new StringJoiner("\n");
+        for (String line : testData.split("\n")) {
+            if (line.length() < 13) {
+                continue;
+            }
+            line = line.substring(0, 3) + cprNumber + line.substring(13);
+            personData.add(line);
+            if (line.startsWith("026")) {
+                for (int i = 0; i < historyLength; i++) {
+                    personData.add(historicAddress(line, i));
+                }
+            }
+        }
+
+        ImportMetadata importMetadata = new ImportMetadata();
+        Session importSession = this.sessionManager.getSessionFactory().openSession();
+        importMetadata.setSession(importSession);
+        Transaction transaction = importSession.beginTransaction();
+        importMetadata.setTransactionInProgress(true);
+        try (InputStream data = new ByteArrayInputStream(personData.toString().getBytes(StandardCharsets.UTF_8))) {
+            this.personEntityManager.parseData(data, importMetadata);
+            transaction.commit();
+        } finally {
+            importMetadata.setTransactionInProgress(false);
+            importSession.close();
+        }
+
+        PersonRecordQuery query = new PersonRecordQuery();
+        query.setPersonnummer(cprNumber);
+        List<PersonEntity> entities = QueryManager.getAllEntities(this.session, query, PersonEntity.class);
+        if (entities.isEmpty()) {
+            throw new IllegalStateException("Person " + cprNumber + " was not loaded");
+        }
+        PersonEntity person = entities.get(0);
+        this.personOutputWrapper.loadRecords(person);
+        return person;
+    }
+
+    /**
+     * Copy a historic address line (type 026), moving it to month number index of the synthetic history
+     */
+    private static String historicAddress(String line, int index) {
+        LocalDateTime movedIn = HISTORY_START.plusMonths(index);
+        String movedOut = movedIn.plusMonths(1).format(CPR_TIMESTAMP);
+        StringBuilder history = new StringBuilder(line);
+        history.replace(18, 30, movedOut);
+        history.replace(38, 42, String.format("%4d", index % 99 + 1));
+        history.replace(98, 110, movedIn.format(CPR_TIMESTAMP));
+        history.replace(111, 123, movedOut);
+        return history.toString();
+    }
+
+    /**
+     * Load the company in company_in.json under the given CVR number, with its participant relations
+     * repeated until there are participantCount of them, each with its own participant
+     */
+    public CompanyRecord loadCompany(int cvrNumber, int participantCount) throws Exception {
+        JsonNode root = this.objectMapper.readTree(BenchmarkFixtures.class.getResourceAsStream("/company_in.json"));
+        ObjectNode company = (ObjectNode) root.get("hits").get("hits").get(0).get("_source").get("Vrvirksomhed");
+        company.put("cvrNummer", cvrNumber);
+        company.put("enhedsNummer", 4200000000L + cvrNumber);
+
+        ArrayNode relations = (ArrayNode) company.get("deltagerRelation");
+        ArrayNode syntheticRelations = this.objectMapper.createArrayNode();
+        for (int i = 0; i < participantCount; i++) {
+            ObjectNode relation = relations.get(i % relations.size()).deepCopy();
+            JsonNode participant = relation.get("deltager");
+            if (participant instanceof ObjectNode) {
+                ((ObjectNode) participant).put("enhedsNummer", 4100000000L + i);
+            }
+            syntheticRelations.add(relation);
+        }
+        company.set("deltagerRelation", syntheticRelations);
+
+        dk.magenta.datafordeler.cvr.entitymanager.CompanyEntityManager companyEntityManager = (dk.magenta.datafordeler.cvr.entitymanager.CompanyEntityManager) this.cvrPlugin.getRegisterManager().getEntityManager(CompanyRecord.schema);
+        Session importSession = this.sessionManager.getSessionFactory().openSession();
+        try (InputStream data = new ByteArrayInputStream(this.objectMapper.writeValueAsBytes(company))) {
+            ImportMetadata importMetadata = new ImportMetadata();
+            importMetadata.setSession(importSession);
+            companyEntityManager.parseData(data, importMetadata);
+        } finally {
+            importSession.close();
+        }
+
+        CompanyRecordQuery query = new CompanyRecordQuery();
+        query.setCvrNumre(Collections.singletonList(Integer.toString(cvrNumber)));
+        List<CompanyRecord> records = QueryManager.getAllEntities(this.session, query, CompanyRecord.class);
+        if (records.isEmpty()) {
+            throw new IllegalStateException("Company " + cvrNumber + " was not loaded");
+        }
+        return records.get(0);
+    }
+}
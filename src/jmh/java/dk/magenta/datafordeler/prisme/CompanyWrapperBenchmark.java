@@ -0,0 +1,61 @@
+package dk.magenta.datafordeler.prisme;
+
+import dk.magenta.datafordeler.cvr.records.CompanyRecord;
+import dk.magenta.datafordeler.cvr.records.ParticipantRecord;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of {@link CvrOutputWrapperPrisme}, for companies with different numbers of participants.
+ * Geo lookups are answered by a {@link StubGeoLookupService}, and participant details are left out, as they
+ * would otherwise be looked up in CVR, so only the wrapper itself is measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CompanyWrapperBenchmark {
+
+    @Param({"1", "12", "500"})
+    public int participantCount;
+
+    private BenchmarkFixtures fixtures;
+
+    private CvrOutputWrapperPrisme wrapper;
+
+    private StubGeoLookupService lookupService;
+
+    private CompanyRecord company;
+
+    private final Map<Long, ParticipantRecord> participants = Collections.emptyMap();
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        this.fixtures = BenchmarkFixtures.start();
+        this.wrapper = this.fixtures.getCvrOutputWrapper();
+        this.company = this.fixtures.loadCompany(25052943, this.participantCount);
+        this.lookupService = new StubGeoLookupService(this.fixtures.getGeoLookupService());
+        this.wrapper.wrapRecord(this.company, this.lookupService, true, this.participants);
+        this.lookupService.detach();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        this.fixtures.close();
+    }
+
+    @Benchmark
+    public Object wrapRecord() {
+        return this.wrapper.wrapRecord(this.company, this.lookupService, true, this.participants);
+    }
+
+    @Benchmark
+    public Object getParticipants() {
+        return this.wrapper.getParticipants(this.company, this.participants);
+    }
+}
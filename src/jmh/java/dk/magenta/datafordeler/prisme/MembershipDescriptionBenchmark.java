@@ -0,0 +1,39 @@
+package dk.magenta.datafordeler.prisme;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of {@link MembershipDescription#isOwner()}, for a membership matching an owner template exactly,
+ * one matching a template through its wildcard, and one matching none, which is held up against every template
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MembershipDescriptionBenchmark {
+
+    private final MembershipDescription director = new MembershipDescription("LEDELSESORGAN", "Direktion", "adm. dir");
+
+    private final MembershipDescription realOwner = new MembershipDescription("REGISTER", "Reelle ejere", "Reel ejer");
+
+    private final MembershipDescription boardMember = new MembershipDescription("LEDELSESORGAN", "Bestyrelse", "BESTYRELSESMEDLEM");
+
+    @Benchmark
+    public boolean isOwnerDirector() {
+        return this.director.isOwner();
+    }
+
+    @Benchmark
+    public boolean isOwnerRealOwner() {
+        return this.realOwner.isOwner();
+    }
+
+    @Benchmark
+    public boolean isOwnerNoMatch() {
+        return this.boardMember.isOwner();
+    }
+}
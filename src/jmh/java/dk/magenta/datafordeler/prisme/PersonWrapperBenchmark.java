@@ -0,0 +1,67 @@
+package dk.magenta.datafordeler.prisme;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import dk.magenta.datafordeler.cpr.data.person.PersonEntity;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of {@link PersonOutputWrapperPrisme}, for persons with address histories of different lengths.
+ * Geo lookups are answered by a {@link StubGeoLookupService}, so only the wrapper itself is measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PersonWrapperBenchmark {
+
+    @Param({"0", "20", "200"})
+    public int historyLength;
+
+    private BenchmarkFixtures fixtures;
+
+    private PersonOutputWrapperPrisme wrapper;
+
+    private StubGeoLookupService lookupService;
+
+    private PersonEntity person;
+
+    private JsonGenerator generator;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        this.fixtures = BenchmarkFixtures.start();
+        this.wrapper = this.fixtures.getPersonOutputWrapper();
+        this.person = this.fixtures.loadPerson("0101001234", this.historyLength);
+        this.lookupService = new StubGeoLookupService(this.fixtures.getGeoLookupService());
+        this.wrapper.wrapRecordResult(this.person, null, this.lookupService);
+        this.lookupService.detach();
+        this.generator = this.fixtures.getObjectMapper().getFactory().createGenerator(OutputStream.nullOutputStream());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        this.fixtures.close();
+    }
+
+    @Benchmark
+    public Object wrapRecordResult() {
+        return this.wrapper.wrapRecordResult(this.person, null, this.lookupService);
+    }
+
+    @Benchmark
+    public void writeRecordResult() throws IOException {
+        this.wrapper.writeRecordResult(this.person, this.lookupService, this.generator);
+        this.generator.flush();
+    }
+
+    @Benchmark
+    public String getAddressFormatted() {
+        return this.wrapper.getAddressFormatted("Testvej", "18", null, "b", null, "1", "tv", "3197");
+    }
+}
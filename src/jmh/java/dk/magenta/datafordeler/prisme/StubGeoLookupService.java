@@ -0,0 +1,64 @@
+package dk.magenta.datafordeler.prisme;
+
+import dk.magenta.datafordeler.geo.GeoLookupDTO;
+import dk.magenta.datafordeler.geo.GeoLookupService;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * GeoLookupService for benchmarks, which answers from memory so no database time is measured.
+ * Answers are recorded from a real lookup service while the benchmark is set up, after which
+ * {@link #detach()} cuts the stub loose from it, and a lookup that wasn't recorded fails.
+ */
+public class StubGeoLookupService extends GeoLookupService {
+
+    private GeoLookupService source;
+
+    private final HashMap<List<Object>, GeoLookupDTO> lookups = new HashMap<>();
+
+    private final HashMap<Integer, String> postalCodeDistricts = new HashMap<>();
+
+    public StubGeoLookupService(GeoLookupService source) {
+        super(null);
+        this.source = source;
+    }
+
+    public void detach() {
+        this.source = null;
+    }
+
+    @Override
+    public GeoLookupDTO doLookup(int municipalityCode, int roadCode) {
+        return this.get(this.lookups, List.of(municipalityCode, roadCode),
+                () -> this.source.doLookup(municipalityCode, roadCode)
+        );
+    }
+
+    @Override
+    public GeoLookupDTO doLookup(int municipalityCode, int roadCode, String houseNumber, String buildingNumber) {
+        return this.get(this.lookups, List.of(municipalityCode, roadCode, String.valueOf(houseNumber), String.valueOf(buildingNumber)),
+                () -> this.source.doLookup(municipalityCode, roadCode, houseNumber, buildingNumber)
+        );
+    }
+
+    @Override
+    public String getPostalCodeDistrict(int postalCode) {
+        return this.get(this.postalCodeDistricts, postalCode,
+                () -> this.source.getPostalCodeDistrict(postalCode)
+        );
+    }
+
+    private <K, V> V get(HashMap<K, V> answers, K key, Supplier<V> loader) {
+        if (answers.containsKey(key)) {
+            return answers.get(key);
+        }
+        if (this.source == null) {
+            throw new IllegalStateException("No recorded geo lookup for " + key);
+        }
+        V value = loader.get();
+        answers.put(key, value);
+        return value;
+    }
+}
@@ -12,6 +12,7 @@ import org.springframework.web.bind.annotation.RestController;
 import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 
 @RestController
@@ -30,8 +31,8 @@ public class AliasService {
     }
 
     @RequestMapping(method = RequestMethod.POST, path = "/cvr", produces = {MediaType.APPLICATION_JSON_VALUE})
-    public StreamingResponseBody getCvrBulk(HttpServletRequest request) throws HttpNotFoundException, InvalidTokenException, IOException, InvalidClientInputException, AccessDeniedException, AccessRequiredException, InvalidCertificateException {
-        return this.cvrService.getBulk(request);
+    public StreamingResponseBody getCvrBulk(HttpServletRequest request, HttpServletResponse response) throws HttpNotFoundException, InvalidTokenException, IOException, InvalidClientInputException, AccessDeniedException, AccessRequiredException, InvalidCertificateException {
+        return this.cvrService.getBulk(request, response);
     }
 
     @RequestMapping(method = RequestMethod.GET, path = "/cpr/{cprNummer}", produces = {MediaType.APPLICATION_JSON_VALUE})
@@ -41,14 +42,14 @@ public class AliasService {
     }
 
     @RequestMapping(method = RequestMethod.POST, path = "/", produces = {MediaType.APPLICATION_JSON_VALUE})
-    public StreamingResponseBody getCprBulkDeprecate(HttpServletRequest request)
+    public StreamingResponseBody getCprBulkDeprecate(HttpServletRequest request, HttpServletResponse response)
             throws AccessDeniedException, AccessRequiredException, InvalidTokenException, InvalidClientInputException, IOException, HttpNotFoundException, InvalidCertificateException {
-        return this.cprService.getBulk(request);
+        return this.cprService.getBulk(request, response);
     }
 
     @RequestMapping(method = RequestMethod.POST, path = "/cpr", produces = {MediaType.APPLICATION_JSON_VALUE})
-    public StreamingResponseBody getCprBulk(HttpServletRequest request)
+    public StreamingResponseBody getCprBulk(HttpServletRequest request, HttpServletResponse response)
             throws AccessDeniedException, AccessRequiredException, InvalidTokenException, InvalidClientInputException, IOException, HttpNotFoundException, InvalidCertificateException {
-        return this.cprService.getBulk(request);
+        return this.cprService.getBulk(request, response);
     }
 }
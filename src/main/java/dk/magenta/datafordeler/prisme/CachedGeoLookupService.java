@@ -0,0 +1,40 @@
+package dk.magenta.datafordeler.prisme;
+
+import dk.magenta.datafordeler.geo.GeoLookupDTO;
+import dk.magenta.datafordeler.geo.GeoLookupService;
+import org.hibernate.Session;
+
+/**
+ * GeoLookupService that answers lookups from the shared {@link GeoLookupCache}, falling back to the database
+ * through the given session on a miss. The session is still available through getSession() for other lookups
+ */
+public class CachedGeoLookupService extends GeoLookupService {
+
+    private final GeoLookupCache cache;
+
+    public CachedGeoLookupService(Session session, GeoLookupCache cache) {
+        super(session);
+        this.cache = cache;
+    }
+
+    @Override
+    public GeoLookupDTO doLookup(int municipalityCode, int roadCode) {
+        return this.cache.getRoadLookup(municipalityCode, roadCode,
+                () -> super.doLookup(municipalityCode, roadCode)
+        );
+    }
+
+    @Override
+    public GeoLookupDTO doLookup(int municipalityCode, int roadCode, String houseNumber, String buildingNumber) {
+        return this.cache.getAddressLookup(municipalityCode, roadCode, houseNumber, buildingNumber,
+                () -> super.doLookup(municipalityCode, roadCode, houseNumber, buildingNumber)
+        );
+    }
+
+    @Override
+    public String getPostalCodeDistrict(int postalCode) {
+        return this.cache.getPostalCodeDistrict(postalCode,
+                () -> super.getPostalCodeDistrict(postalCode)
+        );
+    }
+}
@@ -0,0 +1,98 @@
+package dk.magenta.datafordeler.prisme;
+
+import dk.magenta.datafordeler.cvr.records.*;
+
+import java.util.Collection;
+import java.util.Comparator;
+
+/**
+ * The last updated record of each category read by {@link CvrOutputWrapperPrisme}, selected once per company
+ */
+public class CompanyCurrentView {
+
+    /**
+     * Order of records by validFrom, then lastUpdated, nulls first
+     */
+    private static final Comparator<CvrBitemporalRecord> lastUpdatedOrder = Comparator.comparing(
+            CvrBitemporalRecord::getValidFrom, Comparator.nullsFirst(Comparator.naturalOrder())
+    ).thenComparing(
+            CvrBitemporalRecord::getLastUpdated, Comparator.nullsFirst(Comparator.naturalOrder())
+    );
+
+    /**
+     * Find the last updated record in a single pass, skipping nulls. Of equal records, the last one wins
+     */
+    public static <T extends CvrBitemporalRecord> T findLastUpdated(Collection<T> records) {
+        T last = null;
+        for (T record : records) {
+            if (record != null && (last == null || lastUpdatedOrder.compare(record, last) >= 0)) {
+                last = record;
+            }
+        }
+        return last;
+    }
+
+    private final SecNameRecord name;
+    private final CompanyIndustryRecord primaryIndustry;
+    private final CompanyStatusRecord status;
+    private final AddressRecord address;
+    private final ContactRecord emailAddress;
+    private final ContactRecord phoneNumber;
+    private final ContactRecord faxNumber;
+
+    public CompanyCurrentView(CompanyRecord record) {
+        this.name = findLastUpdated(record.getNames());
+        this.primaryIndustry = findLastUpdated(record.getPrimaryIndustry());
+
+        // The status from metadata competes with the status records, and wins ties
+        CompanyStatusRecord status = findLastUpdated(record.getCompanyStatus());
+        if (record.getMetadata() != null) {
+            CompanyStatusRecord metaStatusRecord = record.getMetadata().getCompanyStatusRecord(record);
+            if (metaStatusRecord != null && (status == null || lastUpdatedOrder.compare(metaStatusRecord, status) >= 0)) {
+                status = metaStatusRecord;
+            }
+        }
+        this.status = status;
+
+        AddressRecord address = findLastUpdated(record.getPostalAddress());
+        if (address == null) {
+            address = findLastUpdated(record.getLocationAddress());
+        }
+        this.address = address;
+
+        this.emailAddress = findLastUpdated(record.getEmailAddress());
+        this.phoneNumber = findLastUpdated(record.getPhoneNumber());
+        this.faxNumber = findLastUpdated(record.getFaxNumber());
+    }
+
+    public SecNameRecord getName() {
+        return this.name;
+    }
+
+    public CompanyIndustryRecord getPrimaryIndustry() {
+        return this.primaryIndustry;
+    }
+
+    public CompanyStatusRecord getStatus() {
+        return this.status;
+    }
+
+    /**
+     * The postal address, or the location address if there is no postal address
+     */
+    public AddressRecord getAddress() {
+        return this.address;
+    }
+
+    public ContactRecord getEmailAddress() {
+        return this.emailAddress;
+    }
+
+    public ContactRecord getPhoneNumber() {
+        return this.phoneNumber;
+    }
+
+    public ContactRecord getFaxNumber() {
+        return this.faxNumber;
+    }
+}
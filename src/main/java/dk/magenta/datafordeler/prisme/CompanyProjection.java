@@ -0,0 +1,216 @@
+package dk.magenta.datafordeler.prisme;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.util.ByteArrayBuilder;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import dk.magenta.datafordeler.core.database.QueryManager;
+import dk.magenta.datafordeler.core.database.SessionManager;
+import dk.magenta.datafordeler.cvr.query.CompanyRecordQuery;
+import dk.magenta.datafordeler.cvr.records.CompanyRecord;
+import dk.magenta.datafordeler.geo.GeoLookupService;
+import dk.magenta.datafordeler.ger.data.company.CompanyEntity;
+import dk.magenta.datafordeler.ger.data.company.CompanyQuery;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.hibernate.Session;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Optional projection of the Prisme company output, holding each CVR and GER company already wrapped and serialized,
+ * without participant details. Companies are keyed by CVR or GER number without leading zeros.
+ * Like {@link PersonProjection}, it is built on startup, refreshed with the companies imported since the last refresh,
+ * and rebuilt completely at a longer interval
+ */
+@Component
+public class CompanyProjection {
+
+    private Logger log = LogManager.getLogger(CompanyProjection.class.getCanonicalName());
+
+    /**
+     * Refreshes look back this much further than the start of the previous refresh,
+     * to catch imports that were still running when it queried
+     */
+    private static final Duration REFRESH_OVERLAP = Duration.ofMinutes(5);
+
+    @Autowired
+    private SessionManager sessionManager;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Autowired
+    private CvrOutputWrapperPrisme cvrWrapper;
+
+    @Autowired
+    private GeoLookupCache geoLookupCache;
+
+    @Value("${dafo.prisme.cvr.projection.enabled:false}")
+    private boolean enabled;
+
+    @Value("${dafo.prisme.cvr.projection.refreshIntervalSeconds:300}")
+    private long refreshIntervalSeconds;
+
+    @Value("${dafo.prisme.cvr.projection.rebuildIntervalHours:24}")
+    private long rebuildIntervalHours;
+
+    private static class Companies {
+        private final ConcurrentHashMap<String, byte[]> cvr = new ConcurrentHashMap<>();
+        private final ConcurrentHashMap<String, byte[]> ger = new ConcurrentHashMap<>();
+    }
+
+    // Null until the first build has finished
+    private volatile Companies companies;
+
+    private OffsetDateTime lastRefresh;
+
+    private OffsetDateTime lastRebuild;
+
+    private ScheduledExecutorService executor;
+
+    @PostConstruct
+    public void init() {
+        if (this.enabled) {
+            this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "prisme-company-projection");
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.executor.scheduleWithFixedDelay(this::refresh, 0, Math.max(1, this.refreshIntervalSeconds), TimeUnit.SECONDS);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (this.executor != null) {
+            this.executor.shutdownNow();
+        }
+    }
+
+    public boolean isReady() {
+        return this.companies != null;
+    }
+
+    /**
+     * Get the serialized output for a company found in CVR
+     * @return The output as UTF-8 JSON, or null if the company is not in the projection
+     */
+    public byte[] getCvr(String cvrNumber) {
+        Companies companies = this.companies;
+        return companies != null ? companies.cvr.get(cvrNumber) : null;
+    }
+
+    /**
+     * Get the serialized output for a company found in GER
+     * @return The output as UTF-8 JSON, or null if the company is not in the projection
+     */
+    public byte[] getGer(String gerNumber) {
+        Companies companies = this.companies;
+        return companies != null ? companies.ger.get(gerNumber) : null;
+    }
+
+    /**
+     * Get the serialized output for a company, from CVR if it is there, otherwise from GER
+     */
+    public byte[] get(String cvrNumber) {
+        byte[] output = this.getCvr(cvrNumber);
+        return output != null ? output : this.getGer(cvrNumber);
+    }
+
+    /**
+     * Update the projection with companies imported since the last refresh, or rebuild it if it is due
+     */
+    public void refresh() {
+        try {
+            OffsetDateTime start = OffsetDateTime.now();
+            if (this.companies == null || this.lastRebuild.plusHours(this.rebuildIntervalHours).isBefore(start)) {
+                Companies rebuilt = new Companies();
+                int cvrCount = this.loadCvr(null, rebuilt.cvr);
+                int gerCount = this.loadGer(null, rebuilt.ger);
+                this.companies = rebuilt;
+                this.lastRebuild = start;
+                log.info("Built company projection with " + cvrCount + " CVR and " + gerCount + " GER companies in " + Duration.between(start, OffsetDateTime.now()).toMillis() + " ms");
+            } else {
+                OffsetDateTime updatedSince = this.lastRefresh.minus(REFRESH_OVERLAP);
+                int cvrCount = this.loadCvr(updatedSince, this.companies.cvr);
+                int gerCount = this.loadGer(updatedSince, this.companies.ger);
+                log.debug("Refreshed " + cvrCount + " CVR and " + gerCount + " GER companies in company projection");
+            }
+            this.lastRefresh = start;
+        } catch (Exception e) {
+            log.error("Failed refreshing company projection", e);
+        }
+    }
+
+    /**
+     * Wrap and serialize the CVR companies updated after updatedSince (all companies if null) into target
+     */
+    private int loadCvr(OffsetDateTime updatedSince, Map<String, byte[]> target) throws IOException {
+        CompanyRecordQuery query = new CompanyRecordQuery();
+        query.setPageSize(Integer.MAX_VALUE);
+        query.setRecordAfter(updatedSince);
+
+        int count = 0;
+        try (
+                Session entitySession = sessionManager.getSessionFactory().openSession();
+                Session lookupSession = sessionManager.getSessionFactory().openSession()
+        ) {
+            GeoLookupService lookupService = geoLookupCache.getLookupService(lookupSession);
+            ByteArrayBuilder buffer = new ByteArrayBuilder();
+            Iterator<CompanyRecord> iterator = QueryManager.getAllEntitiesAsStream(entitySession, query, CompanyRecord.class).iterator();
+            while (iterator.hasNext()) {
+                CompanyRecord record = iterator.next();
+                try (JsonGenerator generator = objectMapper.getFactory().createGenerator(buffer)) {
+                    cvrWrapper.writeRecord(record, lookupService, false, Collections.emptyMap(), generator);
+                }
+                target.put(Integer.toString(record.getCvrNumber()), buffer.toByteArray());
+                buffer.reset();
+                entitySession.evict(record);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Wrap and serialize the GER companies updated after updatedSince (all companies if null) into target
+     */
+    private int loadGer(OffsetDateTime updatedSince, Map<String, byte[]> target) throws IOException {
+        CompanyQuery query = new CompanyQuery();
+        query.setPageSize(Integer.MAX_VALUE);
+        query.setRecordAfter(updatedSince);
+
+        int count = 0;
+        try (
+                Session entitySession = sessionManager.getSessionFactory().openSession();
+                Session lookupSession = sessionManager.getSessionFactory().openSession()
+        ) {
+            GeoLookupService lookupService = geoLookupCache.getLookupService(lookupSession);
+            ByteArrayBuilder buffer = new ByteArrayBuilder();
+            Iterator<CompanyEntity> iterator = QueryManager.getAllEntitiesAsStream(entitySession, query, CompanyEntity.class).iterator();
+            while (iterator.hasNext()) {
+                CompanyEntity entity = iterator.next();
+                try (JsonGenerator generator = objectMapper.getFactory().createGenerator(buffer)) {
+                    cvrWrapper.writeGerCompany(entity, lookupService, false, generator);
+                }
+                target.put(Integer.toString(entity.getGerNr()), buffer.toByteArray());
+                buffer.reset();
+                entitySession.evict(entity);
+                count++;
+            }
+        }
+        return count;
+    }
+}
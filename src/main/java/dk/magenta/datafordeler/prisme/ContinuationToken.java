@@ -0,0 +1,111 @@
+package dk.magenta.datafordeler.prisme;
+
+import dk.magenta.datafordeler.core.exception.InvalidClientInputException;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * Lets a client resume a bulk download that broke off.
+ * Bulk endpoints write their rows ordered by key, and send a fingerprint of the query in the
+ * {@link #HEADER} response header. A client whose download was cut short can repeat the request with
+ * {@link #PARAM_CONTINUE_AFTER} set to "fingerprint:key", where key is the last row it received in full,
+ * and the response then holds only the rows after that key.
+ */
+public final class ContinuationToken {
+
+    public static final String HEADER = "Prisme-Query-Fingerprint";
+
+    public static final String PARAM_CONTINUE_AFTER = "continueAfter";
+
+    /**
+     * Order of keys in bulk output. Numbers without leading zeroes sort numerically, and numbers of a fixed
+     * length, such as CPR numbers, sort as text
+     */
+    public static final Comparator<String> KEY_ORDER = Comparator.comparingInt(String::length).thenComparing(Comparator.naturalOrder());
+
+    private final String fingerprint;
+
+    private final String lastKey;
+
+    private ContinuationToken(String fingerprint, String lastKey) {
+        this.fingerprint = fingerprint;
+        this.lastKey = lastKey;
+    }
+
+    public String getFingerprint() {
+        return this.fingerprint;
+    }
+
+    public String getLastKey() {
+        return this.lastKey;
+    }
+
+    /**
+     * Parse a token passed by a client, returning null if there is none
+     */
+    public static ContinuationToken parse(String token) throws InvalidClientInputException {
+        if (token == null || token.isEmpty()) {
+            return null;
+        }
+        int separator = token.lastIndexOf(':');
+        if (separator <= 0 || separator == token.length() - 1) {
+            throw new InvalidClientInputException("Invalid " + PARAM_CONTINUE_AFTER + ": " + token);
+        }
+        return new ContinuationToken(token.substring(0, separator), token.substring(separator + 1));
+    }
+
+    /**
+     * Sort the keys of a bulk request in output order
+     */
+    public static TreeSet<String> sortKeys(Collection<String> keys) {
+        TreeSet<String> sorted = new TreeSet<>(KEY_ORDER);
+        sorted.addAll(keys);
+        return sorted;
+    }
+
+    /**
+     * Fingerprint of a bulk query, made from its sorted keys and any other parameters that affect its output
+     */
+    public static String fingerprint(SortedSet<String> keys, Object... parameters) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        for (String key : keys) {
+            digest.update(key.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) ',');
+        }
+        for (Object parameter : parameters) {
+            digest.update((byte) ';');
+            digest.update(String.valueOf(parameter).getBytes(StandardCharsets.UTF_8));
+        }
+        StringBuilder hex = new StringBuilder();
+        byte[] hash = digest.digest();
+        for (int i = 0; i < 16; i++) {
+            hex.append(String.format("%02x", hash[i]));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * The keys that remain to be written when resuming from the given token, which must belong to a query with the
+     * given fingerprint
+     */
+    public static SortedSet<String> remainingKeys(TreeSet<String> keys, String fingerprint, ContinuationToken token) throws InvalidClientInputException {
+        if (token == null) {
+            return keys;
+        }
+        if (!token.getFingerprint().equals(fingerprint)) {
+            throw new InvalidClientInputException("The " + PARAM_CONTINUE_AFTER + " token does not belong to this query");
+        }
+        return keys.tailSet(token.getLastKey(), false);
+    }
+}
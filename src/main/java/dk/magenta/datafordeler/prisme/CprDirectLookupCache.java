@@ -0,0 +1,133 @@
+package dk.magenta.datafordeler.prisme;
+
+import dk.magenta.datafordeler.core.exception.DataStreamException;
+import dk.magenta.datafordeler.cpr.data.person.PersonEntity;
+import dk.magenta.datafordeler.cpr.direct.CprDirectLookup;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Clock;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Short-lived cache in front of the CPR direct service, for clients that ask for the same persons repeatedly.
+ * Persons found are kept for ttlSeconds, and numbers the service doesn't know are kept for negativeTtlSeconds.
+ * When the cache is full, the least recently used entry is evicted
+ */
+@Component
+public class CprDirectLookupCache {
+
+    @Autowired
+    private CprDirectLookup cprDirectLookup;
+
+    @Value("${dafo.prisme.cpr.direct.cache.enabled:true}")
+    private boolean enabled;
+
+    @Value("${dafo.prisme.cpr.direct.cache.ttlSeconds:300}")
+    private long ttlSeconds;
+
+    @Value("${dafo.prisme.cpr.direct.cache.negativeTtlSeconds:60}")
+    private long negativeTtlSeconds;
+
+    @Value("${dafo.prisme.cpr.direct.cache.maxEntries:10000}")
+    private int maxEntries;
+
+    private Clock clock = Clock.systemUTC();
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private static class CacheEntry {
+        private final PersonEntity personEntity;
+        private final long expires;
+
+        private CacheEntry(PersonEntity personEntity, long expires) {
+            this.personEntity = personEntity;
+            this.expires = expires;
+        }
+    }
+
+    private final LinkedHashMap<String, CacheEntry> cache = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+            return this.size() > CprDirectLookupCache.this.maxEntries;
+        }
+    };
+
+    public CprDirectLookupCache() {
+    }
+
+    /**
+     * Create a cache with the given configuration, for use outside of Spring
+     */
+    CprDirectLookupCache(CprDirectLookup cprDirectLookup, boolean enabled, long ttlSeconds, long negativeTtlSeconds, int maxEntries, Clock clock) {
+        this.cprDirectLookup = cprDirectLookup;
+        this.enabled = enabled;
+        this.ttlSeconds = ttlSeconds;
+        this.negativeTtlSeconds = negativeTtlSeconds;
+        this.maxEntries = maxEntries;
+        this.clock = clock;
+    }
+
+    /**
+     * Get a person from the cache, or from the CPR direct service if it isn't cached
+     * @return The person, or null if the service doesn't know the number
+     */
+    public PersonEntity getPerson(String cprNumber) throws DataStreamException {
+        if (this.enabled) {
+            synchronized (this.cache) {
+                CacheEntry entry = this.cache.get(cprNumber);
+                if (entry != null) {
+                    if (entry.expires > this.clock.millis()) {
+                        this.hits.incrementAndGet();
+                        return entry.personEntity;
+                    }
+                    this.cache.remove(cprNumber);
+                }
+            }
+            this.misses.incrementAndGet();
+        }
+        return this.getPersonUncached(cprNumber);
+    }
+
+    /**
+     * Get a person from the CPR direct service, bypassing the cache. The result replaces any cached entry
+     * @return The person, or null if the service doesn't know the number
+     */
+    public PersonEntity getPersonUncached(String cprNumber) throws DataStreamException {
+        PersonEntity personEntity = cprDirectLookup.getPerson(cprNumber);
+        if (this.enabled) {
+            long ttl = (personEntity != null ? this.ttlSeconds : this.negativeTtlSeconds) * 1000;
+            if (ttl > 0) {
+                synchronized (this.cache) {
+                    this.cache.put(cprNumber, new CacheEntry(personEntity, this.clock.millis() + ttl));
+                }
+            }
+        }
+        return personEntity;
+    }
+
+    public void clear() {
+        synchronized (this.cache) {
+            this.cache.clear();
+        }
+    }
+
+    public int size() {
+        synchronized (this.cache) {
+            return this.cache.size();
+        }
+    }
+
+    public long getHits() {
+        return this.hits.get();
+    }
+
+    public long getMisses() {
+        return this.misses.get();
+    }
+}
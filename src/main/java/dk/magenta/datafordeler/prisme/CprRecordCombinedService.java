@@ -1,5 +1,6 @@
 package dk.magenta.datafordeler.prisme;
 
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -15,15 +16,12 @@ import dk.magenta.datafordeler.core.fapi.Query;
 import dk.magenta.datafordeler.core.plugin.AreaRestrictionDefinition;
 import dk.magenta.datafordeler.core.user.DafoUserDetails;
 import dk.magenta.datafordeler.core.user.DafoUserManager;
-import dk.magenta.datafordeler.core.util.FinalWrapper;
 import dk.magenta.datafordeler.core.util.LoggerHelper;
 import dk.magenta.datafordeler.cpr.CprAreaRestrictionDefinition;
 import dk.magenta.datafordeler.cpr.CprPlugin;
 import dk.magenta.datafordeler.cpr.CprRolesDefinition;
 import dk.magenta.datafordeler.cpr.data.person.PersonEntity;
-import dk.magenta.datafordeler.cpr.data.person.PersonEntityManager;
 import dk.magenta.datafordeler.cpr.data.person.PersonRecordQuery;
-import dk.magenta.datafordeler.cpr.direct.CprDirectLookup;
 import dk.magenta.datafordeler.geo.GeoLookupService;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -55,6 +53,9 @@ public class CprRecordCombinedService {
     @Autowired
     ObjectMapper objectMapper;
 
+    @Autowired
+    private PrismeMetrics metrics;
+
     @Autowired
     private DafoUserManager dafoUserManager;
 
@@ -64,16 +65,25 @@ public class CprRecordCombinedService {
     @Autowired
     protected MonitorService monitorService;
 
+    @Autowired
+    private GeoLookupCache geoLookupCache;
+
     private Logger log = LogManager.getLogger(CprRecordCombinedService.class.getCanonicalName());
 
     @Autowired
     private PersonOutputWrapperPrisme personOutputWrapper;
 
     @Autowired
-    private CprDirectLookup cprDirectLookup;
+    private SubscriptionQueue subscriptionQueue;
+
+    @Autowired
+    private ParallelCprDirectLookup parallelDirectLookup;
+
+    @Autowired
+    private CprDirectLookupCache directLookupCache;
 
     @Autowired
-    private PersonEntityManager entityManager;
+    private PersonProjection personProjection;
 
     @PostConstruct
     public void init() {
@@ -93,8 +103,7 @@ public class CprRecordCombinedService {
         this.checkAndLogAccess(loggerHelper);
 
         try (final Session session = sessionManager.getSessionFactory().openSession()) {
-            GeoLookupService lookupService = new GeoLookupService(session);
-            personOutputWrapper.setLookupService(lookupService);
+            GeoLookupService lookupService = geoLookupCache.getLookupService(session);
 
             PersonRecordQuery personQuery = new PersonRecordQuery();
             personQuery.setPersonnummer(cprNummer);
@@ -108,39 +117,43 @@ public class CprRecordCombinedService {
             personQuery.applyFilters(session);
             this.applyAreaRestrictionsToQuery(personQuery, user);
             if ("true".equals(forceDirect)) {
-                PersonEntity personEntity = cprDirectLookup.getPerson(cprNummer);
-                Object obj = personOutputWrapper.wrapRecordResult(personEntity, personQuery);
+                metrics.directLookupFallbacks(FALLBACK_FORCED, 1);
+                PersonEntity personEntity = directLookupCache.getPersonUncached(cprNummer);
+                Object obj = personOutputWrapper.wrapRecordResult(personEntity, personQuery, lookupService);
                 return streamPersonOut(user, obj);
             }
 
             List<PersonEntity> personEntities = QueryManager.getAllEntities(session, personQuery, PersonEntity.class);
             if (personEntities.isEmpty()) {
-                PersonEntity personEntity = cprDirectLookup.getPerson(cprNummer);
+                metrics.directLookupFallbacks(FALLBACK_NOT_FOUND, 1);
+                PersonEntity personEntity = directLookupCache.getPerson(cprNummer);
                 if(personEntity==null) {
                     throw new HttpNotFoundException("No entity with CPR number " + cprNummer + " was found");
                 }
-                entityManager.createSubscription(Collections.singleton(cprNummer));
-                Object obj = personOutputWrapper.wrapRecordResult(personEntity, personQuery);
+                subscriptionQueue.add(cprNummer);
+                Object obj = personOutputWrapper.wrapRecordResult(personEntity, personQuery, lookupService);
                 return streamPersonOut(user, obj);
             }
             PersonEntity personEntity = personEntities.get(0);//There is always one here
 
             PersonAttributeQuality personAttrQuality = this.acceptPersonEntity(personEntity);
-            Object obj = personOutputWrapper.wrapRecordResult(personEntity, personQuery);
+            Object obj = personOutputWrapper.wrapRecordResult(personEntity, personQuery, lookupService);
             switch (personAttrQuality) {
                 case PersonInformationIsOk:
                     return objectMapper.writeValueAsString(obj);
                 case needDirectLookup:
-                    personEntity = cprDirectLookup.getPerson(cprNummer);
-                    obj = personOutputWrapper.wrapRecordResult(personEntity, personQuery);
+                    metrics.directLookupFallbacks(personAttrQuality.name(), 1);
+                    personEntity = directLookupCache.getPerson(cprNummer);
+                    obj = personOutputWrapper.wrapRecordResult(personEntity, personQuery, lookupService);
                     return streamPersonOut(user, obj);
                 case needSubscribtionAndDirectLookup:
-                    personEntity = cprDirectLookup.getPerson(cprNummer);
+                    metrics.directLookupFallbacks(personAttrQuality.name(), 1);
+                    personEntity = directLookupCache.getPerson(cprNummer);
                     if(personEntity==null) {
                         throw new HttpNotFoundException("No entity with CPR number " + cprNummer + " was found");
                     }
-                    entityManager.createSubscription(Collections.singleton(cprNummer));
-                    obj = personOutputWrapper.wrapRecordResult(personEntity, personQuery);
+                    subscriptionQueue.add(cprNummer);
+                    obj = personOutputWrapper.wrapRecordResult(personEntity, personQuery, lookupService);
                     return streamPersonOut(user, obj);
                 default:
                     throw new HttpNotFoundException("No entity with CPR number " + cprNummer + " was found");
@@ -159,11 +172,12 @@ public class CprRecordCombinedService {
         }
     }
 
+    // Reasons for direct lookups besides the PersonAttributeQuality of a person found in the database
+    private static final String FALLBACK_NOT_FOUND = "notFound";
+    private static final String FALLBACK_FORCED = "forced";
+
     private static final String PARAM_UPDATED_SINCE = "updatedSince";
     private static final String PARAM_CPR_NUMBER = "cprNumber";
-    private static final byte[] START_OBJECT = "{".getBytes();
-    private static final byte[] END_OBJECT = "}".getBytes();
-    private static final byte[] OBJECT_SEPARATOR = ",\n".getBytes();
 
     @RequestMapping(method = RequestMethod.POST, path = "/", produces = {MediaType.APPLICATION_JSON_VALUE})
     public StreamingResponseBody getBulk(HttpServletRequest request)
@@ -201,6 +215,19 @@ public class CprRecordCombinedService {
         if (cprNumbers == null || cprNumbers.isEmpty()) {
             throw new InvalidClientInputException("Please specify at least one CPR number");
         }
+
+        // Persons in the projection are written as they are, the rest are looked up
+        LinkedHashMap<String, byte[]> projected = new LinkedHashMap<>();
+        if (updatedSince == null && personProjection.isReady() && !hasAreaRestrictions(user)) {
+            for (String cprNumber : cprNumbers) {
+                byte[] output = personProjection.get(cprNumber);
+                if (output != null) {
+                    projected.put(cprNumber, output);
+                }
+            }
+            cprNumbers.removeAll(projected.keySet());
+        }
+        final boolean lookupDatabase = !cprNumbers.isEmpty();
         for (String cprNumber : cprNumbers) {
             personQuery.addPersonnummer(cprNumber);
         }
@@ -211,11 +238,10 @@ public class CprRecordCombinedService {
         personQuery.setEffectFromBefore(now);
         personQuery.setEffectToAfter(now);
 
-        return outputStream -> {
+        return metrics.instrumentBulk("cpr/combined/1", outputStream -> {
 
             final Session lookupSession = sessionManager.getSessionFactory().openSession();
-            GeoLookupService lookupService = new GeoLookupService(lookupSession);
-            personOutputWrapper.setLookupService(lookupService);
+            GeoLookupService lookupService = geoLookupCache.getLookupService(lookupSession);
 
             final Session entitySession = sessionManager.getSessionFactory().openSession();
             try {
@@ -223,26 +249,17 @@ public class CprRecordCombinedService {
                 personQuery.applyFilters(entitySession);
                 CprRecordCombinedService.this.applyAreaRestrictionsToQuery(personQuery, user);
 
-                Stream<PersonEntity> personEntities = QueryManager.getAllEntitiesAsStream(entitySession, personQuery, PersonEntity.class);
-
-                final FinalWrapper<Boolean> first = new FinalWrapper<>(true);
+                // Not closed, as that would close the response stream
+                JsonGenerator generator = objectMapper.getFactory().createGenerator(outputStream);
+                generator.setPrettyPrinter(new RowSeparatorPrettyPrinter());
                 Consumer<PersonEntity> entityWriter = personEntity -> {
                     if(personEntity!=null && personEntity.getPersonnummer()!=null) {
                         try {
                             cprNumbers.remove(personEntity.getPersonnummer());
-                            if (!first.getInner()) {
-                                outputStream.flush();
-                                outputStream.write(OBJECT_SEPARATOR);
-                            } else {
-                                first.setInner(false);
-                            }
-
-                            outputStream.write(("\"" + personEntity.getPersonnummer() + "\":").getBytes());
-                            outputStream.write(
-                                    objectMapper.writeValueAsString(
-                                            personOutputWrapper.wrapRecordResult(personEntity, personQuery)
-                                    ).getBytes(StandardCharsets.UTF_8)
-                            );
+                            generator.writeFieldName(personEntity.getPersonnummer());
+                            personOutputWrapper.writeRecordResult(personEntity, lookupService, generator);
+                            generator.flush();
+                            metrics.recordsEmitted(1);
                         } catch (IOException e) {
                             log.error("IOException", e.getStackTrace());
                         }
@@ -250,30 +267,32 @@ public class CprRecordCombinedService {
                     }
                 };
 
-                outputStream.write(START_OBJECT);
-                personEntities.forEach(entityWriter);
+                generator.writeStartObject();
+                for (Map.Entry<String, byte[]> entry : projected.entrySet()) {
+                    generator.writeFieldName(entry.getKey());
+                    generator.writeRawValue(new String(entry.getValue(), StandardCharsets.UTF_8));
+                }
+                generator.flush();
+                metrics.recordsEmitted(projected.size());
 
-                HashSet<String> found = new HashSet<>();
+                if (lookupDatabase) {
+                    Stream<PersonEntity> personEntities = QueryManager.getAllEntitiesAsStream(entitySession, personQuery, PersonEntity.class);
+                    personEntities.forEach(entityWriter);
+                }
+
+                Set<String> found = Collections.emptySet();
                 if (!cprNumbers.isEmpty() && !hasAreaRestrictions(user)) {
                     List<String> remaining = new ArrayList<>(cprNumbers);
-                    remaining.stream().map(pnr -> {
-                        try {
-                            PersonEntity personEntity = cprDirectLookup.getPerson(pnr);
-                            if (personEntity != null) {
-                                found.add(pnr);
-                                return personEntity;
-                            }
-                        } catch (DataStreamException e) {
-                            log.warn(e);
-                        }
-                        return null;
-                    }).forEach(entityWriter);
+                    metrics.directLookupFallbacks(FALLBACK_NOT_FOUND, remaining.size());
+                    long start = System.nanoTime();
+                    found = parallelDirectLookup.lookup(remaining, entityWriter::accept);
+                    metrics.recordStage(PrismeMetrics.STAGE_DIRECT_LOOKUP, start);
                 }
 
-                outputStream.write(END_OBJECT);
-                outputStream.flush();
+                generator.writeEndObject();
+                generator.flush();
 
-                entityManager.createSubscription(found);
+                subscriptionQueue.add(found);
 
             } catch (InvalidClientInputException e) {
                 e.printStackTrace();
@@ -281,7 +300,7 @@ public class CprRecordCombinedService {
                 entitySession.close();
                 lookupSession.close();
             }
-        };
+        });
     }
 
 
@@ -1,6 +1,8 @@
 package dk.magenta.datafordeler.prisme;
 
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.util.ByteArrayBuilder;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ArrayNode;
@@ -26,23 +28,32 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.hibernate.Session;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.MediaType;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import javax.annotation.PostConstruct;
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.time.OffsetDateTime;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
-import java.util.function.Consumer;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.regex.Pattern;
 import java.util.stream.Stream;
 
@@ -56,6 +67,9 @@ public class CprRecordService {
     @Autowired
     ObjectMapper objectMapper;
 
+    @Autowired
+    private PrismeMetrics metrics;
+
     @Autowired
     private DafoUserManager dafoUserManager;
 
@@ -65,11 +79,23 @@ public class CprRecordService {
     @Autowired
     protected MonitorService monitorService;
 
+    @Autowired
+    private GeoLookupCache geoLookupCache;
+
     private Logger log = LogManager.getLogger(CprRecordService.class.getCanonicalName());
 
     @Autowired
     private PersonOutputWrapperPrisme personOutputWrapper;
 
+    @Autowired
+    private ParallelBulkWriter bulkWriter;
+
+    @Autowired
+    private PersonProjection personProjection;
+
+    @Value("${dafo.prisme.cpr.bulk.fetchChunkSize:500}")
+    private int fetchChunkSize;
+
     @PostConstruct
     public void init() {
         this.monitorService.addAccessCheckPoint("/prisme/cpr/2/1234");
@@ -87,10 +113,16 @@ public class CprRecordService {
         );
         this.checkAndLogAccess(loggerHelper);
 
+        if (personProjection.isReady() && !hasAreaRestrictions(user)) {
+            byte[] projected = personProjection.get(cprNummer);
+            if (projected != null) {
+                return new String(projected, StandardCharsets.UTF_8);
+            }
+        }
+
         final Session session = sessionManager.getSessionFactory().openSession();
         try {
-            GeoLookupService lookupService = new GeoLookupService(session);
-            personOutputWrapper.setLookupService(lookupService);
+            GeoLookupService lookupService = geoLookupCache.getLookupService(session);
 
             PersonRecordQuery personQuery = new PersonRecordQuery();
             personQuery.setPersonnummer(cprNummer);
@@ -108,7 +140,7 @@ public class CprRecordService {
 
             if (!personEntities.isEmpty()) {
                 PersonEntity personEntity = personEntities.get(0);
-                return objectMapper.writeValueAsString(personOutputWrapper.wrapRecordResult(personEntity, personQuery));
+                return objectMapper.writeValueAsString(personOutputWrapper.wrapRecordResult(personEntity, personQuery, lookupService));
             }
 
             throw new HttpNotFoundException("No entity with CPR number " + cprNummer + " was found");
@@ -119,12 +151,9 @@ public class CprRecordService {
 
     private static final String PARAM_UPDATED_SINCE = "updatedSince";
     private static final String PARAM_CPR_NUMBER = "cprNumber";
-    private static final byte[] START_OBJECT = "{".getBytes();
-    private static final byte[] END_OBJECT = "}".getBytes();
-    private static final byte[] OBJECT_SEPARATOR = ",\n".getBytes();
 
     @RequestMapping(method = RequestMethod.POST, path = "/", produces = {MediaType.APPLICATION_JSON_VALUE})
-    public StreamingResponseBody getBulk(HttpServletRequest request)
+    public StreamingResponseBody getBulk(HttpServletRequest request, HttpServletResponse response)
             throws AccessDeniedException, AccessRequiredException, InvalidTokenException, InvalidClientInputException, IOException, HttpNotFoundException, InvalidCertificateException {
         JsonNode requestBody;
         try {
@@ -141,83 +170,210 @@ public class CprRecordService {
 
         final List<String> cprNumbers = (requestObject.has(PARAM_CPR_NUMBER)) ? this.getCprNumber(requestObject.get(PARAM_CPR_NUMBER)) : null;
 
+        final ContinuationToken continueAfter = requestObject.has(ContinuationToken.PARAM_CONTINUE_AFTER) ? ContinuationToken.parse(requestObject.get(ContinuationToken.PARAM_CONTINUE_AFTER).asText()) : null;
+
 
         DafoUserDetails user = dafoUserManager.getUserFromRequest(request);
         LoggerHelper loggerHelper = new LoggerHelper(log, request, user);
         loggerHelper.info(
                 "Incoming REST request for PrismeCprService with " +
-                        PARAM_UPDATED_SINCE + " = " + updatedSince + " and " +
-                        PARAM_CPR_NUMBER + " = " + (cprNumbers != null && cprNumbers.size() > 10 ? (cprNumbers.size() + " cpr numbers") : cprNumbers)
+                        PARAM_UPDATED_SINCE + " = " + updatedSince + ", " +
+                        PARAM_CPR_NUMBER + " = " + (cprNumbers != null && cprNumbers.size() > 10 ? (cprNumbers.size() + " cpr numbers") : cprNumbers) + " and " +
+                        ContinuationToken.PARAM_CONTINUE_AFTER + " = " + (continueAfter != null ? continueAfter.getLastKey() : null)
         );
         this.checkAndLogAccess(loggerHelper);
 
-        PersonRecordQuery personQuery = new PersonRecordQuery();
-        personQuery.setPageSize(Integer.MAX_VALUE);
+        if (cprNumbers == null || cprNumbers.isEmpty()) {
+            throw new InvalidClientInputException("Please specify at least one CPR number");
+        }
 
-        personQuery.setRecordAfter(updatedSince);
+        // Output is ordered by CPR number, so an interrupted download can be resumed after the last row received
+        TreeSet<String> sortedNumbers = ContinuationToken.sortKeys(cprNumbers);
+        String fingerprint = ContinuationToken.fingerprint(sortedNumbers, updatedSince);
+        SortedSet<String> remaining = ContinuationToken.remainingKeys(sortedNumbers, fingerprint, continueAfter);
+        response.setHeader(ContinuationToken.HEADER, fingerprint);
 
-        if (cprNumbers != null) {
-            for (String cprNumber : cprNumbers) {
-                personQuery.addPersonnummer(cprNumber);
+        // Persons in the projection are written as they are, the rest are looked up in chunks,
+        // keeping each query and the session cache small
+        boolean useProjection = updatedSince == null && personProjection.isReady() && !hasAreaRestrictions(user);
+        OffsetDateTime now = OffsetDateTime.now();
+        ArrayList<BulkChunk> chunks = new ArrayList<>();
+        for (List<String> chunkNumbers : ParallelBulkWriter.partition(remaining, this.fetchChunkSize)) {
+            BulkChunk chunk = new BulkChunk();
+            PersonRecordQuery chunkQuery = new PersonRecordQuery();
+            chunkQuery.setPageSize(Integer.MAX_VALUE);
+            chunkQuery.setRecordAfter(updatedSince);
+            for (String cprNumber : chunkNumbers) {
+                byte[] projected = useProjection ? personProjection.get(cprNumber) : null;
+                if (projected != null) {
+                    chunk.projected.put(cprNumber, projected);
+                } else {
+                    chunkQuery.addPersonnummer(cprNumber);
+                }
             }
-        }
-        if (personQuery.getPersonnumre().isEmpty()) {
-            throw new InvalidClientInputException("Please specify at least one CPR number");
+            if (chunk.projected.size() < chunkNumbers.size()) {
+                chunkQuery.setRegistrationFromBefore(now);
+                chunkQuery.setRegistrationToAfter(now);
+                chunkQuery.setEffectFromBefore(now);
+                chunkQuery.setEffectToAfter(now);
+                this.applyAreaRestrictionsToQuery(chunkQuery, user);
+                chunk.query = chunkQuery;
+            }
+            chunks.add(chunk);
         }
 
-        OffsetDateTime now = OffsetDateTime.now();
-        personQuery.setRegistrationFromBefore(now);
-        personQuery.setRegistrationToAfter(now);
-        personQuery.setEffectFromBefore(now);
-        personQuery.setEffectToAfter(now);
+        return metrics.instrumentBulk("cpr/2", outputStream -> {
 
-        return outputStream -> {
+            final Session entitySession = sessionManager.getSessionFactory().openSession();
+            try {
+                chunks.stream().filter(chunk -> chunk.query != null).findFirst().ifPresent(
+                        chunk -> chunk.query.applyFilters(entitySession)
+                );
+                Stream<BulkItem> items = chunks.stream().flatMap(
+                        chunk -> CprRecordService.this.fetchChunk(entitySession, chunk).stream()
+                );
+                bulkWriter.write(
+                        items,
+                        null,
+                        CprRecordService.this::wrapItems,
+                        outputStream
+                );
+            } finally {
+                entitySession.close();
+            }
+        });
+    }
 
-            final Session lookupSession = sessionManager.getSessionFactory().openSession();
-            GeoLookupService lookupService = new GeoLookupService(lookupSession);
-            personOutputWrapper.setLookupService(lookupService);
+    /**
+     * A chunk of the persons requested in bulk, holding the ones found in the projection
+     * and a query for the rest
+     */
+    private static final class BulkChunk {
+        private final HashMap<String, byte[]> projected = new HashMap<>();
+        private PersonRecordQuery query;
+    }
 
+    /**
+     * A person to write in bulk output, either already serialized or loaded from the database
+     */
+    private static final class BulkItem {
+        private final String key;
+        private final byte[] projected;
+        private final PersonEntity entity;
+
+        private BulkItem(String key, byte[] projected, PersonEntity entity) {
+            this.key = key;
+            this.projected = projected;
+            this.entity = entity;
+        }
+    }
+
+    /**
+     * Return all persons that have been updated since the given cursor, along with the cursor to use next time
+     * @see DeltaCursor
+     */
+    @RequestMapping(method = RequestMethod.GET, path = "/delta", produces = {MediaType.APPLICATION_JSON_VALUE})
+    public StreamingResponseBody getDelta(@RequestParam(value = DeltaCursor.PARAM_CURSOR, required = false) String cursor, HttpServletRequest request)
+            throws AccessDeniedException, AccessRequiredException, InvalidTokenException, InvalidClientInputException, InvalidCertificateException {
+        final OffsetDateTime updatedSince = DeltaCursor.parse(cursor);
+
+        DafoUserDetails user = dafoUserManager.getUserFromRequest(request);
+        LoggerHelper loggerHelper = new LoggerHelper(log, request, user);
+        loggerHelper.info(
+                "Incoming REST request for PrismeCprService delta with " + DeltaCursor.PARAM_CURSOR + " = " + updatedSince
+        );
+        this.checkAndLogAccess(loggerHelper);
+
+        OffsetDateTime now = OffsetDateTime.now();
+        PersonRecordQuery query = new PersonRecordQuery();
+        query.setPageSize(Integer.MAX_VALUE);
+        query.setRecordAfter(updatedSince);
+        query.setRegistrationFromBefore(now);
+        query.setRegistrationToAfter(now);
+        query.setEffectFromBefore(now);
+        query.setEffectToAfter(now);
+        this.applyAreaRestrictionsToQuery(query, user);
+
+        return metrics.instrumentBulk("cpr/2/delta", outputStream -> {
             final Session entitySession = sessionManager.getSessionFactory().openSession();
             try {
-
-                personQuery.applyFilters(entitySession);
-                CprRecordService.this.applyAreaRestrictionsToQuery(personQuery, user);
-
-                Stream<PersonEntity> personEntities = QueryManager.getAllEntitiesAsStream(entitySession, personQuery, PersonEntity.class);
-                outputStream.write(START_OBJECT);
-                personEntities.forEach(new Consumer<PersonEntity>() {
-                    boolean first = true;
-
-                    @Override
-                    public void accept(PersonEntity personEntity) {
-                        try {
-                            if (!first) {
-                                outputStream.flush();
-                                outputStream.write(OBJECT_SEPARATOR);
-                            } else {
-                                first = false;
-                            }
-                            outputStream.write(("\"" + personEntity.getPersonnummer() + "\":").getBytes());
-                            outputStream.write(
-                                    objectMapper.writeValueAsString(
-                                            personOutputWrapper.wrapRecordResult(personEntity, personQuery)
-                                    ).getBytes(Charset.forName("UTF-8"))
-                            );
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                        }
-                        entitySession.evict(personEntity);
-                    }
-                });
-                outputStream.write(END_OBJECT);
-                outputStream.flush();
-            } catch (InvalidClientInputException e) {
-                e.printStackTrace();
+                query.applyFilters(entitySession);
+                DeltaCursor.writeStart(DeltaCursor.next(now), outputStream);
+                bulkWriter.write(
+                        QueryManager.getAllEntitiesAsStream(entitySession, query, PersonEntity.class),
+                        personEntity -> {
+                            personOutputWrapper.loadRecords(personEntity);
+                            entitySession.evict(personEntity);
+                        },
+                        CprRecordService.this::wrapBatch,
+                        outputStream
+                );
+                DeltaCursor.writeEnd(outputStream);
             } finally {
                 entitySession.close();
-                lookupSession.close();
             }
-        };
+        });
+    }
+
+    /**
+     * Load one chunk of persons with all the records the wrapper needs, detach them from the session,
+     * and merge them with the projected persons of the chunk in key order
+     */
+    private Collection<BulkItem> fetchChunk(Session entitySession, BulkChunk chunk) {
+        TreeMap<String, BulkItem> items = new TreeMap<>(ContinuationToken.KEY_ORDER);
+        for (Map.Entry<String, byte[]> entry : chunk.projected.entrySet()) {
+            items.put(entry.getKey(), new BulkItem(entry.getKey(), entry.getValue(), null));
+        }
+        if (chunk.query != null) {
+            List<PersonEntity> personEntities = metrics.time(PrismeMetrics.STAGE_FETCH,
+                    () -> QueryManager.getAllEntities(entitySession, chunk.query, PersonEntity.class)
+            );
+            personOutputWrapper.loadRecords(entitySession, personEntities);
+            for (PersonEntity personEntity : personEntities) {
+                items.put(personEntity.getPersonnummer(), new BulkItem(personEntity.getPersonnummer(), null, personEntity));
+            }
+            entitySession.clear();
+        }
+        return items.values();
+    }
+
+    /**
+     * Serialize a batch of bulk items, wrapping the ones that aren't serialized already
+     */
+    private List<byte[]> wrapItems(List<BulkItem> batch) throws IOException {
+        ArrayList<PersonEntity> personEntities = new ArrayList<>();
+        for (BulkItem item : batch) {
+            if (item.entity != null) {
+                personEntities.add(item.entity);
+            }
+        }
+        Iterator<byte[]> wrapped = personEntities.isEmpty() ? Collections.emptyIterator() : this.wrapBatch(personEntities).iterator();
+        ArrayList<byte[]> rows = new ArrayList<>(batch.size());
+        for (BulkItem item : batch) {
+            rows.add(item.projected != null ? ParallelBulkWriter.row(item.key, item.projected) : wrapped.next());
+        }
+        return rows;
+    }
+
+    /**
+     * Wrap and serialize a batch of detached persons, using a lookup session of its own
+     */
+    private List<byte[]> wrapBatch(List<PersonEntity> batch) throws IOException {
+        long start = System.nanoTime();
+        ArrayList<byte[]> rows = new ArrayList<>(batch.size());
+        ByteArrayBuilder buffer = new ByteArrayBuilder();
+        try (Session lookupSession = sessionManager.getSessionFactory().openSession()) {
+            GeoLookupService lookupService = geoLookupCache.getLookupService(lookupSession);
+            for (PersonEntity personEntity : batch) {
+                try (JsonGenerator generator = objectMapper.getFactory().createGenerator(buffer)) {
+                    personOutputWrapper.writeRecordResult(personEntity, lookupService, generator);
+                }
+                rows.add(ParallelBulkWriter.row(personEntity.getPersonnummer(), buffer.toByteArray()));
+                buffer.reset();
+            }
+        }
+        metrics.recordStage(PrismeMetrics.STAGE_WRAP, start);
+        return rows;
     }
 
 
@@ -242,6 +398,10 @@ public class CprRecordService {
         }
     }
 
+    private static boolean hasAreaRestrictions(DafoUserDetails user) {
+        return !user.getAreaRestrictionsForRole(CprRolesDefinition.READ_CPR_ROLE).isEmpty();
+    }
+
     private static Pattern nonDigits = Pattern.compile("[^\\d]");
     private List<String> getCprNumber(JsonNode node) {
         ArrayList<String> cprNumbers = new ArrayList<>();
@@ -1,6 +1,8 @@
 package dk.magenta.datafordeler.prisme;
 
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.util.ByteArrayBuilder;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ArrayNode;
@@ -26,6 +28,7 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.hibernate.Session;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.MediaType;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestMapping;
@@ -37,12 +40,13 @@ import javax.annotation.PostConstruct;
 import javax.servlet.http.HttpServletRequest;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.time.OffsetDateTime;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.function.Consumer;
 import java.util.regex.Pattern;
 import java.util.stream.Stream;
 
@@ -56,6 +60,9 @@ public class CprService {
     @Autowired
     ObjectMapper objectMapper;
 
+    @Autowired
+    private PrismeMetrics metrics;
+
     @Autowired
     private DafoUserManager dafoUserManager;
 
@@ -65,11 +72,23 @@ public class CprService {
     @Autowired
     protected MonitorService monitorService;
 
+    @Autowired
+    private GeoLookupCache geoLookupCache;
+
     private Logger log = LogManager.getLogger(CprService.class.getCanonicalName());
 
     @Autowired
     private PersonOutputWrapperPrisme personOutputWrapper;
 
+    @Autowired
+    private ParallelBulkWriter bulkWriter;
+
+    @Autowired
+    private PersonProjection personProjection;
+
+    @Value("${dafo.prisme.cpr.bulk.fetchChunkSize:500}")
+    private int fetchChunkSize;
+
     @PostConstruct
     public void init() {
         this.monitorService.addAccessCheckPoint("/prisme/cpr/1/1234");
@@ -87,9 +106,15 @@ public class CprService {
         );
         this.checkAndLogAccess(loggerHelper);
 
+        if (personProjection.isReady() && !hasAreaRestrictions(user)) {
+            byte[] projected = personProjection.get(cprNummer);
+            if (projected != null) {
+                return new String(projected, StandardCharsets.UTF_8);
+            }
+        }
+
         try(final Session session = sessionManager.getSessionFactory().openSession();) {
-            GeoLookupService lookupService = new GeoLookupService(session);
-            personOutputWrapper.setLookupService(lookupService);
+            GeoLookupService lookupService = geoLookupCache.getLookupService(session);
 
             PersonRecordQuery personQuery = new PersonRecordQuery();
             personQuery.setPersonnummer(cprNummer);
@@ -107,7 +132,7 @@ public class CprService {
 
             if (!personEntities.isEmpty()) {
                 PersonEntity personEntity = personEntities.get(0);
-                return objectMapper.writeValueAsString(personOutputWrapper.wrapRecordResult(personEntity, personQuery));
+                return objectMapper.writeValueAsString(personOutputWrapper.wrapRecordResult(personEntity, personQuery, lookupService));
             }
             throw new HttpNotFoundException("No entity with CPR number " + cprNummer + " was found");
         }
@@ -115,9 +140,6 @@ public class CprService {
 
     private static final String PARAM_UPDATED_SINCE = "updatedSince";
     private static final String PARAM_CPR_NUMBER = "cprNumber";
-    private static final byte[] START_OBJECT = "{".getBytes();
-    private static final byte[] END_OBJECT = "}".getBytes();
-    private static final byte[] OBJECT_SEPARATOR = ",\n".getBytes();
 
     @RequestMapping(method = RequestMethod.POST, path = "/", produces = {MediaType.APPLICATION_JSON_VALUE})
     public StreamingResponseBody getBulk(HttpServletRequest request)
@@ -147,77 +169,97 @@ public class CprService {
         );
         this.checkAndLogAccess(loggerHelper);
 
-        PersonRecordQuery personQuery = new PersonRecordQuery();
-        personQuery.setPageSize(Integer.MAX_VALUE);
-
-        personQuery.setRecordAfter(updatedSince);
-
-        if (cprNumbers != null) {
-            for (String cprNumber : cprNumbers) {
-                personQuery.addPersonnummer(cprNumber);
-            }
-        }
-        if (personQuery.getPersonnumre().isEmpty()) {
+        if (cprNumbers == null || cprNumbers.isEmpty()) {
             throw new InvalidClientInputException("Please specify at least one CPR number");
         }
 
+        // Persons in the projection are written as they are, the rest are looked up
+        LinkedHashSet<String> remaining = new LinkedHashSet<>(cprNumbers);
+        List<byte[]> projectedRows = (updatedSince == null && personProjection.isReady() && !hasAreaRestrictions(user)) ?
+                personProjection.takeRows(remaining) : Collections.emptyList();
+
+        // Look up the persons in chunks, keeping each query and the session cache small
         OffsetDateTime now = OffsetDateTime.now();
-        personQuery.setRegistrationFromBefore(now);
-        personQuery.setRegistrationToAfter(now);
-        personQuery.setEffectFromBefore(now);
-        personQuery.setEffectToAfter(now);
+        ArrayList<PersonRecordQuery> chunkQueries = new ArrayList<>();
+        for (List<String> chunk : ParallelBulkWriter.partition(remaining, this.fetchChunkSize)) {
+            PersonRecordQuery chunkQuery = new PersonRecordQuery();
+            chunkQuery.setPageSize(Integer.MAX_VALUE);
+            chunkQuery.setRecordAfter(updatedSince);
+            for (String cprNumber : chunk) {
+                chunkQuery.addPersonnummer(cprNumber);
+            }
+            chunkQuery.setRegistrationFromBefore(now);
+            chunkQuery.setRegistrationToAfter(now);
+            chunkQuery.setEffectFromBefore(now);
+            chunkQuery.setEffectToAfter(now);
+            chunkQueries.add(chunkQuery);
+        }
 
-        return new StreamingResponseBody() {
+        return metrics.instrumentBulk("cpr/1", new StreamingResponseBody() {
 
             @Override
             public void writeTo(OutputStream outputStream) throws IOException {
 
-                final Session lookupSession = sessionManager.getSessionFactory().openSession();
-                GeoLookupService lookupService = new GeoLookupService(lookupSession);
-                personOutputWrapper.setLookupService(lookupService);
-
                 final Session entitySession = sessionManager.getSessionFactory().openSession();
                 try {
 
-                    personQuery.applyFilters(entitySession);
-                    CprService.this.applyAreaRestrictionsToQuery(personQuery, user);
-
-                    Stream<PersonEntity> personEntities = QueryManager.getAllEntitiesAsStream(entitySession, personQuery, PersonEntity.class);
-                    outputStream.write(START_OBJECT);
-                    personEntities.forEach(new Consumer<PersonEntity>() {
-                        boolean first = true;
-
-                        @Override
-                        public void accept(PersonEntity personEntity) {
-                            try {
-                                if (!first) {
-                                    outputStream.flush();
-                                    outputStream.write(OBJECT_SEPARATOR);
-                                } else {
-                                    first = false;
-                                }
-                                outputStream.write(("\"" + personEntity.getPersonnummer() + "\":").getBytes());
-                                outputStream.write(
-                                        objectMapper.writeValueAsString(
-                                                personOutputWrapper.wrapRecordResult(personEntity, personQuery)
-                                        ).getBytes(Charset.forName("UTF-8"))
-                                );
-                            } catch (IOException e) {
-                                e.printStackTrace();
-                            }
-                            entitySession.evict(personEntity);
-                        }
-                    });
-                    outputStream.write(END_OBJECT);
-                    outputStream.flush();
+                    if (!chunkQueries.isEmpty()) {
+                        chunkQueries.get(0).applyFilters(entitySession);
+                    }
+                    for (PersonRecordQuery chunkQuery : chunkQueries) {
+                        CprService.this.applyAreaRestrictionsToQuery(chunkQuery, user);
+                    }
+
+                    Stream<PersonEntity> personEntities = chunkQueries.stream().flatMap(
+                            chunkQuery -> CprService.this.fetchChunk(entitySession, chunkQuery).stream()
+                    );
+                    bulkWriter.write(
+                            projectedRows,
+                            personEntities,
+                            null,
+                            CprService.this::wrapBatch,
+                            outputStream
+                    );
                 } catch (InvalidClientInputException e) {
                     e.printStackTrace();
                 } finally {
                     entitySession.close();
-                    lookupSession.close();
                 }
             }
-        };
+        });
+    }
+
+    /**
+     * Load one chunk of persons with all the records the wrapper needs, and detach them from the session
+     */
+    private List<PersonEntity> fetchChunk(Session entitySession, PersonRecordQuery chunkQuery) {
+        List<PersonEntity> personEntities = metrics.time(PrismeMetrics.STAGE_FETCH,
+                () -> QueryManager.getAllEntities(entitySession, chunkQuery, PersonEntity.class)
+        );
+        personOutputWrapper.loadRecords(entitySession, personEntities);
+        entitySession.clear();
+        return personEntities;
+    }
+
+    /**
+     * Wrap and serialize a batch of detached persons, using a lookup session of its own
+     */
+    private List<byte[]> wrapBatch(List<PersonEntity> batch) throws IOException {
+        long start = System.nanoTime();
+        ArrayList<byte[]> rows = new ArrayList<>(batch.size());
+        ByteArrayBuilder buffer = new ByteArrayBuilder();
+        try (Session lookupSession = sessionManager.getSessionFactory().openSession()) {
+            GeoLookupService lookupService = geoLookupCache.getLookupService(lookupSession);
+            for (PersonEntity personEntity : batch) {
+                try (JsonGenerator generator = objectMapper.getFactory().createGenerator(buffer)) {
+                    personOutputWrapper.writeRecordResult(personEntity, lookupService, generator);
+                }
+                rows.add(ParallelBulkWriter.row(personEntity.getPersonnummer(), buffer.toByteArray()));
+                buffer.reset();
+            }
+        }
+        metrics.recordStage(PrismeMetrics.STAGE_WRAP, start);
+        return rows;
     }
 
 
@@ -242,6 +284,10 @@ public class CprService {
         }
     }
 
+    private static boolean hasAreaRestrictions(DafoUserDetails user) {
+        return !user.getAreaRestrictionsForRole(CprRolesDefinition.READ_CPR_ROLE).isEmpty();
+    }
+
     private static Pattern nonDigits = Pattern.compile("[^\\d]");
     private List<String> getCprNumber(JsonNode node) {
         ArrayList<String> cprNumbers = new ArrayList<>();
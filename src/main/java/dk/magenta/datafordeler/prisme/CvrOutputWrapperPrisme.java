@@ -1,10 +1,10 @@
 package dk.magenta.datafordeler.prisme;
 
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
-import dk.magenta.datafordeler.core.database.QueryManager;
 import dk.magenta.datafordeler.core.fapi.OutputWrapper;
 import dk.magenta.datafordeler.core.util.Bitemporality;
 import dk.magenta.datafordeler.cpr.records.person.CprBitemporalPersonRecord;
@@ -15,12 +15,15 @@ import dk.magenta.datafordeler.geo.GeoLookupDTO;
 import dk.magenta.datafordeler.geo.GeoLookupService;
 import dk.magenta.datafordeler.ger.data.company.CompanyEntity;
 import dk.magenta.datafordeler.ger.data.responsible.ResponsibleEntity;
-import dk.magenta.datafordeler.ger.data.responsible.ResponsibleQuery;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.hibernate.Session;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.time.OffsetDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
@@ -41,6 +44,7 @@ public class CvrOutputWrapperPrisme extends OutputWrapper<CompanyRecord> {
         this.lookupService = lookupService;
     }
 
+    @Autowired
     private CollectiveCvrLookup directLookup;
 
     public void setCollectiveLookup(CollectiveCvrLookup directLookup) {
@@ -50,6 +54,9 @@ public class CvrOutputWrapperPrisme extends OutputWrapper<CompanyRecord> {
     @Autowired
     private GerCompanyLookup gerCompanyLookup;
 
+    @Value("${dafo.prisme.cvr.participantLookupChunkSize:200}")
+    private int participantLookupChunkSize;
+
     public void setGerCompanyLookup(GerCompanyLookup gerCompanyLookup) {
         this.gerCompanyLookup = gerCompanyLookup;
     }
@@ -115,34 +122,101 @@ public class CvrOutputWrapperPrisme extends OutputWrapper<CompanyRecord> {
 
 
     protected ObjectNode wrapGerCompany(CompanyEntity entity, GeoLookupService lookupService, boolean returnParticipantDetails) {
-        ObjectNode root = objectMapper.createObjectNode();
-        root.put("source", "GER");
-        root.put("cvrNummer", entity.getGerNr());
-        root.put(
-                "navn",
+        return this.wrapGerCompany(entity, lookupService, returnParticipantDetails, this.lookupResponsibles(lookupService, entity, returnParticipantDetails));
+    }
+
+    /**
+     * Wrap a GER company, taking its responsibles from responsibles already looked up with
+     * {@link #lookupResponsibles(Session, Collection)}, so a batch of companies can share one lookup
+     */
+    protected ObjectNode wrapGerCompany(CompanyEntity entity, GeoLookupService lookupService, boolean returnParticipantDetails, Map<Integer, List<ResponsibleEntity>> responsibles) {
+        TreeRecordOutput output = new TreeRecordOutput(objectMapper.createObjectNode(), false);
+        this.writeGerCompanyFields(entity, lookupService, returnParticipantDetails, responsibles, output);
+        return output.getNode();
+    }
+
+    protected void writeGerCompany(CompanyEntity entity, GeoLookupService lookupService, boolean returnParticipantDetails, JsonGenerator generator) throws IOException {
+        this.writeGerCompany(entity, lookupService, returnParticipantDetails, this.lookupResponsibles(lookupService, entity, returnParticipantDetails), generator);
+    }
+
+    /**
+     * Write a GER company directly to a generator, as an object. The output is the same as
+     * {@link #wrapGerCompany(CompanyEntity, GeoLookupService, boolean, Map)}
+     */
+    protected void writeGerCompany(CompanyEntity entity, GeoLookupService lookupService, boolean returnParticipantDetails, Map<Integer, List<ResponsibleEntity>> responsibles, JsonGenerator generator) throws IOException {
+        generator.writeStartObject();
+        try {
+            this.writeGerCompanyFields(entity, lookupService, returnParticipantDetails, responsibles, new GeneratorRecordOutput(generator, false));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        generator.writeEndObject();
+    }
+
+    private Map<Integer, List<ResponsibleEntity>> lookupResponsibles(GeoLookupService lookupService, CompanyEntity entity, boolean returnParticipantDetails) {
+        if (!returnParticipantDetails) {
+            return Collections.emptyMap();
+        }
+        return this.lookupResponsibles(lookupService.getSession(), Collections.singletonList(entity.getGerNr()));
+    }
+
+    /**
+     * Look up the responsibles of the given GER companies, a chunk of companies per query
+     * @return Responsibles by GER number
+     */
+    public Map<Integer, List<ResponsibleEntity>> lookupResponsibles(Session session, Collection<Integer> gerNumbers) {
+        HashMap<Integer, List<ResponsibleEntity>> responsibles = new HashMap<>();
+        for (List<Integer> chunk : ParallelBulkWriter.partition(gerNumbers, this.participantLookupChunkSize)) {
+            List<ResponsibleEntity> responsibleEntities = session.createQuery(
+                    "select r from " + ResponsibleEntity.class.getCanonicalName() + " r where r.gerNr in :gerNumbers",
+                    ResponsibleEntity.class
+            ).setParameterList("gerNumbers", chunk).getResultList();
+            for (ResponsibleEntity responsibleEntity : responsibleEntities) {
+                responsibles.computeIfAbsent(responsibleEntity.getGerNr(), gerNumber -> new ArrayList<>()).add(responsibleEntity);
+            }
+        }
+        return responsibles;
+    }
+
+    /**
+     * The GER numbers of the given companies, for passing to {@link #lookupResponsibles(Session, Collection)}
+     */
+    public Set<Integer> getGerNumbers(Collection<CompanyEntity> entities) {
+        HashSet<Integer> gerNumbers = new HashSet<>();
+        for (CompanyEntity entity : entities) {
+            gerNumbers.add(entity.getGerNr());
+        }
+        return gerNumbers;
+    }
+
+    private void writeGerCompanyFields(CompanyEntity entity, GeoLookupService lookupService, boolean returnParticipantDetails, Map<Integer, List<ResponsibleEntity>> responsibles, RecordOutput output) {
+        output.put(FieldNames.SOURCE, "GER");
+        output.put(FieldNames.CVR_NUMMER, entity.getGerNr());
+        output.put(
+                FieldNames.NAVN,
                 (entity.getEndDate() != null ? "historisk ":"") +
                         entity.getName()
         );
-        root.put("forretningsområde", entity.getBusinessText());
+        output.put(FieldNames.FORRETNINGSOMRAADE, entity.getBusinessText());
 
         String statusCode = gerCompanyLookup.getStatus(entity.getStatusGuid());
-        root.put("statuskode", statusCode);
-        root.put("statuskodedato", entity.getStatusChange() != null ? entity.getStatusChange().format(DateTimeFormatter.ISO_LOCAL_DATE) : null);
+        output.put(FieldNames.STATUSKODE, statusCode);
+        output.put(FieldNames.STATUSKODEDATO, entity.getStatusChange() != null ? entity.getStatusChange().format(DateTimeFormatter.ISO_LOCAL_DATE) : null);
 
         Integer municipalityCode = entity.getMunicipalityCode();
-        root.put("myndighedskode", municipalityCode);
+        output.put(FieldNames.MYNDIGHEDSKODE, municipalityCode);
         if (municipalityCode != null) {
             if (municipalityMap.containsKey(municipalityCode)) {
-                root.put("kommune", municipalityMap.get(municipalityCode));
+                output.put(FieldNames.KOMMUNE, municipalityMap.get(municipalityCode));
             }
         }
 
-        //root.put("vejkode", roadCode);
-        root.put("stedkode", entity.getLocalityCode());
+        //output.put(FieldNames.VEJKODE, roadCode);
+        output.put(FieldNames.STEDKODE, entity.getLocalityCode());
 
         Integer countryCode = entity.getCountryCode();
         if (countryCode != null && countryCode != 0) {
-            root.put("landekode", countryCode);
+            output.put(FieldNames.LANDEKODE, countryCode);
         }
 
         if (countryCode == 8 || countryCode == 406) { // Denmark or Greenland
@@ -154,11 +228,11 @@ public class CvrOutputWrapperPrisme extends OutputWrapper<CompanyRecord> {
                     address = address2;
                 }
             }
-            root.put("adresse", address);
+            output.put(FieldNames.ADRESSE, address);
 
             String boxNr = entity.getBoxNr();
             if (boxNr != null && !boxNr.trim().isEmpty()) {
-                root.put("postboks", boxNr.trim());
+                output.put(FieldNames.POSTBOKS, boxNr.trim());
             }
 
             Matcher addressMatcher = null;
@@ -167,15 +241,15 @@ public class CvrOutputWrapperPrisme extends OutputWrapper<CompanyRecord> {
                 addressMatcher = postcodePattern.matcher(postcodeField);
             }
             if (addressMatcher != null && addressMatcher.find()) {
-                root.put("postnummer", addressMatcher.group(1));
-                root.put("bynavn", addressMatcher.group(2));
+                output.put(FieldNames.POSTNUMMER, addressMatcher.group(1));
+                output.put(FieldNames.BYNAVN, addressMatcher.group(2));
             } else {
                 Integer postCode = entity.getPostNr();
                 if (postCode != null && postCode != 0) {
-                    root.put("postnummer", postCode);
+                    output.put(FieldNames.POSTNUMMER, postCode);
                     String district = lookupService.getPostalCodeDistrict(postCode);
                     if (district != null) {
-                        root.put("bynavn", district);
+                        output.put(FieldNames.BYNAVN, district);
                     }
                 }
             }
@@ -189,35 +263,33 @@ public class CvrOutputWrapperPrisme extends OutputWrapper<CompanyRecord> {
                     address.add(part);
                 }
             }
-            root.put("adresse", address.toString());
+            output.put(FieldNames.ADRESSE, address.toString());
         }
 
 
         String coName = entity.getCoName();
         if (coName != null) {
-            root.put("co", coName);
+            output.put(FieldNames.CO, coName);
         }
 
 
         String emailAddress = entity.getEmail();
         if (emailAddress != null) {
-            root.put("email", emailAddress);
+            output.put(FieldNames.EMAIL, emailAddress);
         }
 
         String phoneNumber = entity.getPhone();
         if (phoneNumber != null) {
-            root.put("telefon", phoneNumber);
+            output.put(FieldNames.TELEFON, phoneNumber);
         }
 
         String faxNumber = entity.getFax();
         if (faxNumber != null) {
-            root.put("telefax", faxNumber);
+            output.put(FieldNames.TELEFAX, faxNumber);
         }
 
         if (returnParticipantDetails) {
-            ResponsibleQuery responsibleQuery = new ResponsibleQuery();
-            responsibleQuery.setGerNr(entity.getGerNr());
-            List<ResponsibleEntity> responsibleEntities = QueryManager.getAllEntities(lookupService.getSession(), responsibleQuery, ResponsibleEntity.class);
+            List<ResponsibleEntity> responsibleEntities = responsibles.getOrDefault(entity.getGerNr(), Collections.emptyList());
             if (!responsibleEntities.isEmpty()) {
                 ArrayNode participantsNode = objectMapper.createArrayNode();
                 for (ResponsibleEntity responsibleEntity : responsibleEntities) {
@@ -233,66 +305,83 @@ public class CvrOutputWrapperPrisme extends OutputWrapper<CompanyRecord> {
                     }
                     participantsNode.add(responsibleNode);
                 }
-                root.set("deltagere", participantsNode);
+                output.set(FieldNames.DELTAGERE, participantsNode);
             }
         }
-
-        return root;
     }
 
 
 
     protected ObjectNode wrapRecord(CompanyRecord record, GeoLookupService lookupService, boolean returnParticipantDetails) {
-        ObjectNode root = objectMapper.createObjectNode();
+        Map<Long, ParticipantRecord> participants = returnParticipantDetails ?
+                this.lookupParticipants(lookupService.getSession(), this.getParticipantUnitNumbers(Collections.singletonList(record))) :
+                Collections.emptyMap();
+        return this.wrapRecord(record, lookupService, returnParticipantDetails, participants);
+    }
 
-        root.put("source", "CVR");
-        root.put("cvrNummer", record.getCvrNumber());
+    /**
+     * Wrap a company record, taking participant details from participants already looked up with
+     * {@link #lookupParticipants(Session, Collection)}, so a batch of companies can share one lookup
+     */
+    protected ObjectNode wrapRecord(CompanyRecord record, GeoLookupService lookupService, boolean returnParticipantDetails, Map<Long, ParticipantRecord> participants) {
+        TreeRecordOutput output = new TreeRecordOutput(objectMapper.createObjectNode(), false);
+        this.writeRecordFields(record, lookupService, returnParticipantDetails, participants, output);
+        return output.getNode();
+    }
 
-        SecNameRecord nameRecord = this.getLastUpdated(record.getNames());
-        if (nameRecord != null) {
-            root.put("navn", nameRecord.getName());
+    /**
+     * Write a company record directly to a generator, as an object. The output is the same as
+     * {@link #wrapRecord(CompanyRecord, GeoLookupService, boolean, Map)}, but only the participant list is built as a tree
+     */
+    protected void writeRecord(CompanyRecord record, GeoLookupService lookupService, boolean returnParticipantDetails, Map<Long, ParticipantRecord> participants, JsonGenerator generator) throws IOException {
+        generator.writeStartObject();
+        try {
+            this.writeRecordFields(record, lookupService, returnParticipantDetails, participants, new GeneratorRecordOutput(generator, false));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
         }
+        generator.writeEndObject();
+    }
 
-        CompanyIndustryRecord industryRecord = this.getLastUpdated(record.getPrimaryIndustry());
-        if (industryRecord != null) {
-            root.put("forretningsområde", industryRecord.getIndustryText());
+    private void writeRecordFields(CompanyRecord record, GeoLookupService lookupService, boolean returnParticipantDetails, Map<Long, ParticipantRecord> participants, RecordOutput output) {
+        output.put(FieldNames.SOURCE, "CVR");
+        output.put(FieldNames.CVR_NUMMER, record.getCvrNumber());
+
+        CompanyCurrentView current = new CompanyCurrentView(record);
+
+        SecNameRecord nameRecord = current.getName();
+        if (nameRecord != null) {
+            output.put(FieldNames.NAVN, nameRecord.getName());
         }
 
-        ArrayList<CompanyStatusRecord> statusRecords = new ArrayList<>(record.getCompanyStatus());
-        if (record.getMetadata() != null) {
-            CompanyStatusRecord metaStatusRecord = record.getMetadata().getCompanyStatusRecord(record);
-            if (metaStatusRecord != null) {
-                statusRecords.add(metaStatusRecord);
-            }
+        CompanyIndustryRecord industryRecord = current.getPrimaryIndustry();
+        if (industryRecord != null) {
+            output.put(FieldNames.FORRETNINGSOMRAADE, industryRecord.getIndustryText());
         }
 
-        CompanyStatusRecord statusRecord = this.getLastUpdated(statusRecords);
+        CompanyStatusRecord statusRecord = current.getStatus();
         if (statusRecord != null) {
-            root.put("statuskode", statusRecord.getStatus());
-            root.put("statuskodedato", statusRecord.getValidFrom() != null ? statusRecord.getValidFrom().format(DateTimeFormatter.ISO_LOCAL_DATE) : null);
+            output.put(FieldNames.STATUSKODE, statusRecord.getStatus());
+            output.put(FieldNames.STATUSKODEDATO, statusRecord.getValidFrom() != null ? statusRecord.getValidFrom().format(DateTimeFormatter.ISO_LOCAL_DATE) : null);
         }
 
-        AddressRecord addressRecord = this.getLastUpdated(record.getPostalAddress());
-
-        if (addressRecord == null) {
-            addressRecord = this.getLastUpdated(record.getLocationAddress());
-        }
+        AddressRecord addressRecord = current.getAddress();
         if (addressRecord != null) {
             AddressMunicipalityRecord municipality = addressRecord.getMunicipality();
             int municipalityCode = 0;
             if (municipality != null) {
                 municipalityCode = municipality.getMunicipalityCode();
-                root.put("myndighedskode", municipalityCode);
-                root.put("kommune", municipality.getMunicipalityName());
+                output.put(FieldNames.MYNDIGHEDSKODE, municipalityCode);
+                output.put(FieldNames.KOMMUNE, municipality.getMunicipalityName());
             }
 
             int roadCode = addressRecord.getRoadCode();
             if (roadCode > 0) {
-                root.put("vejkode", roadCode);
+                output.put(FieldNames.VEJKODE, roadCode);
                 if (municipalityCode > 0 && lookupService != null) {
                     GeoLookupDTO lookup = lookupService.doLookup(municipalityCode, roadCode);
                     if (lookup.getLocalityCodeNumber() != 0) {
-                        root.put("stedkode", lookup.getLocalityCodeNumber());
+                        output.put(FieldNames.STEDKODE, lookup.getLocalityCodeNumber());
                     }
                 }
             }
@@ -323,48 +412,123 @@ public class CvrOutputWrapperPrisme extends OutputWrapper<CompanyRecord> {
             String addressFormattedString = addressFormatted.toString();
 
             if (!addressFormattedString.isEmpty()) {
-                root.put("adresse", addressFormattedString);
+                output.put(FieldNames.ADRESSE, addressFormattedString);
             }
             if (addressRecord.getPostBox() != null && addressRecord.getPostBox() != "") {
-                root.put("postboks", Integer.parseInt(addressRecord.getPostBox()));
+                output.put(FieldNames.POSTBOKS, Integer.parseInt(addressRecord.getPostBox()));
             }
 
             CvrPostCode postCode = addressRecord.getPost();
             if (addressRecord.getPostnummer() != 0) {
-                root.put("postnummer", addressRecord.getPostnummer());
+                output.put(FieldNames.POSTNUMMER, addressRecord.getPostnummer());
             }
             if (addressRecord.getPostdistrikt() != null) {
-                root.put("bynavn", addressRecord.getPostdistrikt());
+                output.put(FieldNames.BYNAVN, addressRecord.getPostdistrikt());
             }
-            root.put("landekode", addressRecord.getCountryCode());
+            output.put(FieldNames.LANDEKODE, addressRecord.getCountryCode());
 
             String coName = addressRecord.getCoName();
             if (coName != null) {
-                root.put("co", coName);
+                output.put(FieldNames.CO, coName);
             }
         }
 
-        ContactRecord emailAddress = this.getLastUpdated(record.getEmailAddress());
+        ContactRecord emailAddress = current.getEmailAddress();
         if (emailAddress != null) {
-            root.put("email", emailAddress.getContactInformation());
+            output.put(FieldNames.EMAIL, emailAddress.getContactInformation());
         }
-        ContactRecord phoneNumber = this.getLastUpdated(record.getPhoneNumber());
+        ContactRecord phoneNumber = current.getPhoneNumber();
         if (phoneNumber != null) {
-            root.put("telefon", phoneNumber.getContactInformation());
+            output.put(FieldNames.TELEFON, phoneNumber.getContactInformation());
         }
-        ContactRecord faxNumber = this.getLastUpdated(record.getFaxNumber());
+        ContactRecord faxNumber = current.getFaxNumber();
         if (faxNumber != null) {
-            root.put("telefax", faxNumber.getContactInformation());
+            output.put(FieldNames.TELEFAX, faxNumber.getContactInformation());
         }
 
         if (returnParticipantDetails) {
-            root.set("deltagere", this.getParticipants(record));
+            output.set(FieldNames.DELTAGERE, this.getParticipants(record, participants));
         }
+    }
 
-        return root;
+    /**
+     * Find the unit numbers of all participants in the given companies which will be included in the output,
+     * i.e. persons and other participants with a current function in an organization
+     */
+    public Set<Long> getParticipantUnitNumbers(Collection<CompanyRecord> records) {
+        HashSet<Long> unitNumbers = new HashSet<>();
+        OffsetDateTime current = OffsetDateTime.now();
+        Bitemporality now = new Bitemporality(current, current, current, current);
+        for (CompanyRecord record : records) {
+            for (CompanyParticipantRelationRecord participant : record.getParticipants()) {
+                RelationParticipantRecord relationParticipantRecord = participant.getRelationParticipantRecord();
+                if (relationParticipantRecord != null && ("PERSON".equals(relationParticipantRecord.unitType) || "ANDEN_DELTAGER".equals(relationParticipantRecord.unitType))) {
+                    if (this.hasCurrentFunction(participant, now)) {
+                        unitNumbers.add(relationParticipantRecord.getUnitNumber());
+                    }
+                }
+            }
+        }
+        return unitNumbers;
+    }
+
+    private boolean hasCurrentFunction(CompanyParticipantRelationRecord participant, Bitemporality now) {
+        for (OrganizationRecord organization : participant.getOrganizations()) {
+            for (OrganizationMemberdataRecord memberdataRecord : organization.getMemberData()) {
+                for (AttributeRecord memberAttribute : memberdataRecord.getAttributes()) {
+                    if ("FUNKTION".equals(memberAttribute.getType())) {
+                        AttributeValueRecord memberAttributeValue = CompanyCurrentView.findLastUpdated(memberAttribute.getValues());
+                        if (memberAttributeValue != null && memberAttributeValue.getBitemporality().contains(now)) {
+                            return true;
+                        }
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Look up participants by unit number, a chunk of unit numbers at a time
+     * @return Found participants, by unit number
+     */
+    public Map<Long, ParticipantRecord> lookupParticipants(Session session, Collection<Long> unitNumbers) {
+        HashMap<Long, ParticipantRecord> participants = new HashMap<>();
+        for (List<Long> chunk : ParallelBulkWriter.partition(unitNumbers, this.participantLookupChunkSize)) {
+            ArrayList<String> keys = new ArrayList<>(chunk.size());
+            for (Long unitNumber : chunk) {
+                keys.add(Long.toString(unitNumber, 10));
+            }
+            try {
+                this.addParticipants(participants, directLookup.participantLookup(session, keys));
+            } catch (Exception e) {
+                if (keys.size() == 1) {
+                    log.warn("Participant lookup failed for " + keys.get(0), e);
+                    continue;
+                }
+                log.warn("Participant lookup failed for a chunk of " + keys.size() + ", retrying one at a time", e);
+                // Retry the chunk one key at a time, so one bad participant doesn't lose the details of the others
+                for (String key : keys) {
+                    try {
+                        this.addParticipants(participants, directLookup.participantLookup(session, Collections.singletonList(key)));
+                    } catch (Exception e1) {
+                        log.warn("Participant lookup failed for " + key, e1);
+                    }
+                }
+            }
+        }
+        return participants;
+    }
+
+    private void addParticipants(Map<Long, ParticipantRecord> participants, Iterable<ParticipantRecord> participantRecords) {
+        for (ParticipantRecord participantRecord : participantRecords) {
+            if (participantRecord != null) {
+                participants.put(participantRecord.getUnitNumber(), participantRecord);
+            }
+        }
     }
 
-    protected ArrayNode getParticipants(CompanyRecord record) {
+    protected ArrayNode getParticipants(CompanyRecord record, Map<Long, ParticipantRecord> participants) {
         ArrayNode participantsOutput = objectMapper.createArrayNode();
         OffsetDateTime current = OffsetDateTime.now();
         Bitemporality now = new Bitemporality(current, current, current, current);
@@ -381,7 +545,7 @@ public class CvrOutputWrapperPrisme extends OutputWrapper<CompanyRecord> {
                     for (OrganizationMemberdataRecord memberdataRecord : organization.getMemberData()) {
                         for (AttributeRecord memberAttribute : memberdataRecord.getAttributes()) {
                             if ("FUNKTION".equals(memberAttribute.getType())) {
-                                AttributeValueRecord memberAttributeValue = getLastUpdated(memberAttribute.getValues());
+                                AttributeValueRecord memberAttributeValue = CompanyCurrentView.findLastUpdated(memberAttribute.getValues());
                                 if (memberAttributeValue != null && memberAttributeValue.getBitemporality().contains(now)) {
                                     ObjectNode orgMemberNode = objectMapper.createObjectNode();
                                     orgMemberNode.put("funktion", memberAttributeValue.getValue());
@@ -411,19 +575,14 @@ public class CvrOutputWrapperPrisme extends OutputWrapper<CompanyRecord> {
                 if (hasEligibleParticipant) {
                     long unitNumber = relationParticipantRecord.getUnitNumber();
                     participantOutput.put("enhedsNummer", unitNumber);
-                    try {
-                        //It is expected to find only one participant
-                        ParticipantRecord participantRecord = directLookup.participantLookup(lookupService.getSession(), Arrays.asList(Long.toString(unitNumber, 10))).iterator().next();
-                        if (participantRecord != null) {
-                            Long businessKey = participantRecord.getBusinessKey();
-                            if (Objects.equals(businessKey, unitNumber)) {
-                                // Foreigner
-                            } else {
-                                participantOutput.put("deltagerPnr", String.format("%010d", businessKey));
-                            }
+                    ParticipantRecord participantRecord = participants.get(unitNumber);
+                    if (participantRecord != null) {
+                        Long businessKey = participantRecord.getBusinessKey();
+                        if (Objects.equals(businessKey, unitNumber)) {
+                            // Foreigner
+                        } else if (businessKey != null) {
+                            participantOutput.put("deltagerPnr", String.format("%010d", businessKey));
                         }
-                    } catch (Exception e) {
-                        log.info(e.getMessage());
                     }
                     boolean ownerMatch = false;
                     for (MembershipDescription d : membershipDescriptions) {
@@ -440,25 +599,6 @@ public class CvrOutputWrapperPrisme extends OutputWrapper<CompanyRecord> {
         return participantsOutput;
     }
 
-    private <T extends CvrBitemporalRecord> T getLastUpdated(Collection<T> records) {
-        ArrayList<T> list = new ArrayList<>();
-        for (T record : records) {
-            if (record != null) {
-                list.add(record);
-            }
-        }
-        if (list.size() > 1) {
-            list.sort(
-                    Comparator.comparing(
-                            CvrBitemporalRecord::getValidFrom, Comparator.nullsFirst(Comparator.naturalOrder())
-                    ).thenComparing(
-                            CvrBitemporalRecord::getLastUpdated, Comparator.nullsFirst(Comparator.naturalOrder())
-                    )
-            );
-        }
-        return list.isEmpty() ? null : list.get(list.size()-1);
-    }
-
     private String emptyIfNull(String text) {
         if (text == null) return "";
         return text;
@@ -1,6 +1,6 @@
 package dk.magenta.datafordeler.prisme;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ArrayNode;
@@ -24,10 +24,12 @@ import dk.magenta.datafordeler.cvr.query.CompanyRecordQuery;
 import dk.magenta.datafordeler.cvr.records.*;
 import dk.magenta.datafordeler.geo.GeoLookupService;
 import dk.magenta.datafordeler.ger.data.company.CompanyEntity;
+import dk.magenta.datafordeler.ger.data.responsible.ResponsibleEntity;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.hibernate.Session;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.MediaType;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestMapping;
@@ -36,10 +38,15 @@ import org.springframework.web.bind.annotation.RestController;
 import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.servlet.http.HttpServletRequest;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.regex.Pattern;
 
 /**
@@ -55,6 +62,9 @@ public class CvrRecordCombinedService {
     @Autowired
     ObjectMapper objectMapper;
 
+    @Autowired
+    private PrismeMetrics metrics;
+
     @Autowired
     private DafoUserManager dafoUserManager;
 
@@ -71,15 +81,61 @@ public class CvrRecordCombinedService {
     @Autowired
     private CvrOutputWrapperPrisme cvrWrapper;
 
+    @Autowired
+    private GeoLookupCache geoLookupCache;
+
     private Logger log = LogManager.getLogger(CvrRecordCombinedService.class.getCanonicalName());
 
     @Autowired
     private GerCompanyLookup gerCompanyLookup;
 
+    @Autowired
+    private CompanyProjection companyProjection;
+
+    /**
+     * When enabled, bulk requests look up GER in the background while CVR is looked up. The background lookups share
+     * a pool of lookupThreads, with at most lookupQueueSize lookups waiting for it. When that is full, requests look
+     * up GER after CVR on their own thread instead of waiting in line
+     */
+    @Value("${dafo.prisme.cvr.combined.concurrentLookup:false}")
+    private boolean concurrentLookup;
+
+    @Value("${dafo.prisme.cvr.combined.lookupThreads:4}")
+    private int lookupThreads;
+
+    @Value("${dafo.prisme.cvr.combined.lookupQueueSize:8}")
+    private int lookupQueueSize;
+
+    private ExecutorService lookupExecutor;
+
     @PostConstruct
     public void init() {
         this.monitorService.addAccessCheckPoint("/prisme/cvr/3/1234");
         this.monitorService.addAccessCheckPoint("POST", "/prisme/cvr/3/", "{}");
+        AtomicInteger threadCounter = new AtomicInteger();
+        int threads = Math.max(1, this.lookupThreads);
+        this.lookupExecutor = new ThreadPoolExecutor(
+                threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, this.lookupQueueSize)),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "prisme-ger-lookup-" + threadCounter.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+        );
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        this.lookupExecutor.shutdownNow();
+    }
+
+    public boolean isConcurrentLookup() {
+        return this.concurrentLookup;
+    }
+
+    public void setConcurrentLookup(boolean concurrentLookup) {
+        this.concurrentLookup = concurrentLookup;
     }
 
     public static final String PARAM_CVR_NUMBER = "cvrNumber";
@@ -88,7 +144,7 @@ public class CvrRecordCombinedService {
 
     @RequestMapping(method = RequestMethod.GET, path = "/{cvrNummer}", produces = {MediaType.APPLICATION_JSON_VALUE})
     public String getSingle(@PathVariable("cvrNummer") String cvrNummer, HttpServletRequest request)
-            throws DataFordelerException, JsonProcessingException {
+            throws DataFordelerException, IOException {
 
         boolean returnParticipantDetails = "1".equals(request.getParameter(PARAM_RETURN_PARTICIPANT_DETAILS));
 
@@ -100,9 +156,19 @@ public class CvrRecordCombinedService {
         );
         this.checkAndLogAccess(loggerHelper, returnParticipantDetails);
 
+        if (!returnParticipantDetails && companyProjection.isReady()) {
+            try {
+                byte[] projected = companyProjection.get(Integer.toString(Integer.parseInt(cvrNummer, 10)));
+                if (projected != null) {
+                    return new String(projected, StandardCharsets.UTF_8);
+                }
+            } catch (NumberFormatException e) {
+            }
+        }
+
         ArrayList<String> cvrNumbers = new ArrayList<String>();
         cvrNumbers.add(cvrNummer);
-        ObjectNode formattedRecord = getJSONFromCvrList(cvrNumbers, returnParticipantDetails, false);
+        ObjectNode formattedRecord = getJSONFromCvrList(cvrNumbers, returnParticipantDetails);
 
         if (formattedRecord != null && formattedRecord.size()>0) {
             return objectMapper.writeValueAsString(formattedRecord);
@@ -150,63 +216,249 @@ public class CvrRecordCombinedService {
         );
         this.checkAndLogAccess(loggerHelper, returnParticipantDetails);
 
-        ObjectNode formattedRecord = getJSONFromCvrList(cvrNumbers, returnParticipantDetails, true);
+        // Companies in the projection are written as they are, the rest are looked up
+        LinkedHashMap<String, byte[]> projected = new LinkedHashMap<>();
+        final List<String> remaining = new ArrayList<>();
+        if (cvrNumbers != null && !returnParticipantDetails && companyProjection.isReady()) {
+            for (String cvrNumber : cvrNumbers) {
+                byte[] output = null;
+                String key = null;
+                try {
+                    key = Integer.toString(Integer.parseInt(cvrNumber, 10));
+                    output = companyProjection.get(key);
+                } catch (NumberFormatException e) {
+                }
+                if (output != null) {
+                    projected.put(key, output);
+                } else {
+                    remaining.add(cvrNumber);
+                }
+            }
+        } else if (cvrNumbers != null) {
+            remaining.addAll(cvrNumbers);
+        }
 
-        return new StreamingResponseBody() {
+        return metrics.instrumentBulk("cvr/3", new StreamingResponseBody() {
             @Override
             public void writeTo(OutputStream outputStream) throws IOException {
-                outputStream.write(objectMapper.writeValueAsString(formattedRecord).getBytes());
+                JsonGenerator generator = objectMapper.getFactory().createGenerator(outputStream);
+                generator.setPrettyPrinter(new RowSeparatorPrettyPrinter());
+                // A company may be found more than once, but its key must only be written once
+                HashSet<String> written = new HashSet<>();
+                generator.writeStartObject();
+                for (Map.Entry<String, byte[]> entry : projected.entrySet()) {
+                    if (written.add(entry.getKey())) {
+                        generator.writeFieldName(entry.getKey());
+                        generator.writeRawValue(new String(entry.getValue(), StandardCharsets.UTF_8));
+                    }
+                }
+                generator.flush();
+                metrics.recordsEmitted(written.size());
+                try {
+                    CvrRecordCombinedService.this.wrapCvrList(remaining, returnParticipantDetails, (cvrNumber, company) -> {
+                        if (written.add(cvrNumber)) {
+                            generator.writeFieldName(cvrNumber);
+                            objectMapper.writeTree(generator, company);
+                            generator.flush();
+                            metrics.recordsEmitted(1);
+                        }
+                    });
+                } catch (DataFordelerException e) {
+                    log.error("Failed looking up companies", e);
+                    throw new IOException(e);
+                }
+                generator.writeEndObject();
+                generator.flush();
             }
-        };
+        });
+    }
+
+    /**
+     * Receives each wrapped company as soon as it is ready
+     */
+    private interface CompanyOutput {
+        void accept(String cvrNumber, ObjectNode company) throws IOException;
+    }
+
+    private ObjectNode getJSONFromCvrList(List<String> cvrNumbers, boolean returnParticipantDetails) throws DataFordelerException, IOException {
+        ArrayList<ObjectNode> found = new ArrayList<>();
+        // A single company is looked up on the request thread, as handing it to another thread would only add latency
+        this.wrapCvrListSequentially(cvrNumbers, returnParticipantDetails, (cvrNumber, company) -> found.add(company));
+        return found.isEmpty() ? objectMapper.createObjectNode() : found.get(found.size() - 1);
+    }
+
+    /**
+     * Look up companies in CVR and GER, and pass each wrapped company to the output. Companies found in CVR take
+     * precedence over GER companies with the same number
+     */
+    private void wrapCvrList(List<String> cvrNumbers, boolean returnParticipantDetails, CompanyOutput output) throws DataFordelerException, IOException {
+        if (this.concurrentLookup && cvrNumbers != null && !cvrNumbers.isEmpty()) {
+            this.wrapCvrListConcurrently(cvrNumbers, returnParticipantDetails, output);
+        } else {
+            this.wrapCvrListSequentially(cvrNumbers, returnParticipantDetails, output);
+        }
     }
 
-    private ObjectNode getJSONFromCvrList(List<String> cvrNumbers, boolean returnParticipantDetails, boolean asList) throws DataFordelerException, JsonProcessingException {
+    /**
+     * Look up companies, first in CVR and then in GER for the numbers not found in CVR
+     */
+    private void wrapCvrListSequentially(List<String> cvrNumbers, boolean returnParticipantDetails, CompanyOutput output) throws DataFordelerException, IOException {
         Session session = sessionManager.getSessionFactory().openSession();
-        GeoLookupService service = new GeoLookupService(session);
+        GeoLookupService service = geoLookupCache.getLookupService(session);
         try {
 
-            ObjectNode formattedRecord = objectMapper.createObjectNode();
-
             if (cvrNumbers!=null && !cvrNumbers.isEmpty()) {
+                long start = System.nanoTime();
                 Collection<CompanyRecord> companyEntities = collectiveLookup.getCompanies(session, cvrNumbers);
+                metrics.recordStage(PrismeMetrics.STAGE_CVR_LOOKUP, start);
                 if (!companyEntities.isEmpty()) {
+                    Map<Long, ParticipantRecord> participants = returnParticipantDetails ?
+                            cvrWrapper.lookupParticipants(session, cvrWrapper.getParticipantUnitNumbers(companyEntities)) :
+                            Collections.emptyMap();
                     Iterator<CompanyRecord> companyEntityIterator = companyEntities.iterator();
                     while(companyEntityIterator.hasNext()) {
                         CompanyRecord companyRecord = companyEntityIterator.next();
                         String cvrNumber = Integer.toString(companyRecord.getCvrNumber());
-                        if(asList) {
-                            formattedRecord.set(cvrNumber, cvrWrapper.wrapRecord(companyRecord, service, returnParticipantDetails));
-                        } else {
-                            formattedRecord = cvrWrapper.wrapRecord(companyRecord, service, returnParticipantDetails);
-                        }
+                        output.accept(cvrNumber, cvrWrapper.wrapRecord(companyRecord, service, returnParticipantDetails, participants));
                         cvrNumbers.remove(cvrNumber);
                     }
                 }
             }
 
             if (cvrNumbers!=null && !cvrNumbers.isEmpty()) {
-                Collection<CompanyEntity> companyEntities = gerCompanyLookup.lookup(session, cvrNumbers);
+                Collection<CompanyEntity> companyEntities = metrics.time(PrismeMetrics.STAGE_GER_LOOKUP, () -> gerCompanyLookup.lookup(session, cvrNumbers));
                 if (!companyEntities.isEmpty()) {
+                    Map<Integer, List<ResponsibleEntity>> responsibles = returnParticipantDetails ?
+                            cvrWrapper.lookupResponsibles(session, cvrWrapper.getGerNumbers(companyEntities)) :
+                            Collections.emptyMap();
                     Iterator<CompanyEntity> companyEntityIterator = companyEntities.iterator();
                     while(companyEntityIterator.hasNext()) {
                         CompanyEntity companyEntity = companyEntityIterator.next();
-                        String gerNo = Integer.toString(companyEntity.getGerNr());
-                        if(asList) {
-                            formattedRecord.set(Integer.toString(companyEntity.getGerNr()), cvrWrapper.wrapGerCompany(companyEntity, service, returnParticipantDetails));
-                        } else {
-                            formattedRecord = cvrWrapper.wrapGerCompany(companyEntity, service, returnParticipantDetails);
-                        }
-
+                        output.accept(Integer.toString(companyEntity.getGerNr()), cvrWrapper.wrapGerCompany(companyEntity, service, returnParticipantDetails, responsibles));
                     }
                 }
             }
-
-            return formattedRecord;
         } finally {
             session.close();
         }
     }
 
+    // Marks the end of the GER companies passed from the background lookup
+    private static final Map.Entry<Integer, ObjectNode> GER_DONE = new AbstractMap.SimpleImmutableEntry<>(null, null);
+
+    /**
+     * Look up companies in CVR on the calling thread while GER is looked up on a separate session in the background.
+     * Each company is output as soon as it is wrapped. GER companies are held back only until the CVR lookup has
+     * shown which numbers CVR has, and the GER companies with those numbers are skipped
+     */
+    private void wrapCvrListConcurrently(List<String> cvrNumbers, boolean returnParticipantDetails, CompanyOutput output) throws DataFordelerException, IOException {
+        ArrayList<String> gerNumbers = new ArrayList<>(cvrNumbers);
+        LinkedBlockingQueue<Map.Entry<Integer, ObjectNode>> gerCompanies = new LinkedBlockingQueue<>();
+        // Set once CVR has been looked up, so the background lookup can skip the companies CVR has
+        AtomicReference<Set<Integer>> cvrFound = new AtomicReference<>(Collections.emptySet());
+        Future<?> gerFuture;
+        try {
+            gerFuture = this.lookupExecutor.submit(() -> {
+                try {
+                    CvrRecordCombinedService.this.wrapGerCompanies(gerNumbers, returnParticipantDetails, cvrFound,
+                            (gerNumber, company) -> gerCompanies.add(new AbstractMap.SimpleImmutableEntry<>(gerNumber, company))
+                    );
+                } finally {
+                    gerCompanies.add(GER_DONE);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            log.debug("GER lookup queue is full, looking up GER after CVR");
+            this.wrapCvrListSequentially(cvrNumbers, returnParticipantDetails, output);
+            return;
+        }
+        try {
+            HashSet<Integer> foundInCvr = new HashSet<>();
+            boolean gerDone = false;
+            try (Session session = sessionManager.getSessionFactory().openSession()) {
+                GeoLookupService service = geoLookupCache.getLookupService(session);
+                long start = System.nanoTime();
+                Collection<CompanyRecord> companyEntities = collectiveLookup.getCompanies(session, cvrNumbers);
+                metrics.recordStage(PrismeMetrics.STAGE_CVR_LOOKUP, start);
+                for (CompanyRecord companyRecord : companyEntities) {
+                    foundInCvr.add(companyRecord.getCvrNumber());
+                }
+                cvrFound.set(foundInCvr);
+                gerDone = this.outputGerCompanies(gerCompanies, foundInCvr, output, false);
+                Map<Long, ParticipantRecord> participants = (returnParticipantDetails && !companyEntities.isEmpty()) ?
+                        cvrWrapper.lookupParticipants(session, cvrWrapper.getParticipantUnitNumbers(companyEntities)) :
+                        Collections.emptyMap();
+                for (CompanyRecord companyRecord : companyEntities) {
+                    output.accept(Integer.toString(companyRecord.getCvrNumber()), cvrWrapper.wrapRecord(companyRecord, service, returnParticipantDetails, participants));
+                    if (!gerDone) {
+                        gerDone = this.outputGerCompanies(gerCompanies, foundInCvr, output, false);
+                    }
+                }
+            }
+            if (!gerDone) {
+                this.outputGerCompanies(gerCompanies, foundInCvr, output, true);
+            }
+            // Rethrows a failure in the GER lookup
+            gerFuture.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } finally {
+            gerFuture.cancel(true);
+        }
+    }
+
+    /**
+     * Output the GER companies passed from the background lookup, except those found in CVR
+     * @param wait Whether to wait for the lookup to finish, rather than output only the companies that are ready
+     * @return Whether all GER companies have been output
+     */
+    private boolean outputGerCompanies(BlockingQueue<Map.Entry<Integer, ObjectNode>> gerCompanies, Set<Integer> foundInCvr, CompanyOutput output, boolean wait) throws IOException, InterruptedException {
+        Map.Entry<Integer, ObjectNode> gerCompany;
+        while ((gerCompany = wait ? gerCompanies.take() : gerCompanies.poll()) != null) {
+            if (gerCompany == GER_DONE) {
+                return true;
+            }
+            if (!foundInCvr.contains(gerCompany.getKey())) {
+                output.accept(Integer.toString(gerCompany.getKey()), gerCompany.getValue());
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Receives each wrapped GER company from the background lookup
+     */
+    private interface GerCompanyOutput {
+        void accept(Integer gerNumber, ObjectNode company);
+    }
+
+    /**
+     * Look up and wrap GER companies on a session of its own, passing each to the output as soon as it is wrapped.
+     * Companies in cvrFound are skipped, as CVR takes precedence; it may be filled while the lookup is running
+     */
+    private void wrapGerCompanies(List<String> gerNumbers, boolean returnParticipantDetails, AtomicReference<Set<Integer>> cvrFound, GerCompanyOutput output) {
+        try (Session session = sessionManager.getSessionFactory().openSession()) {
+            GeoLookupService service = geoLookupCache.getLookupService(session);
+            Collection<CompanyEntity> companyEntities = metrics.time(PrismeMetrics.STAGE_GER_LOOKUP, () -> gerCompanyLookup.lookup(session, gerNumbers));
+            companyEntities.removeIf(companyEntity -> cvrFound.get().contains(companyEntity.getGerNr()));
+            Map<Integer, List<ResponsibleEntity>> responsibles = returnParticipantDetails && !companyEntities.isEmpty() ?
+                    cvrWrapper.lookupResponsibles(session, cvrWrapper.getGerNumbers(companyEntities)) :
+                    Collections.emptyMap();
+            for (CompanyEntity companyEntity : companyEntities) {
+                if (cvrFound.get().contains(companyEntity.getGerNr())) {
+                    continue;
+                }
+                output.accept(companyEntity.getGerNr(), cvrWrapper.wrapGerCompany(companyEntity, service, returnParticipantDetails, responsibles));
+            }
+        }
+    }
+
 
     protected void checkAndLogAccess(LoggerHelper loggerHelper, boolean includeCpr) throws AccessDeniedException, AccessRequiredException {
         try {
@@ -1,5 +1,6 @@
 package dk.magenta.datafordeler.prisme;
 
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -15,40 +16,37 @@ import dk.magenta.datafordeler.core.fapi.Query;
 import dk.magenta.datafordeler.core.plugin.AreaRestrictionDefinition;
 import dk.magenta.datafordeler.core.user.DafoUserDetails;
 import dk.magenta.datafordeler.core.user.DafoUserManager;
-import dk.magenta.datafordeler.core.util.Bitemporality;
 import dk.magenta.datafordeler.core.util.LoggerHelper;
 import dk.magenta.datafordeler.cpr.CprRolesDefinition;
 import dk.magenta.datafordeler.cvr.CvrPlugin;
-import dk.magenta.datafordeler.cvr.DirectLookup;
 import dk.magenta.datafordeler.cvr.access.CvrAreaRestrictionDefinition;
 import dk.magenta.datafordeler.cvr.access.CvrRolesDefinition;
 import dk.magenta.datafordeler.cvr.query.CompanyRecordQuery;
 import dk.magenta.datafordeler.cvr.records.*;
-import dk.magenta.datafordeler.cvr.records.unversioned.CvrPostCode;
-import dk.magenta.datafordeler.geo.GeoLookupDTO;
 import dk.magenta.datafordeler.geo.GeoLookupService;
 import dk.magenta.datafordeler.ger.data.company.CompanyEntity;
 import dk.magenta.datafordeler.ger.data.responsible.ResponsibleEntity;
-import dk.magenta.datafordeler.ger.data.responsible.ResponsibleQuery;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.hibernate.Session;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.MediaType;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import javax.annotation.PostConstruct;
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.time.OffsetDateTime;
-import java.time.format.DateTimeFormatter;
 import java.util.*;
-import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 @RestController
@@ -61,6 +59,9 @@ public class CvrRecordService {
     @Autowired
     ObjectMapper objectMapper;
 
+    @Autowired
+    protected PrismeMetrics metrics;
+
     @Autowired
     private DafoUserManager dafoUserManager;
 
@@ -71,13 +72,22 @@ public class CvrRecordService {
     protected MonitorService monitorService;
 
     @Autowired
-    private DirectLookup directLookup;
+    protected CvrOutputWrapperPrisme cvrWrapper;
+
+    @Autowired
+    protected GeoLookupCache geoLookupCache;
+
+    @Autowired
+    protected CompanyProjection companyProjection;
 
     private Logger log = LogManager.getLogger(CvrRecordService.class.getCanonicalName());
 
     @Autowired
     private GerCompanyLookup gerCompanyLookup;
 
+    @Value("${dafo.prisme.cvr.bulk.fetchChunkSize:500}")
+    private int fetchChunkSize;
+
     @PostConstruct
     public void init() {
         this.monitorService.addAccessCheckPoint("/prisme/cvr/1/1234");
@@ -123,11 +133,25 @@ public class CvrRecordService {
         );
         this.checkAndLogAccess(loggerHelper, returnParticipantDetails);
 
+        if (this.isProjectionUsable(user, returnParticipantDetails)) {
+            try {
+                String key = Integer.toString(Integer.parseInt(cvrNummer, 10));
+                byte[] projected = this.enableDirectLookup ? companyProjection.getCvr(key) : null;
+                if (projected == null && this.enableGerLookup) {
+                    projected = companyProjection.getGer(key);
+                }
+                if (projected != null) {
+                    return new String(projected, StandardCharsets.UTF_8);
+                }
+            } catch (NumberFormatException e) {
+            }
+        }
+
         HashSet<String> cvrNumbers = new HashSet<>();
         cvrNumbers.add(cvrNummer);
 
         Session session = sessionManager.getSessionFactory().openSession();
-        GeoLookupService service = new GeoLookupService(session);
+        GeoLookupService service = geoLookupCache.getLookupService(session);
         try {
             ObjectNode formattedRecord = null;
 
@@ -163,12 +187,9 @@ public class CvrRecordService {
         return QueryManager.getAllEntities(session, query, CompanyRecord.class);
     }
 
-    protected static final byte[] START_OBJECT = "{".getBytes();
-    protected static final byte[] END_OBJECT = "}".getBytes();
-    protected static final byte[] OBJECT_SEPARATOR = ",\n".getBytes();
 
     @RequestMapping(method = RequestMethod.POST, path = "/", produces = {MediaType.APPLICATION_JSON_VALUE})
-    public StreamingResponseBody getBulk(HttpServletRequest request)
+    public StreamingResponseBody getBulk(HttpServletRequest request, HttpServletResponse response)
             throws AccessDeniedException, AccessRequiredException, InvalidTokenException, InvalidClientInputException, IOException, HttpNotFoundException, InvalidCertificateException {
         JsonNode requestBody;
         try {
@@ -185,6 +206,8 @@ public class CvrRecordService {
 
         final List<String> cvrNumbers = (requestObject.has(PARAM_CVR_NUMBER)) ? this.getCvrNumber(requestObject.get(PARAM_CVR_NUMBER)) : null;
 
+        final ContinuationToken continueAfter = requestObject.has(ContinuationToken.PARAM_CONTINUE_AFTER) ? ContinuationToken.parse(requestObject.get(ContinuationToken.PARAM_CONTINUE_AFTER).asText()) : null;
+
         boolean returnParticipantDetails = "1".equals(request.getParameter(PARAM_RETURN_PARTICIPANT_DETAILS));
 
         DafoUserDetails user = dafoUserManager.getUserFromRequest(request);
@@ -211,42 +234,176 @@ public class CvrRecordService {
             throw new InvalidClientInputException("Please specify at least one CVR number");
         }
 
-        CompanyRecordQuery query = new CompanyRecordQuery();
-        query.setCvrNumre(cvrNumbers);
-        query.setRecordAfter(updatedSince);
-        this.applyAreaRestrictionsToQuery(query, user);
+        // Output is ordered by CVR number, so an interrupted download can be resumed after the last row received
+        TreeSet<String> sortedNumbers = ContinuationToken.sortKeys(cvr);
+        String fingerprint = ContinuationToken.fingerprint(sortedNumbers, updatedSince, returnParticipantDetails);
+        SortedSet<String> remaining = new TreeSet<>(ContinuationToken.remainingKeys(sortedNumbers, fingerprint, continueAfter));
+        response.setHeader(ContinuationToken.HEADER, fingerprint);
+
+        // Companies in the projection are written as they are, the rest are looked up in chunks,
+        // clearing the session after each one so it doesn't grow with the number of companies requested
+        boolean useProjection = updatedSince == null && this.isProjectionUsable(user, returnParticipantDetails);
+        ArrayList<BulkChunk> chunks = new ArrayList<>();
+        for (List<String> chunkNumbers : ParallelBulkWriter.partition(remaining, this.fetchChunkSize)) {
+            BulkChunk chunk = new BulkChunk();
+            ArrayList<String> lookupNumbers = new ArrayList<>();
+            for (String cvrNumber : chunkNumbers) {
+                byte[] output = useProjection ? companyProjection.getCvr(cvrNumber) : null;
+                if (output != null) {
+                    chunk.projected.put(cvrNumber, output);
+                } else {
+                    lookupNumbers.add(cvrNumber);
+                }
+            }
+            if (!lookupNumbers.isEmpty()) {
+                CompanyRecordQuery chunkQuery = new CompanyRecordQuery();
+                chunkQuery.setPageSize(Integer.MAX_VALUE);
+                chunkQuery.setCvrNumre(lookupNumbers);
+                chunkQuery.setRecordAfter(updatedSince);
+                this.applyAreaRestrictionsToQuery(chunkQuery, user);
+                chunk.query = chunkQuery;
+            }
+            chunks.add(chunk);
+        }
 
-        return new StreamingResponseBody() {
+        return metrics.instrumentBulk("cvr/1", new StreamingResponseBody() {
             @Override
             public void writeTo(OutputStream outputStream) throws IOException {
                 Session session = sessionManager.getSessionFactory().openSession();
-                List<CompanyRecord> records = QueryManager.getAllEntities(session, query, CompanyRecord.class);
-                GeoLookupService lookupService = new GeoLookupService(session);
+                // Not closed, as that would close the response stream
+                JsonGenerator generator = objectMapper.getFactory().createGenerator(outputStream);
+                generator.setPrettyPrinter(new RowSeparatorPrettyPrinter());
                 try {
-                    boolean first = true;
-                    outputStream.write(START_OBJECT);
-                    for (CompanyRecord record : records) {
-                        if (!first) {
-                            outputStream.flush();
-                            outputStream.write(OBJECT_SEPARATOR);
-                        } else {
-                            first = false;
-                        }
-
-                        outputStream.write(("\"" + record.getCvrNumber() + "\":").getBytes());
-                        outputStream.write(
-                                objectMapper.writeValueAsString(
-                                        CvrRecordService.this.wrapRecord(record, lookupService, returnParticipantDetails)
-                                ).getBytes("UTF-8")
-                        );
+                    generator.writeStartObject();
+                    for (BulkChunk chunk : chunks) {
+                        CvrRecordService.this.writeChunk(session, chunk, returnParticipantDetails, generator);
+                        session.clear();
                     }
-                    outputStream.write(END_OBJECT);
-                    outputStream.flush();
+                    generator.writeEndObject();
+                    generator.flush();
                 } finally {
                     session.close();
                 }
             }
-        };
+        });
+    }
+
+    /**
+     * A chunk of the companies requested in bulk, holding the ones found in the projection
+     * and a query for the rest
+     */
+    private static final class BulkChunk {
+        private final TreeMap<String, byte[]> projected = new TreeMap<>(ContinuationToken.KEY_ORDER);
+        private CompanyRecordQuery query;
+    }
+
+    /**
+     * Look up the companies of one chunk and write them, merged with its projected companies in key order
+     */
+    private void writeChunk(Session session, BulkChunk chunk, boolean returnParticipantDetails, JsonGenerator generator) throws IOException {
+        TreeMap<String, CompanyRecord> records = new TreeMap<>(ContinuationToken.KEY_ORDER);
+        if (chunk.query != null) {
+            List<CompanyRecord> found = metrics.time(PrismeMetrics.STAGE_FETCH,
+                    () -> QueryManager.getAllEntities(session, chunk.query, CompanyRecord.class)
+            );
+            for (CompanyRecord record : found) {
+                records.put(Integer.toString(record.getCvrNumber()), record);
+            }
+        }
+        GeoLookupService lookupService = geoLookupCache.getLookupService(session);
+        Map<Long, ParticipantRecord> participants = this.lookupParticipants(lookupService, records.values(), returnParticipantDetails);
+        TreeSet<String> keys = new TreeSet<>(ContinuationToken.KEY_ORDER);
+        keys.addAll(chunk.projected.keySet());
+        keys.addAll(records.keySet());
+        for (String key : keys) {
+            generator.writeFieldName(key);
+            byte[] output = chunk.projected.get(key);
+            if (output != null) {
+                generator.writeRawValue(new String(output, StandardCharsets.UTF_8));
+            } else {
+                this.writeRecord(records.get(key), lookupService, returnParticipantDetails, participants, generator);
+            }
+        }
+        generator.flush();
+        metrics.recordsEmitted(keys.size());
+    }
+
+    /**
+     * Return all companies that have been updated since the given cursor, along with the cursor to use next time
+     * @see DeltaCursor
+     */
+    @RequestMapping(method = RequestMethod.GET, path = "/delta", produces = {MediaType.APPLICATION_JSON_VALUE})
+    public StreamingResponseBody getDelta(@RequestParam(value = DeltaCursor.PARAM_CURSOR, required = false) String cursor, HttpServletRequest request)
+            throws DataFordelerException {
+        final OffsetDateTime updatedSince = DeltaCursor.parse(cursor);
+
+        boolean returnParticipantDetails = "1".equals(request.getParameter(PARAM_RETURN_PARTICIPANT_DETAILS));
+
+        DafoUserDetails user = dafoUserManager.getUserFromRequest(request);
+        LoggerHelper loggerHelper = new LoggerHelper(log, request, user);
+        loggerHelper.info(
+                "Incoming REST request for PrismeCvrService delta with " +
+                        DeltaCursor.PARAM_CURSOR + " = " + updatedSince + " and " +
+                        PARAM_RETURN_PARTICIPANT_DETAILS + " = " + returnParticipantDetails
+        );
+        this.checkAndLogAccess(loggerHelper, returnParticipantDetails);
+
+        OffsetDateTime now = OffsetDateTime.now();
+        CompanyRecordQuery query = new CompanyRecordQuery();
+        query.setPageSize(Integer.MAX_VALUE);
+        query.setRecordAfter(updatedSince);
+        this.applyAreaRestrictionsToQuery(query, user);
+
+        return metrics.instrumentBulk("cvr/1/delta", outputStream -> {
+            Session session = sessionManager.getSessionFactory().openSession();
+            try {
+                GeoLookupService lookupService = geoLookupCache.getLookupService(session);
+                DeltaCursor.writeStart(DeltaCursor.next(now), outputStream);
+                // Not closed, as that would close the response stream
+                JsonGenerator generator = objectMapper.getFactory().createGenerator(outputStream);
+                generator.setPrettyPrinter(new RowSeparatorPrettyPrinter());
+                generator.writeStartObject();
+                Iterator<CompanyRecord> records = QueryManager.getAllEntitiesAsStream(session, query, CompanyRecord.class).iterator();
+                // Buffered in batches, so the participants of a batch are looked up together
+                ArrayList<CompanyRecord> batch = new ArrayList<>();
+                while (records.hasNext()) {
+                    batch.add(records.next());
+                    if (batch.size() >= fetchChunkSize || !records.hasNext()) {
+                        CvrRecordService.this.writeDeltaBatch(session, lookupService, batch, returnParticipantDetails, generator);
+                        batch.clear();
+                    }
+                }
+                generator.writeEndObject();
+                generator.flush();
+                DeltaCursor.writeEnd(outputStream);
+            } finally {
+                session.close();
+            }
+        });
+    }
+
+    /**
+     * Write a batch of the companies in a delta response, and evict them from the session
+     */
+    private void writeDeltaBatch(Session session, GeoLookupService lookupService, List<CompanyRecord> batch, boolean returnParticipantDetails, JsonGenerator generator) throws IOException {
+        Map<Long, ParticipantRecord> participants = this.lookupParticipants(lookupService, batch, returnParticipantDetails);
+        for (CompanyRecord record : batch) {
+            generator.writeFieldName(Integer.toString(record.getCvrNumber()));
+            this.writeRecord(record, lookupService, returnParticipantDetails, participants, generator);
+        }
+        generator.flush();
+        metrics.recordsEmitted(batch.size());
+        for (CompanyRecord record : batch) {
+            session.evict(record);
+        }
+    }
+
+    /**
+     * Whether companies may be served from the company projection. It holds no participant details,
+     * and doesn't know about area restrictions
+     */
+    protected boolean isProjectionUsable(DafoUserDetails user, boolean returnParticipantDetails) {
+        return !returnParticipantDetails && companyProjection.isReady() && user.getAreaRestrictionsForRole(CvrRolesDefinition.READ_CVR_ROLE).isEmpty();
     }
 
     protected void checkAndLogAccess(LoggerHelper loggerHelper, boolean includeCpr) throws AccessDeniedException, AccessRequiredException {
@@ -278,358 +435,49 @@ public class CvrRecordService {
     }
 
     protected ObjectNode wrapRecord(CompanyRecord record, GeoLookupService lookupService, boolean returnParticipantDetails) {
-        ObjectNode root = objectMapper.createObjectNode();
-
-        root.put("source", "CVR");
-        root.put("cvrNummer", record.getCvrNumber());
-
-        SecNameRecord nameRecord = this.getLastUpdated(record.getNames());
-        if (nameRecord != null) {
-            root.put("navn", nameRecord.getName());
-        }
-
-        CompanyIndustryRecord industryRecord = this.getLastUpdated(record.getPrimaryIndustry());
-        if (industryRecord != null) {
-            root.put("forretningsområde", industryRecord.getIndustryText());
-        }
-
-        ArrayList<CompanyStatusRecord> statusRecords = new ArrayList<>(record.getCompanyStatus());
-        if (record.getMetadata() != null) {
-            CompanyStatusRecord metaStatusRecord = record.getMetadata().getCompanyStatusRecord(record);
-            if (metaStatusRecord != null) {
-                statusRecords.add(metaStatusRecord);
-            }
-        }
-
-        CompanyStatusRecord statusRecord = this.getLastUpdated(statusRecords);
-        if (statusRecord != null) {
-            root.put("statuskode", statusRecord.getStatus());
-            root.put("statuskodedato", statusRecord.getValidFrom() != null ? statusRecord.getValidFrom().format(DateTimeFormatter.ISO_LOCAL_DATE) : null);
-        }
-
-        AddressRecord addressRecord = this.getLastUpdated(record.getPostalAddress());
-
-        if (addressRecord == null) {
-            addressRecord = this.getLastUpdated(record.getLocationAddress());
-        }
-        if (addressRecord != null) {
-            AddressMunicipalityRecord municipality = addressRecord.getMunicipality();
-            int municipalityCode = 0;
-            if (municipality != null) {
-                municipalityCode = municipality.getMunicipalityCode();
-                root.put("myndighedskode", municipalityCode);
-                root.put("kommune", municipality.getMunicipalityName());
-            }
-
-            int roadCode = addressRecord.getRoadCode();
-            if (roadCode > 0) {
-                root.put("vejkode", roadCode);
-                if (municipalityCode > 0 && lookupService != null) {
-                    GeoLookupDTO lookup = lookupService.doLookup(municipalityCode, roadCode);
-                    if (lookup.getLocalityCodeNumber() != 0) {
-                        root.put("stedkode", lookup.getLocalityCodeNumber());
-                    }
-                }
-            }
-
-            StringBuilder addressFormatted = new StringBuilder();
-            if (addressRecord.getRoadName() != null) {
-                addressFormatted.append(addressRecord.getRoadName());
-            }
-            if (addressRecord.getHouseNumberFrom() != null) {
-                addressFormatted.append(" " + addressRecord.getHouseNumberFrom() + emptyIfNull(addressRecord.getLetterFrom()));
-                if (addressRecord.getHouseNumberTo() != null) {
-                    addressFormatted.append("-");
-                    if (addressRecord.getHouseNumberTo().equals(addressRecord.getHouseNumberFrom())) {
-                        addressFormatted.append(emptyIfNull(addressRecord.getLetterTo()));
-                    } else {
-                        addressFormatted.append(addressRecord.getHouseNumberTo() + emptyIfNull(addressRecord.getLetterTo()));
-                    }
-                }
-                if (addressRecord.getFloor() != null) {
-                    addressFormatted.append(", " + addressRecord.getFloor() + ".");
-                    if (addressRecord.getDoor() != null) {
-                        addressFormatted.append(" " + addressRecord.getDoor());
-                    }
-                }
-            }
-
-
-            String addressFormattedString = addressFormatted.toString();
-
-            if (!addressFormattedString.isEmpty()) {
-                root.put("adresse", addressFormattedString);
-            }
-            if (addressRecord.getPostBox() != null && addressRecord.getPostBox() != "") {
-                root.put("postboks", Integer.parseInt(addressRecord.getPostBox()));
-            }
-
-            CvrPostCode postCode = addressRecord.getPost();
-            if (addressRecord.getPostnummer() != 0) {
-                root.put("postnummer", addressRecord.getPostnummer());
-            }
-            if (addressRecord.getPostdistrikt() != null) {
-                root.put("bynavn", addressRecord.getPostdistrikt());
-            }
-            root.put("landekode", addressRecord.getCountryCode());
-
-            String coName = addressRecord.getCoName();
-            if (coName != null) {
-                root.put("co", coName);
-            }
-        }
-
-        ContactRecord emailAddress = this.getLastUpdated(record.getEmailAddress());
-        if (emailAddress != null) {
-            root.put("email", emailAddress.getContactInformation());
-        }
-        ContactRecord phoneNumber = this.getLastUpdated(record.getPhoneNumber());
-        if (phoneNumber != null) {
-            root.put("telefon", phoneNumber.getContactInformation());
-        }
-        ContactRecord faxNumber = this.getLastUpdated(record.getFaxNumber());
-        if (faxNumber != null) {
-            root.put("telefax", faxNumber.getContactInformation());
-        }
-
-        if (returnParticipantDetails) {
-            root.set("deltagere", this.getParticipants(record));
-        }
-
-        return root;
+        return this.wrapRecord(record, lookupService, returnParticipantDetails, this.lookupParticipants(lookupService, Collections.singletonList(record), returnParticipantDetails));
     }
 
-    protected ArrayNode getParticipants(CompanyRecord record) {
-        ArrayNode participantsOutput = objectMapper.createArrayNode();
-        OffsetDateTime current = OffsetDateTime.now();
-        Bitemporality now = new Bitemporality(current, current, current, current);
-        for (CompanyParticipantRelationRecord participant : record.getParticipants()) {
-            RelationParticipantRecord relationParticipantRecord = participant.getRelationParticipantRecord();
-            HashSet<MembershipDescription> membershipDescriptions = new HashSet<>();
-            if (relationParticipantRecord != null && ("PERSON".equals(relationParticipantRecord.unitType) || "ANDEN_DELTAGER".equals(relationParticipantRecord.unitType))) {
-                boolean hasEligibleParticipant = false;
-                ObjectNode participantOutput = objectMapper.createObjectNode();
-                ArrayNode organizationsOutput = objectMapper.createArrayNode();
-                for (OrganizationRecord organization : participant.getOrganizations()) {
-                    ArrayNode memberNodes = objectMapper.createArrayNode();
-                    boolean found = false;
-                    for (OrganizationMemberdataRecord memberdataRecord : organization.getMemberData()) {
-                        for (AttributeRecord memberAttribute : memberdataRecord.getAttributes()) {
-                            if ("FUNKTION".equals(memberAttribute.getType())) {
-                                AttributeValueRecord memberAttributeValue = getLastUpdated(memberAttribute.getValues());
-                                if (memberAttributeValue != null && memberAttributeValue.getBitemporality().contains(now)) {
-                                    ObjectNode orgMemberNode = objectMapper.createObjectNode();
-                                    orgMemberNode.put("funktion", memberAttributeValue.getValue());
-                                    memberNodes.add(orgMemberNode);
-                                    found = true;
-                                    for (BaseNameRecord organizationName : organization.getNames()) {
-                                        membershipDescriptions.add(
-                                                new MembershipDescription(organization.getMainType(), organizationName.getName(), memberAttributeValue.getValue())
-                                        );
-                                    }
-                                }
-                            }
-                        }
-                    }
-                    if (found) {
-                        hasEligibleParticipant = true;
-                        ObjectNode organizationOutput = objectMapper.createObjectNode();
-                        organizationsOutput.add(organizationOutput);
-                        organizationOutput.put("type", organization.getMainType());
-                        for (BaseNameRecord organizationName : organization.getNames()) {
-                            String name = organizationName.getName();
-                            organizationOutput.put("navn", name);
-                        }
-                        organizationOutput.set("medlemskaber", memberNodes);
-                    }
-                }
-                if (hasEligibleParticipant) {
-                    long unitNumber = relationParticipantRecord.getUnitNumber();
-                    participantOutput.put("enhedsNummer", unitNumber);
-                    try {
-                        ParticipantRecord participantRecord = directLookup.participantLookup(Long.toString(unitNumber, 10));
-                        if (participantRecord != null) {
-                            Long businessKey = participantRecord.getBusinessKey();
-                            if (Objects.equals(businessKey, unitNumber)) {
-                                // Foreigner
-                            } else {
-                                participantOutput.put("deltagerPnr", String.format("%010d", businessKey));
-                            }
-                        }
-                    } catch (Exception e) {
-                        log.info(e.getMessage());
-                    }
-                    boolean ownerMatch = false;
-                    for (MembershipDescription d : membershipDescriptions) {
-                        if (d.isOwner()) {
-                            ownerMatch = true;
-                        }
-                    }
-                    participantOutput.put("ownerMatch", ownerMatch);
-                    participantOutput.set("organisationer", organizationsOutput);
-                    participantsOutput.add(participantOutput);
-                }
-            }
+    /**
+     * Look up the participants of all the given companies at once, for passing to
+     * {@link #wrapRecord(CompanyRecord, GeoLookupService, boolean, Map)}
+     */
+    protected Map<Long, ParticipantRecord> lookupParticipants(GeoLookupService lookupService, Collection<CompanyRecord> records, boolean returnParticipantDetails) {
+        if (!returnParticipantDetails) {
+            return Collections.emptyMap();
         }
-        return participantsOutput;
+        return cvrWrapper.lookupParticipants(lookupService.getSession(), cvrWrapper.getParticipantUnitNumbers(records));
     }
 
-    private <T extends CvrBitemporalRecord> T getLastUpdated(Collection<T> records) {
-        ArrayList<T> list = new ArrayList<>();
-        for (T record : records) {
-            if (record != null) {
-                list.add(record);
-            }
-        }
-        if (list.size() > 1) {
-            list.sort(
-                    Comparator.comparing(
-                            CvrBitemporalRecord::getValidFrom, Comparator.nullsFirst(Comparator.naturalOrder())
-                    ).thenComparing(
-                            CvrBitemporalRecord::getLastUpdated, Comparator.nullsFirst(Comparator.naturalOrder())
-                    )
-            );
-        }
-        return list.isEmpty() ? null : list.get(list.size()-1);
+    protected ObjectNode wrapRecord(CompanyRecord record, GeoLookupService lookupService, boolean returnParticipantDetails, Map<Long, ParticipantRecord> participants) {
+        return cvrWrapper.wrapRecord(record, lookupService, returnParticipantDetails, participants);
     }
 
-    Pattern postcodePattern = Pattern.compile("(\\d{4}) (.*)");
-
-    private static HashMap<Integer, String> municipalityMap = new HashMap<>();
-    static {
-        municipalityMap.put(955, "Kommune Kujalleq");
-        municipalityMap.put(956, "Kommuneqarfik Sermersooq");
-        municipalityMap.put(957, "Qeqqata Kommunia");
-        municipalityMap.put(958, "Qaasuitsup Kommunia");
-        municipalityMap.put(959, "Kommune Qeqertalik");
-        municipalityMap.put(960, "Avannaata Kommunia");
+    protected void writeRecord(CompanyRecord record, GeoLookupService lookupService, boolean returnParticipantDetails, Map<Long, ParticipantRecord> participants, JsonGenerator generator) throws IOException {
+        cvrWrapper.writeRecord(record, lookupService, returnParticipantDetails, participants, generator);
     }
 
-
     protected ObjectNode wrapGerCompany(CompanyEntity entity, GeoLookupService lookupService, boolean returnParticipantDetails) {
-        ObjectNode root = objectMapper.createObjectNode();
-        root.put("source", "GER");
-        root.put("cvrNummer", entity.getGerNr());
-        root.put(
-                "navn",
-                (entity.getEndDate() != null ? "historisk ":"") +
-                entity.getName()
-        );
-        root.put("forretningsområde", entity.getBusinessText());
-
-        String statusCode = gerCompanyLookup.getStatus(entity.getStatusGuid());
-        root.put("statuskode", statusCode);
-        root.put("statuskodedato", entity.getStatusChange() != null ? entity.getStatusChange().format(DateTimeFormatter.ISO_LOCAL_DATE) : null);
-
-        Integer municipalityCode = entity.getMunicipalityCode();
-        root.put("myndighedskode", municipalityCode);
-        if (municipalityCode != null) {
-            if (municipalityMap.containsKey(municipalityCode)) {
-                root.put("kommune", municipalityMap.get(municipalityCode));
-            }
-        }
-
-        //root.put("vejkode", roadCode);
-        root.put("stedkode", entity.getLocalityCode());
-
-        Integer countryCode = entity.getCountryCode();
-        if (countryCode != null && countryCode != 0) {
-            root.put("landekode", countryCode);
-        }
-
-        if (countryCode == 8 || countryCode == 406) { // Denmark or Greenland
-
-            String address = entity.getAddress1();
-            if (address == null || address.isEmpty()) {
-                String address2 = entity.getAddress2();
-                if (address2 != null && !address2.isEmpty() && !address2.contains("Postboks")) {
-                    address = address2;
-                }
-            }
-            root.put("adresse", address);
-
-            String boxNr = entity.getBoxNr();
-            if (boxNr != null && !boxNr.trim().isEmpty()) {
-                root.put("postboks", boxNr.trim());
-            }
-
-            Matcher addressMatcher = null;
-            String postcodeField = entity.getAddress3();
-            if (postcodeField != null && !postcodeField.isEmpty()) {
-                addressMatcher = postcodePattern.matcher(postcodeField);
-            }
-            if (addressMatcher != null && addressMatcher.find()) {
-                root.put("postnummer", addressMatcher.group(1));
-                root.put("bynavn", addressMatcher.group(2));
-            } else {
-                Integer postCode = entity.getPostNr();
-                if (postCode != null && postCode != 0) {
-                    root.put("postnummer", postCode);
-                    String district = lookupService.getPostalCodeDistrict(postCode);
-                    if (district != null) {
-                        root.put("bynavn", district);
-                    }
-                }
-            }
-        } else {
-            StringJoiner address = new StringJoiner("\n");
-            String[] parts = new String[]{
-                entity.getAddress1(), entity.getAddress2(), entity.getAddress3()
-            };
-            for (String part : parts) {
-                if (part != null && !part.isEmpty()) {
-                    address.add(part);
-                }
-            }
-            root.put("adresse", address.toString());
-        }
-
-
-        String coName = entity.getCoName();
-        if (coName != null) {
-            root.put("co", coName);
-        }
-
-
-        String emailAddress = entity.getEmail();
-        if (emailAddress != null) {
-            root.put("email", emailAddress);
-        }
-
-        String phoneNumber = entity.getPhone();
-        if (phoneNumber != null) {
-            root.put("telefon", phoneNumber);
-        }
+        return cvrWrapper.wrapGerCompany(entity, lookupService, returnParticipantDetails);
+    }
 
-        String faxNumber = entity.getFax();
-        if (faxNumber != null) {
-            root.put("telefax", faxNumber);
-        }
+    protected void writeGerCompany(CompanyEntity entity, GeoLookupService lookupService, boolean returnParticipantDetails, JsonGenerator generator) throws IOException {
+        cvrWrapper.writeGerCompany(entity, lookupService, returnParticipantDetails, generator);
+    }
 
-        if (returnParticipantDetails) {
-            ResponsibleQuery responsibleQuery = new ResponsibleQuery();
-            responsibleQuery.setGerNr(entity.getGerNr());
-            List<ResponsibleEntity> responsibleEntities = QueryManager.getAllEntities(lookupService.getSession(), responsibleQuery, ResponsibleEntity.class);
-            if (!responsibleEntities.isEmpty()) {
-                ArrayNode participantsNode = objectMapper.createArrayNode();
-                for (ResponsibleEntity responsibleEntity : responsibleEntities) {
-                    ObjectNode responsibleNode = objectMapper.createObjectNode();
-                    if (responsibleEntity.getCprNumber() != null) {
-                        responsibleNode.put("deltagerPnr", responsibleEntity.getCprNumberString());
-                    }
-                    if (responsibleEntity.getCvrNumber() != null) {
-                        responsibleNode.put("deltagerCvrNr", responsibleEntity.getCvrNumber().toString());
-                    }
-                    if (responsibleEntity.getName() != null) {
-                        responsibleNode.put("deltagerNavn", responsibleEntity.getName());
-                    }
-                    participantsNode.add(responsibleNode);
-                }
-                root.set("deltagere", participantsNode);
-            }
+    /**
+     * Look up the responsibles of all the given GER companies at once, for passing to
+     * {@link #writeGerCompany(CompanyEntity, GeoLookupService, boolean, Map, JsonGenerator)}
+     */
+    protected Map<Integer, List<ResponsibleEntity>> lookupResponsibles(GeoLookupService lookupService, Collection<CompanyEntity> entities, boolean returnParticipantDetails) {
+        if (!returnParticipantDetails || entities.isEmpty()) {
+            return Collections.emptyMap();
         }
+        return cvrWrapper.lookupResponsibles(lookupService.getSession(), cvrWrapper.getGerNumbers(entities));
+    }
 
-        return root;
+    protected void writeGerCompany(CompanyEntity entity, GeoLookupService lookupService, boolean returnParticipantDetails, Map<Integer, List<ResponsibleEntity>> responsibles, JsonGenerator generator) throws IOException {
+        cvrWrapper.writeGerCompany(entity, lookupService, returnParticipantDetails, responsibles, generator);
     }
 
     protected void applyAreaRestrictionsToQuery(CompanyRecordQuery query, DafoUserDetails user) throws InvalidClientInputException {
@@ -643,9 +491,4 @@ public class CvrRecordService {
         }
     }
 
-    private static String emptyIfNull(String text) {
-        if (text == null) return "";
-        return text;
-    }
-
 }
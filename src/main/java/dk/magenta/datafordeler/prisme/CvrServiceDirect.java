@@ -1,5 +1,7 @@
 package dk.magenta.datafordeler.prisme;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.util.ByteArrayBuilder;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ObjectNode;
@@ -17,12 +19,15 @@ import dk.magenta.datafordeler.cvr.access.CvrAreaRestrictionDefinition;
 import dk.magenta.datafordeler.cvr.access.CvrRolesDefinition;
 import dk.magenta.datafordeler.cvr.entitymanager.CompanyEntityManager;
 import dk.magenta.datafordeler.cvr.records.CompanyRecord;
+import dk.magenta.datafordeler.cvr.records.ParticipantRecord;
 import dk.magenta.datafordeler.geo.GeoLookupService;
 import dk.magenta.datafordeler.ger.data.company.CompanyEntity;
+import dk.magenta.datafordeler.ger.data.responsible.ResponsibleEntity;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.hibernate.Session;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.MediaType;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
@@ -31,15 +36,13 @@ import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBo
 
 import javax.annotation.PostConstruct;
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
-import java.io.OutputStream;
 import java.time.LocalDate;
 import java.time.OffsetDateTime;
 import java.util.*;
-import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.regex.Pattern;
-import java.util.stream.Stream;
 
 @RestController
 @RequestMapping("/prisme/cvr/2")
@@ -63,6 +66,12 @@ public class CvrServiceDirect extends CvrRecordService {
     @Autowired
     private GerCompanyLookup gerCompanyLookup;
 
+    @Autowired
+    private ParallelBulkWriter bulkWriter;
+
+    @Value("${dafo.prisme.cvr.direct.lookupChunkSize:100}")
+    private int lookupChunkSize;
+
     private Logger log = LogManager.getLogger(CvrServiceDirect.class.getCanonicalName());
 
 
@@ -88,17 +97,22 @@ public class CvrServiceDirect extends CvrRecordService {
         return null;
     }
 
+    /**
+     * This endpoint looks companies up in CVR directly, so it doesn't use the projection
+     */
+    @Override
+    protected boolean isProjectionUsable(DafoUserDetails user, boolean returnParticipantDetails) {
+        return false;
+    }
+
     @Override
     protected Collection<CompanyRecord> getCompanies(Session session, Collection<String> cvrNumbers, DafoUserDetails user) throws DataFordelerException {
         return companyEntityManager.directLookup(new HashSet<>(cvrNumbers), null, this.getMunicipalityRestrictions(user));
     }
 
-    private class BooleanWrapper {
-        public boolean value;
-    }
 
     @RequestMapping(method = RequestMethod.POST, path = "/", produces = {MediaType.APPLICATION_JSON_VALUE})
-    public StreamingResponseBody getBulk(HttpServletRequest request)
+    public StreamingResponseBody getBulk(HttpServletRequest request, HttpServletResponse response)
             throws AccessDeniedException, AccessRequiredException, InvalidTokenException, InvalidClientInputException, IOException, HttpNotFoundException, InvalidCertificateException {
         JsonNode requestBody;
         try {
@@ -115,6 +129,8 @@ public class CvrServiceDirect extends CvrRecordService {
 
         final List<String> cvrNumbers = (requestObject.has(PARAM_CVR_NUMBER)) ? this.getCvrNumber(requestObject.get(PARAM_CVR_NUMBER)) : null;
 
+        final ContinuationToken continueAfter = requestObject.has(ContinuationToken.PARAM_CONTINUE_AFTER) ? ContinuationToken.parse(requestObject.get(ContinuationToken.PARAM_CONTINUE_AFTER).asText()) : null;
+
         boolean returnParticipantDetails = "1".equals(request.getParameter(PARAM_RETURN_PARTICIPANT_DETAILS));
 
         DafoUserDetails user = dafoUserManager.getUserFromRequest(request);
@@ -141,63 +157,102 @@ public class CvrServiceDirect extends CvrRecordService {
             throw new InvalidClientInputException("Please specify at least one CVR number");
         }
 
-        return new StreamingResponseBody() {
-            @Override
-            public void writeTo(OutputStream outputStream) throws IOException {
-
-                final Session lookupSession = sessionManager.getSessionFactory().openSession();
-                GeoLookupService lookupService = new GeoLookupService(lookupSession);
-
-                HashSet<CompanyRecord> records = companyEntityManager.directLookup(cvr, updatedSince, CvrServiceDirect.this.getMunicipalityRestrictions(user));
-                Stream<ObjectNode> cvrFormattedOutput = records.stream().map(
-                        record -> CvrServiceDirect.this.wrapRecord(record, lookupService, returnParticipantDetails)
-                );
-
-                for (CompanyRecord record : records) {
-                    cvr.remove(Integer.toString(record.getCvrNumber()));
-                }
-
-                HashSet<CompanyEntity> gerCompanies = gerCompanyLookup.lookup(lookupSession, cvr);
-                Stream<ObjectNode> gerFormattedOutput = gerCompanies.stream().map(
-                        companyEntity -> CvrServiceDirect.this.wrapGerCompany(companyEntity, lookupService, returnParticipantDetails)
-                );
-
-                Stream<ObjectNode> formattedOutput = Stream.concat(cvrFormattedOutput, gerFormattedOutput);
+        // Output is ordered by CVR number, so an interrupted download can be resumed after the last row received,
+        // without looking up the companies already received again
+        TreeSet<String> sortedNumbers = ContinuationToken.sortKeys(cvr);
+        String fingerprint = ContinuationToken.fingerprint(sortedNumbers, updatedSince, returnParticipantDetails);
+        SortedSet<String> remaining = ContinuationToken.remainingKeys(sortedNumbers, fingerprint, continueAfter);
+        response.setHeader(ContinuationToken.HEADER, fingerprint);
+
+        List<Integer> municipalityRestrictions = this.getMunicipalityRestrictions(user);
+        List<List<String>> chunks = ParallelBulkWriter.partition(remaining, this.lookupChunkSize);
+
+        // Companies are looked up in CVR a chunk at a time on the calling thread, and wrapped on the worker pool,
+        // where companies not found in CVR are looked up in GER batch by batch
+        return metrics.instrumentBulk("cvr/2", outputStream -> bulkWriter.write(
+                chunks.stream().flatMap(chunk -> this.lookupChunk(chunk, updatedSince, municipalityRestrictions).stream()),
+                null,
+                batch -> this.wrapBatch(batch, returnParticipantDetails),
+                outputStream
+        ));
+    }
 
+    /**
+     * A company requested in bulk, with the record found for it in CVR, if any
+     */
+    private static final class BulkItem {
+        private final String key;
+        private final CompanyRecord record;
 
+        private BulkItem(String key, CompanyRecord record) {
+            this.key = key;
+            this.record = record;
+        }
+    }
 
-                try {
-                    final BooleanWrapper first = new BooleanWrapper();
-                    first.value = true;
-                    outputStream.write(START_OBJECT);
-
-                    formattedOutput.forEach(new Consumer<ObjectNode>() {
-                        @Override
-                        public void accept(ObjectNode jsonNode) {
-                            StringBuilder sb = new StringBuilder();
-                            if (!first.value) {
-                                sb.append(OBJECT_SEPARATOR);
-                            } else {
-                                first.value = false;
-                            }
-                            try {
-                                sb.append("\"" + jsonNode.get("cvrNummer").textValue() + "\":");
-                                sb.append(objectMapper.writeValueAsString(jsonNode));
-                                outputStream.write(sb.toString().getBytes("UTF-8"));
-                                outputStream.flush();
-                            } catch (IOException e) {
-                            e.printStackTrace();
-                        }
+    /**
+     * Look up one chunk of companies in CVR, returning an item for each requested company in key order
+     */
+    private List<BulkItem> lookupChunk(List<String> cvrNumbers, OffsetDateTime updatedSince, List<Integer> municipalityRestrictions) {
+        HashMap<String, CompanyRecord> records = new HashMap<>();
+        Collection<CompanyRecord> found = metrics.time(PrismeMetrics.STAGE_DIRECT_LOOKUP,
+                () -> companyEntityManager.directLookup(new HashSet<>(cvrNumbers), updatedSince, municipalityRestrictions)
+        );
+        for (CompanyRecord record : found) {
+            records.put(Integer.toString(record.getCvrNumber()), record);
+        }
+        ArrayList<BulkItem> items = new ArrayList<>(cvrNumbers.size());
+        for (String cvrNumber : cvrNumbers) {
+            items.add(new BulkItem(cvrNumber, records.get(cvrNumber)));
+        }
+        return items;
+    }
 
+    /**
+     * Wrap and serialize a batch of companies, using a lookup session of its own. Companies not found in CVR are
+     * looked up in GER, and companies found in neither are left out
+     */
+    private List<byte[]> wrapBatch(List<BulkItem> batch, boolean returnParticipantDetails) throws IOException {
+        long start = System.nanoTime();
+        ArrayList<CompanyRecord> records = new ArrayList<>();
+        ArrayList<String> gerNumbers = new ArrayList<>();
+        for (BulkItem item : batch) {
+            if (item.record != null) {
+                records.add(item.record);
+            } else {
+                gerNumbers.add(item.key);
+            }
+        }
+        ArrayList<byte[]> rows = new ArrayList<>(batch.size());
+        ByteArrayBuilder buffer = new ByteArrayBuilder();
+        try (Session lookupSession = sessionManager.getSessionFactory().openSession()) {
+            GeoLookupService lookupService = geoLookupCache.getLookupService(lookupSession);
+            Map<Long, ParticipantRecord> participants = this.lookupParticipants(lookupService, records, returnParticipantDetails);
+            HashMap<String, CompanyEntity> gerCompanies = new HashMap<>();
+            if (!gerNumbers.isEmpty()) {
+                for (CompanyEntity companyEntity : metrics.time(PrismeMetrics.STAGE_GER_LOOKUP, () -> gerCompanyLookup.lookup(lookupSession, gerNumbers))) {
+                    gerCompanies.put(Integer.toString(companyEntity.getGerNr()), companyEntity);
+                }
+            }
+            Map<Integer, List<ResponsibleEntity>> responsibles = this.lookupResponsibles(lookupService, gerCompanies.values(), returnParticipantDetails);
+            for (BulkItem item : batch) {
+                CompanyEntity companyEntity = gerCompanies.get(item.key);
+                if (item.record == null && companyEntity == null) {
+                    continue;
+                }
+                try (JsonGenerator generator = objectMapper.getFactory().createGenerator(buffer)) {
+                    if (item.record != null) {
+                        this.writeRecord(item.record, lookupService, returnParticipantDetails, participants, generator);
+                    } else {
+                        this.writeGerCompany(companyEntity, lookupService, returnParticipantDetails, responsibles, generator);
                     }
-                    });
-                    outputStream.write(END_OBJECT);
-                    outputStream.flush();
-                } finally {
-                    lookupSession.close();
                 }
+                rows.add(ParallelBulkWriter.row(item.key, buffer.toByteArray()));
+                buffer.reset();
             }
-        };
+        }
+        metrics.recordStage(PrismeMetrics.STAGE_WRAP, start);
+        return rows;
     }
 
 }
@@ -0,0 +1,70 @@
+package dk.magenta.datafordeler.prisme;
+
+import dk.magenta.datafordeler.core.exception.InvalidClientInputException;
+import dk.magenta.datafordeler.core.fapi.Query;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeParseException;
+
+/**
+ * Cursor for the delta endpoints, which return the entities that have been updated since a point in time.
+ * A delta response has the form {"cursor":"...","data":{...}}, and the client passes the returned cursor
+ * with its next request to get the changes made after this one.
+ * The returned cursor lies a little before the time the response was started, so imports that were
+ * still running while it was produced are picked up next time. Entities may therefore be repeated in
+ * consecutive responses, and should be applied as upserts.
+ */
+public final class DeltaCursor {
+
+    public static final String PARAM_CURSOR = "cursor";
+
+    private static final Duration OVERLAP = Duration.ofMinutes(5);
+
+    private DeltaCursor() {
+    }
+
+    /**
+     * Parse a cursor passed by a client
+     */
+    public static OffsetDateTime parse(String cursor) throws InvalidClientInputException {
+        if (cursor == null || cursor.isEmpty()) {
+            throw new InvalidClientInputException("Please specify a " + PARAM_CURSOR);
+        }
+        OffsetDateTime parsed;
+        try {
+            parsed = Query.parseDateTime(cursor, false);
+        } catch (DateTimeParseException e) {
+            parsed = null;
+        }
+        if (parsed == null) {
+            throw new InvalidClientInputException("Invalid " + PARAM_CURSOR + ": " + cursor);
+        }
+        return parsed;
+    }
+
+    /**
+     * The cursor to hand back for a delta response started at the given time
+     */
+    public static OffsetDateTime next(OffsetDateTime start) {
+        return start.minus(OVERLAP);
+    }
+
+    /**
+     * Write the start of a delta response, up to where the data object begins
+     */
+    public static void writeStart(OffsetDateTime next, OutputStream outputStream) throws IOException {
+        outputStream.write(("{\"" + PARAM_CURSOR + "\":\"" + next + "\",\"data\":").getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Write the end of a delta response, after the data object
+     */
+    public static void writeEnd(OutputStream outputStream) throws IOException {
+        outputStream.write('}');
+        outputStream.flush();
+    }
+}
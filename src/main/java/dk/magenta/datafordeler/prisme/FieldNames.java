@@ -0,0 +1,53 @@
+package dk.magenta.datafordeler.prisme;
+
+import com.fasterxml.jackson.core.io.SerializedString;
+
+/**
+ * Field names of the Prisme person and company output, encoded once so the writers don't have to
+ * quote and escape them for every record
+ */
+public final class FieldNames {
+
+    private FieldNames() {
+    }
+
+    // Person and company
+    public static final SerializedString STATUSKODE = new SerializedString("statuskode");
+    public static final SerializedString STATUSKODEDATO = new SerializedString("statuskodedato");
+    public static final SerializedString MYNDIGHEDSKODE = new SerializedString("myndighedskode");
+    public static final SerializedString KOMMUNE = new SerializedString("kommune");
+    public static final SerializedString VEJKODE = new SerializedString("vejkode");
+    public static final SerializedString STEDKODE = new SerializedString("stedkode");
+    public static final SerializedString LANDEKODE = new SerializedString("landekode");
+    public static final SerializedString ADRESSE = new SerializedString("adresse");
+    public static final SerializedString POSTBOKS = new SerializedString("postboks");
+    public static final SerializedString POSTNUMMER = new SerializedString("postnummer");
+    public static final SerializedString BYNAVN = new SerializedString("bynavn");
+
+    // Person
+    public static final SerializedString CPR_NUMMER = new SerializedString("cprNummer");
+    public static final SerializedString FORNAVN = new SerializedString("fornavn");
+    public static final SerializedString EFTERNAVN = new SerializedString("efternavn");
+    public static final SerializedString CIVILSTAND = new SerializedString("civilstand");
+    public static final SerializedString CIVILSTANDSDATO = new SerializedString("civilstandsdato");
+    public static final SerializedString AEGTEFAELLE_CPR_NUMMER = new SerializedString("ægtefælleCprNummer");
+    public static final SerializedString ADRESSEBESKYTTELSE = new SerializedString("adressebeskyttelse");
+    public static final SerializedString KOEN = new SerializedString("køn");
+    public static final SerializedString NYT_CPR_NUMMER = new SerializedString("nytCprNummer");
+    public static final SerializedString FAR = new SerializedString("far");
+    public static final SerializedString MOR = new SerializedString("mor");
+    public static final SerializedString UDLANDSADRESSE = new SerializedString("udlandsadresse");
+    public static final SerializedString UDREJSEDATO = new SerializedString("udrejsedato");
+    public static final SerializedString TILFLYTNINGSDATO = new SerializedString("tilflytningsdato");
+
+    // Company
+    public static final SerializedString SOURCE = new SerializedString("source");
+    public static final SerializedString CVR_NUMMER = new SerializedString("cvrNummer");
+    public static final SerializedString NAVN = new SerializedString("navn");
+    public static final SerializedString FORRETNINGSOMRAADE = new SerializedString("forretningsområde");
+    public static final SerializedString CO = new SerializedString("co");
+    public static final SerializedString EMAIL = new SerializedString("email");
+    public static final SerializedString TELEFON = new SerializedString("telefon");
+    public static final SerializedString TELEFAX = new SerializedString("telefax");
+    public static final SerializedString DELTAGERE = new SerializedString("deltagere");
+}
@@ -1,11 +1,13 @@
 package dk.magenta.datafordeler.prisme;
 
 import dk.magenta.datafordeler.core.database.DatabaseEntry;
+import dk.magenta.datafordeler.core.util.Bitemporality;
 import dk.magenta.datafordeler.core.util.BitemporalityComparator;
 import dk.magenta.datafordeler.cpr.records.CprBitemporalRecord;
 import dk.magenta.datafordeler.cpr.records.CprBitemporality;
 import dk.magenta.datafordeler.cpr.records.CprNontemporalRecord;
 
+import java.time.OffsetDateTime;
 import java.util.Collection;
 import java.util.Comparator;
 
@@ -27,8 +29,52 @@ public class FilterUtilities {
      * @return
      */
     public static <R extends CprBitemporalRecord> R findNewestUnclosed(Collection<R> records) {
-        return (R) records.stream().filter(r -> r.getBitemporality().registrationTo == null &&
-                 r.getBitemporality().effectTo == null).max(bitemporalComparator).orElse(null);
+        R newest = null;
+        for (R record : records) {
+            CprBitemporality bitemporality = record.getBitemporality();
+            if (bitemporality.registrationTo == null && bitemporality.effectTo == null) {
+                // Keep the first of equal records, like Stream.max
+                if (newest == null || bitemporalComparator.compare(record, newest) > 0) {
+                    newest = record;
+                }
+            }
+        }
+        return newest;
+    }
+
+    /**
+     * Find the current record from the list of records, in a single pass
+     * Among records that contain the given bitemporality and are not undone, the one with the latest registrationFrom wins,
+     * then the one with the highest id. A record updated in dafo before the previously selected record is skipped
+     * @param records
+     * @param current Bitemporality covering only the point in time to look at
+     * @param <R>
+     * @return
+     */
+    public static <R extends CprBitemporalRecord> R findCurrent(Collection<R> records, Bitemporality current) {
+        R latest = null;
+        OffsetDateTime latestRegistration = OffsetDateTime.MIN;
+        OffsetDateTime latestUpdated = OffsetDateTime.MIN;
+        for (R record : records) {
+            if (record.getBitemporality().contains(current) && !record.getDafoUpdated().isBefore(latestUpdated) && !record.isUndone()) {
+                OffsetDateTime registrationFrom = record.getRegistrationFrom();
+                if (registrationFrom == null) {
+                    registrationFrom = OffsetDateTime.MIN;
+                }
+                if (registrationFrom.isAfter(latestRegistration)) {
+                    latest = record;
+                } else if (registrationFrom.isEqual(latestRegistration)) {
+                    if (latest == null || record.getId().compareTo(latest.getId()) >= 0) {
+                        latest = record;
+                    }
+                } else {
+                    continue;
+                }
+                latestUpdated = record.getDafoUpdated();
+                latestRegistration = registrationFrom;
+            }
+        }
+        return latest;
     }
 
 
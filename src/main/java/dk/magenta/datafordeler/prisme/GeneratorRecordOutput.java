@@ -0,0 +1,120 @@
+package dk.magenta.datafordeler.prisme;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.io.SerializedString;
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * Writes the fields of a wrapped record directly with a JsonGenerator, without building a tree first.
+ * The caller writes the enclosing start and end of the object.
+ * Write errors are thrown as UncheckedIOException, since the wrappers also write to trees, which don't throw
+ */
+public class GeneratorRecordOutput implements RecordOutput {
+
+    private final JsonGenerator generator;
+
+    private final boolean skipNulls;
+
+    /**
+     * @param generator Generator to write fields with, positioned inside an object
+     * @param skipNulls If true, fields with null values are left out, otherwise they are written as nulls
+     */
+    public GeneratorRecordOutput(JsonGenerator generator, boolean skipNulls) {
+        this.generator = generator;
+        this.skipNulls = skipNulls;
+    }
+
+    private void writeNull(SerializedString key) throws IOException {
+        if (!this.skipNulls) {
+            this.generator.writeFieldName(key);
+            this.generator.writeNull();
+        }
+    }
+
+    @Override
+    public void put(SerializedString key, String value) {
+        try {
+            if (value == null) {
+                this.writeNull(key);
+            } else {
+                this.generator.writeFieldName(key);
+                this.generator.writeString(value);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void put(SerializedString key, Boolean value) {
+        try {
+            if (value == null) {
+                this.writeNull(key);
+            } else {
+                this.generator.writeFieldName(key);
+                this.generator.writeBoolean(value);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void put(SerializedString key, Short value) {
+        try {
+            if (value == null) {
+                this.writeNull(key);
+            } else {
+                this.generator.writeFieldName(key);
+                this.generator.writeNumber(value);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void put(SerializedString key, Integer value) {
+        try {
+            if (value == null) {
+                this.writeNull(key);
+            } else {
+                this.generator.writeFieldName(key);
+                this.generator.writeNumber(value);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void put(SerializedString key, Long value) {
+        try {
+            if (value == null) {
+                this.writeNull(key);
+            } else {
+                this.generator.writeFieldName(key);
+                this.generator.writeNumber(value);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void set(SerializedString key, JsonNode value) {
+        try {
+            if (value == null) {
+                this.writeNull(key);
+            } else {
+                this.generator.writeFieldName(key);
+                this.generator.writeTree(value);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package dk.magenta.datafordeler.prisme;
+
+import dk.magenta.datafordeler.geo.GeoLookupDTO;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.hibernate.Session;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.time.Clock;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Supplier;
+
+/**
+ * JVM-wide cache of geo lookups, shared by all Prisme controllers through {@link CachedGeoLookupService}.
+ * Roads, addresses and postal districts change rarely compared to how often bulk responses look them up, so each
+ * result is kept for a configurable time and then looked up again, which picks up changes from geo imports.
+ * Each kind of lookup holds at most maxEntries results, and when it is full the least recently used is evicted
+ */
+@Component
+public class GeoLookupCache {
+
+    private Logger log = LogManager.getLogger(GeoLookupCache.class.getCanonicalName());
+
+    @Autowired
+    private PrismeMetrics metrics;
+
+    @Value("${dafo.prisme.geocache.enabled:true}")
+    private boolean enabled;
+
+    @Value("${dafo.prisme.geocache.ttlSeconds:3600}")
+    private long ttlSeconds;
+
+    @Value("${dafo.prisme.geocache.maxEntries:200000}")
+    private int maxEntries;
+
+    private Clock clock = Clock.systemUTC();
+
+    private final LruMap<LookupKey, CacheEntry<GeoLookupDTO>> roadLookups = new LruMap<>();
+
+    private final LruMap<LookupKey, CacheEntry<GeoLookupDTO>> addressLookups = new LruMap<>();
+
+    private final LruMap<Integer, CacheEntry<String>> postalDistricts = new LruMap<>();
+
+    public GeoLookupCache() {
+    }
+
+    /**
+     * Create an enabled cache with the given configuration, for use outside of Spring
+     */
+    GeoLookupCache(PrismeMetrics metrics, long ttlSeconds, int maxEntries, Clock clock) {
+        this.metrics = metrics;
+        this.enabled = true;
+        this.ttlSeconds = ttlSeconds;
+        this.maxEntries = maxEntries;
+        this.clock = clock;
+    }
+
+    @PostConstruct
+    public void init() {
+        log.info("Geo lookup cache " + (this.enabled ? "enabled, ttl " + this.ttlSeconds + "s, max " + this.maxEntries + " entries" : "disabled"));
+    }
+
+    /**
+     * Create a lookup service for the given session, which answers geo lookups from this cache
+     */
+    public CachedGeoLookupService getLookupService(Session session) {
+        return new CachedGeoLookupService(session, this);
+    }
+
+    public boolean isEnabled() {
+        return this.enabled;
+    }
+
+    public void clear() {
+        for (LruMap<?, ?> map : Arrays.asList(this.roadLookups, this.addressLookups, this.postalDistricts)) {
+            synchronized (map) {
+                map.clear();
+            }
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (LruMap<?, ?> map : Arrays.asList(this.roadLookups, this.addressLookups, this.postalDistricts)) {
+            synchronized (map) {
+                size += map.size();
+            }
+        }
+        return size;
+    }
+
+    GeoLookupDTO getRoadLookup(int municipalityCode, int roadCode, Supplier<GeoLookupDTO> loader) {
+        return this.get(this.roadLookups, new LookupKey(municipalityCode, roadCode, null, null), loader);
+    }
+
+    GeoLookupDTO getAddressLookup(int municipalityCode, int roadCode, String houseNumber, String buildingNumber, Supplier<GeoLookupDTO> loader) {
+        return this.get(this.addressLookups, new LookupKey(municipalityCode, roadCode, houseNumber, buildingNumber), loader);
+    }
+
+    String getPostalCodeDistrict(int postalCode, Supplier<String> loader) {
+        return this.get(this.postalDistricts, postalCode, loader);
+    }
+
+    private <K, V> V get(LruMap<K, CacheEntry<V>> map, K key, Supplier<V> loader) {
+        if (!this.enabled) {
+            return metrics.time(PrismeMetrics.STAGE_GEO_LOOKUP, loader);
+        }
+        long now = this.clock.millis();
+        CacheEntry<V> entry;
+        synchronized (map) {
+            entry = map.get(key);
+        }
+        if (entry != null && now - entry.loaded < this.ttlSeconds * 1000) {
+            metrics.geoCacheLookup(true);
+            return entry.value;
+        }
+        metrics.geoCacheLookup(false);
+        // Looked up outside the lock, so a slow lookup doesn't hold up the others
+        V value = metrics.time(PrismeMetrics.STAGE_GEO_LOOKUP, loader);
+        if (value != null) {
+            synchronized (map) {
+                map.put(key, new CacheEntry<>(value, now));
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Access-ordered map, which evicts the least recently used entry when it grows past maxEntries.
+     * Access must be synchronized on the map
+     */
+    private class LruMap<K, V> extends LinkedHashMap<K, V> {
+
+        private LruMap() {
+            super(16, 0.75f, true);
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+            return this.size() > GeoLookupCache.this.maxEntries;
+        }
+    }
+
+    private static class CacheEntry<V> {
+        private final V value;
+        private final long loaded;
+
+        private CacheEntry(V value, long loaded) {
+            this.value = value;
+            this.loaded = loaded;
+        }
+    }
+
+    private static class LookupKey {
+        private final int municipalityCode;
+        private final int roadCode;
+        private final String houseNumber;
+        private final String buildingNumber;
+
+        private LookupKey(int municipalityCode, int roadCode, String houseNumber, String buildingNumber) {
+            this.municipalityCode = municipalityCode;
+            this.roadCode = roadCode;
+            this.houseNumber = houseNumber;
+            this.buildingNumber = buildingNumber;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            LookupKey that = (LookupKey) o;
+            return municipalityCode == that.municipalityCode &&
+                    roadCode == that.roadCode &&
+                    Objects.equals(houseNumber, that.houseNumber) &&
+                    Objects.equals(buildingNumber, that.buildingNumber);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(municipalityCode, roadCode, houseNumber, buildingNumber);
+        }
+    }
+}
@@ -1,18 +1,63 @@
 package dk.magenta.datafordeler.prisme;
 
 import dk.magenta.datafordeler.core.database.QueryManager;
+import dk.magenta.datafordeler.core.database.SessionManager;
 import dk.magenta.datafordeler.ger.data.company.CompanyEntity;
 import dk.magenta.datafordeler.ger.data.company.CompanyQuery;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.hibernate.Session;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 @Component
 public class GerCompanyLookup {
 
+    private Logger log = LogManager.getLogger(GerCompanyLookup.class.getCanonicalName());
+
+    @Autowired
+    private SessionManager sessionManager;
+
+    /**
+     * When enabled, all GER companies are held in memory, detached from any session, and looked up there
+     * instead of in the database. The register is small, and only changes when the GER spreadsheet is imported,
+     * so the index is reloaded at an interval and swapped in whole
+     */
+    @Value("${dafo.prisme.ger.index.enabled:false}")
+    private boolean indexEnabled;
+
+    @Value("${dafo.prisme.ger.index.reloadIntervalMinutes:60}")
+    private long indexReloadIntervalMinutes;
+
+    // Empty until the first load has finished
+    private final AtomicReference<Map<Integer, CompanyEntity>> index = new AtomicReference<>();
+
+    private ScheduledExecutorService executor;
+
     public HashSet<CompanyEntity> lookup(Session session, Collection<String> cvrNumbers) {
+        Map<Integer, CompanyEntity> index = this.index.get();
+        if (index != null) {
+            HashSet<CompanyEntity> companyEntities = new HashSet<>();
+            for (String cvrNumber : cvrNumbers) {
+                try {
+                    CompanyEntity companyEntity = index.get(Integer.parseInt(cvrNumber, 10));
+                    if (companyEntity != null) {
+                        companyEntities.add(companyEntity);
+                    }
+                } catch (NumberFormatException e) {
+                }
+            }
+            return companyEntities;
+        }
         CompanyQuery query = new CompanyQuery();
         for (String cvrNumber : cvrNumbers) {
             query.addGerNr(cvrNumber);
@@ -48,6 +93,45 @@ public class GerCompanyLookup {
         this.statusMap.put(UUID.fromString("5A9BF70C-C6A7-4CB5-A349-F20241E09D6D"), "Ophørt");
         this.statusMap.put(UUID.fromString("553CEABD-8399-4425-A60B-4A6B4F9E87F1"), "Ophørt");
         this.statusMap.put(UUID.fromString("C4DD742B-85DB-4249-BB39-3BFA3A36C8E8"), "Ophørt");
+
+        if (this.indexEnabled) {
+            this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "prisme-ger-index");
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.executor.scheduleWithFixedDelay(this::reloadIndex, 0, Math.max(1, this.indexReloadIntervalMinutes), TimeUnit.MINUTES);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (this.executor != null) {
+            this.executor.shutdownNow();
+        }
+    }
+
+    public boolean isIndexReady() {
+        return this.index.get() != null;
+    }
+
+    /**
+     * Load all GER companies and replace the index with them
+     */
+    public void reloadIndex() {
+        long start = System.currentTimeMillis();
+        try (Session session = sessionManager.getSessionFactory().openSession()) {
+            CompanyQuery query = new CompanyQuery();
+            query.setPageSize(Integer.MAX_VALUE);
+            HashMap<Integer, CompanyEntity> companies = new HashMap<>();
+            for (CompanyEntity companyEntity : QueryManager.getAllEntities(session, query, CompanyEntity.class)) {
+                companies.put(companyEntity.getGerNr(), companyEntity);
+            }
+            this.index.set(Collections.unmodifiableMap(companies));
+            log.info("Loaded " + companies.size() + " GER companies into index in " + (System.currentTimeMillis() - start) + " ms");
+        } catch (Exception e) {
+            log.error("Failed loading GER company index", e);
+        }
     }
 
     public String getStatus(UUID uuid) {
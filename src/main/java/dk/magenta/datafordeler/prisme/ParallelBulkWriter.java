@@ -0,0 +1,224 @@
+package dk.magenta.datafordeler.prisme;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * Writes bulk output in a three-stage pipeline: the calling thread fetches items from a stream and collects them
+ * in batches, a pool of workers wraps and serializes each batch, and the calling thread writes the finished batches
+ * to the output in the order they were fetched.
+ * The number of batches in flight is bounded, so a slow client or a slow worker holds back the fetching stage
+ * instead of letting fetched items pile up in memory.
+ * The output is a JSON object with one "key":{...} row per item, separated by ",\n"
+ */
+@Component
+public class ParallelBulkWriter implements AutoCloseable {
+
+    private Logger log = LogManager.getLogger(ParallelBulkWriter.class.getCanonicalName());
+
+    private static final byte[] START_OBJECT = "{".getBytes();
+    private static final byte[] END_OBJECT = "}".getBytes();
+    private static final byte[] OBJECT_SEPARATOR = ",\n".getBytes();
+
+    @Autowired
+    private PrismeMetrics metrics;
+
+    @Value("${dafo.prisme.bulk.workers:4}")
+    private int workerCount;
+
+    @Value("${dafo.prisme.bulk.batchSize:100}")
+    private int batchSize;
+
+    @Value("${dafo.prisme.bulk.maxPendingBatches:0}")
+    private int maxPendingBatches;
+
+    private ExecutorService executor;
+
+    /**
+     * Wraps and serializes a batch of items on a worker thread, returning one output row per item
+     */
+    public interface BatchSerializer<T> {
+        List<byte[]> serialize(List<T> batch) throws IOException;
+    }
+
+    public ParallelBulkWriter() {
+    }
+
+    /**
+     * Create a started writer with the given configuration, for use outside of Spring. Close it to stop its workers
+     */
+    ParallelBulkWriter(PrismeMetrics metrics, int workerCount, int batchSize, int maxPendingBatches) {
+        this.metrics = metrics;
+        this.workerCount = workerCount;
+        this.batchSize = batchSize;
+        this.maxPendingBatches = maxPendingBatches;
+        this.init();
+    }
+
+    @PostConstruct
+    public void init() {
+        if (this.workerCount < 1) {
+            this.workerCount = 1;
+        }
+        if (this.batchSize < 1) {
+            this.batchSize = 1;
+        }
+        if (this.maxPendingBatches < 1) {
+            this.maxPendingBatches = 2 * this.workerCount;
+        }
+        AtomicInteger threadCounter = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(this.workerCount, runnable -> {
+            Thread thread = new Thread(runnable, "prisme-bulk-" + threadCounter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        this.executor.shutdownNow();
+    }
+
+    @Override
+    public void close() {
+        this.shutdown();
+    }
+
+    /**
+     * Split items into consecutive lists of at most the given size. A size below 1 is taken as 1
+     */
+    public static <T> List<List<T>> partition(Collection<T> items, int size) {
+        if (size < 1) {
+            size = 1;
+        }
+        ArrayList<List<T>> partitions = new ArrayList<>();
+        ArrayList<T> partition = new ArrayList<>(Math.min(size, items.size()));
+        for (T item : items) {
+            partition.add(item);
+            if (partition.size() >= size) {
+                partitions.add(partition);
+                partition = new ArrayList<>(size);
+            }
+        }
+        if (!partition.isEmpty()) {
+            partitions.add(partition);
+        }
+        return partitions;
+    }
+
+    /**
+     * Create an output row for the given key and serialized value
+     */
+    public static byte[] row(String key, byte[] value) {
+        byte[] prefix = ("\"" + key + "\":").getBytes(StandardCharsets.UTF_8);
+        byte[] row = new byte[prefix.length + value.length];
+        System.arraycopy(prefix, 0, row, 0, prefix.length);
+        System.arraycopy(value, 0, row, prefix.length, value.length);
+        return row;
+    }
+
+    /**
+     * Fetch items from the source, serialize them in batches on the worker pool, and write them to the output stream
+     * @param source Items to write. The stream is consumed on the calling thread
+     * @param prepare Called on the calling thread for each item as it is fetched, before it is handed to a worker,
+     *                e.g. to load and detach it from the fetching session
+     * @param serializer Creates output rows for a batch of items. Called on a worker thread
+     * @param outputStream Stream to write output to
+     */
+    public <T> void write(Stream<T> source, Consumer<T> prepare, BatchSerializer<T> serializer, OutputStream outputStream) throws IOException {
+        this.write(Collections.emptyList(), source, prepare, serializer, outputStream);
+    }
+
+    /**
+     * Write rows that are already serialized, then fetch, serialize and write items from the source
+     * @param rows Finished output rows, written first
+     * @see #write(Stream, Consumer, BatchSerializer, OutputStream)
+     */
+    public <T> void write(Collection<byte[]> rows, Stream<T> source, Consumer<T> prepare, BatchSerializer<T> serializer, OutputStream outputStream) throws IOException {
+        ArrayDeque<Future<List<byte[]>>> pending = new ArrayDeque<>();
+        outputStream.write(START_OBJECT);
+        boolean first = this.writeRows(rows, outputStream, true);
+        try {
+            Iterator<T> iterator = source.iterator();
+            ArrayList<T> batch = new ArrayList<>(this.batchSize);
+            while (iterator.hasNext()) {
+                T item = iterator.next();
+                if (prepare != null) {
+                    prepare.accept(item);
+                }
+                batch.add(item);
+                if (batch.size() >= this.batchSize) {
+                    final List<T> submitted = batch;
+                    pending.add(this.executor.submit(() -> serializer.serialize(submitted)));
+                    batch = new ArrayList<>(this.batchSize);
+                }
+                while (pending.size() >= this.maxPendingBatches) {
+                    first = this.writeBatch(pending.poll(), outputStream, first);
+                }
+            }
+            if (!batch.isEmpty()) {
+                final List<T> submitted = batch;
+                pending.add(this.executor.submit(() -> serializer.serialize(submitted)));
+            }
+            while (!pending.isEmpty()) {
+                first = this.writeBatch(pending.poll(), outputStream, first);
+            }
+        } finally {
+            for (Future<List<byte[]>> future : pending) {
+                future.cancel(true);
+            }
+        }
+        outputStream.write(END_OBJECT);
+        outputStream.flush();
+    }
+
+    private boolean writeBatch(Future<List<byte[]>> future, OutputStream outputStream, boolean first) throws IOException {
+        List<byte[]> rows;
+        try {
+            rows = future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            log.error("Failed serializing bulk output", e.getCause());
+            throw new IOException(e.getCause());
+        }
+        return this.writeRows(rows, outputStream, first);
+    }
+
+    private boolean writeRows(Collection<byte[]> rows, OutputStream outputStream, boolean first) throws IOException {
+        for (byte[] row : rows) {
+            if (!first) {
+                outputStream.write(OBJECT_SEPARATOR);
+            } else {
+                first = false;
+            }
+            outputStream.write(row);
+        }
+        outputStream.flush();
+        metrics.recordsEmitted(rows.size());
+        return first;
+    }
+}
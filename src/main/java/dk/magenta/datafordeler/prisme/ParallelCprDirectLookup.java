@@ -0,0 +1,217 @@
+package dk.magenta.datafordeler.prisme;
+
+import dk.magenta.datafordeler.cpr.data.person.PersonEntity;
+import dk.magenta.datafordeler.cpr.direct.CprDirectLookup;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Looks up persons in the CPR direct service concurrently.
+ * At most maxInFlight lookups run at a time across all requests, each lookup is abandoned after a timeout counted from
+ * when it starts running, and new lookups are started no faster than the configured rate, so a large batch of misses
+ * doesn't flood the remote service
+ */
+@Component
+public class ParallelCprDirectLookup implements AutoCloseable {
+
+    private Logger log = LogManager.getLogger(ParallelCprDirectLookup.class.getCanonicalName());
+
+    @Autowired
+    private CprDirectLookup cprDirectLookup;
+
+    @Value("${dafo.prisme.cpr.direct.maxInFlight:8}")
+    private int maxInFlight;
+
+    @Value("${dafo.prisme.cpr.direct.timeoutMillis:30000}")
+    private long timeoutMillis;
+
+    @Value("${dafo.prisme.cpr.direct.ratePerSecond:20}")
+    private double ratePerSecond;
+
+    @Value("${dafo.prisme.cpr.direct.burst:10}")
+    private int burst;
+
+    private ExecutorService executor;
+
+    private TokenBucket rateLimit;
+
+    // Shared by all requests. A permit is held while a lookup runs, also when it has timed out but its thread
+    // could not be interrupted, so the remote service never sees more than maxInFlight lookups
+    private Semaphore permits;
+
+    /**
+     * Receives each person found, on the thread that started the lookup
+     */
+    public interface PersonOutput {
+        void accept(PersonEntity personEntity) throws IOException;
+    }
+
+    private static class PendingLookup {
+        private final String cprNumber;
+        // Set when the lookup starts running, or when it is cancelled before that
+        private final AtomicBoolean claimed = new AtomicBoolean();
+        private volatile long started = 0;
+
+        private PendingLookup(String cprNumber) {
+            this.cprNumber = cprNumber;
+        }
+    }
+
+    public ParallelCprDirectLookup() {
+    }
+
+    /**
+     * Create a started lookup with the given configuration, for use outside of Spring. Close it to stop its threads
+     */
+    ParallelCprDirectLookup(CprDirectLookup cprDirectLookup, int maxInFlight, long timeoutMillis, double ratePerSecond, int burst) {
+        this.cprDirectLookup = cprDirectLookup;
+        this.maxInFlight = maxInFlight;
+        this.timeoutMillis = timeoutMillis;
+        this.ratePerSecond = ratePerSecond;
+        this.burst = burst;
+        this.init();
+    }
+
+    @PostConstruct
+    public void init() {
+        if (this.maxInFlight < 1) {
+            this.maxInFlight = 1;
+        }
+        this.rateLimit = new TokenBucket(this.ratePerSecond, this.burst);
+        this.permits = new Semaphore(this.maxInFlight);
+        AtomicInteger threadCounter = new AtomicInteger();
+        // Not a fixed pool: the permits bound the number of lookups, and a lookup stuck past its timeout must not
+        // hold up the ones submitted after it
+        this.executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "prisme-cpr-direct-" + threadCounter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        this.executor.shutdownNow();
+    }
+
+    @Override
+    public void close() {
+        this.shutdown();
+    }
+
+    /**
+     * Look up the given persons, passing each person to the output as its lookup completes
+     * @return The CPR numbers of the persons found
+     */
+    public Set<String> lookup(Collection<String> cprNumbers, PersonOutput output) throws IOException {
+        HashSet<String> found = new HashSet<>();
+        if (cprNumbers.isEmpty()) {
+            return found;
+        }
+        ExecutorCompletionService<PersonEntity> completionService = new ExecutorCompletionService<>(this.executor);
+        // Ordered by submission
+        LinkedHashMap<Future<PersonEntity>, PendingLookup> pending = new LinkedHashMap<>();
+        try {
+            for (String cprNumber : cprNumbers) {
+                if (!this.acquirePermit(completionService, pending, found, output)) {
+                    log.warn("Direct lookup of " + cprNumber + " timed out after " + this.timeoutMillis + " ms waiting for other lookups to finish");
+                    continue;
+                }
+                PendingLookup lookup = new PendingLookup(cprNumber);
+                try {
+                    this.rateLimit.acquire();
+                    pending.put(completionService.submit(() -> this.run(lookup)), lookup);
+                } catch (InterruptedException | RejectedExecutionException e) {
+                    this.permits.release();
+                    throw e;
+                }
+            }
+            while (!pending.isEmpty()) {
+                this.awaitNext(completionService, pending, found, output);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } finally {
+            for (Map.Entry<Future<PersonEntity>, PendingLookup> entry : pending.entrySet()) {
+                this.cancel(entry.getKey(), entry.getValue());
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Take a permit to start a lookup, handling this request's own lookups as they complete while waiting for one
+     * @return false if no permit became available within the timeout
+     */
+    private boolean acquirePermit(CompletionService<PersonEntity> completionService, LinkedHashMap<Future<PersonEntity>, PendingLookup> pending, Set<String> found, PersonOutput output) throws InterruptedException, IOException {
+        while (!this.permits.tryAcquire()) {
+            if (pending.isEmpty()) {
+                return this.permits.tryAcquire(this.timeoutMillis, TimeUnit.MILLISECONDS);
+            }
+            this.awaitNext(completionService, pending, found, output);
+        }
+        return true;
+    }
+
+    private PersonEntity run(PendingLookup lookup) throws Exception {
+        if (!lookup.claimed.compareAndSet(false, true)) {
+            // Cancelled before it started, and the permit was released then
+            return null;
+        }
+        lookup.started = System.currentTimeMillis();
+        try {
+            return cprDirectLookup.getPerson(lookup.cprNumber);
+        } finally {
+            this.permits.release();
+        }
+    }
+
+    private void cancel(Future<PersonEntity> future, PendingLookup lookup) {
+        future.cancel(true);
+        if (lookup.claimed.compareAndSet(false, true)) {
+            this.permits.release();
+        }
+    }
+
+    private void awaitNext(CompletionService<PersonEntity> completionService, LinkedHashMap<Future<PersonEntity>, PendingLookup> pending, Set<String> found, PersonOutput output) throws InterruptedException, IOException {
+        Map.Entry<Future<PersonEntity>, PendingLookup> oldest = pending.entrySet().iterator().next();
+        long started = oldest.getValue().started;
+        // A lookup that hasn't started running yet has its whole timeout ahead of it
+        long wait = started > 0 ? started + this.timeoutMillis - System.currentTimeMillis() : this.timeoutMillis;
+        Future<PersonEntity> future = wait > 0 ? completionService.poll(wait, TimeUnit.MILLISECONDS) : completionService.poll();
+        if (future == null) {
+            if (oldest.getValue().started > 0 && oldest.getValue().started + this.timeoutMillis <= System.currentTimeMillis()) {
+                this.cancel(oldest.getKey(), oldest.getValue());
+                pending.remove(oldest.getKey());
+                log.warn("Direct lookup of " + oldest.getValue().cprNumber + " timed out after " + this.timeoutMillis + " ms");
+            }
+            return;
+        }
+        PendingLookup lookup = pending.remove(future);
+        if (lookup == null) {
+            // Already timed out and cancelled
+            return;
+        }
+        try {
+            PersonEntity personEntity = future.get();
+            if (personEntity != null) {
+                found.add(lookup.cprNumber);
+                output.accept(personEntity);
+            }
+        } catch (ExecutionException e) {
+            log.warn("Direct lookup of " + lookup.cprNumber + " failed", e.getCause());
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package dk.magenta.datafordeler.prisme;
+
+import dk.magenta.datafordeler.core.util.Bitemporality;
+import dk.magenta.datafordeler.cpr.data.person.PersonEntity;
+import dk.magenta.datafordeler.cpr.records.person.data.*;
+
+import java.time.OffsetDateTime;
+
+/**
+ * The current record of each category read by {@link PersonOutputWrapperPrisme}, selected once per person
+ * with {@link FilterUtilities#findCurrent(java.util.Collection, Bitemporality)} against a single point in time
+ */
+public class PersonCurrentView {
+
+    private final NameDataRecord name;
+    private final CivilStatusDataRecord civilStatus;
+    private final PersonCoreDataRecord core;
+    private final PersonNumberDataRecord personNumber;
+    private final ParentDataRecord father;
+    private final ParentDataRecord mother;
+    private final PersonStatusDataRecord status;
+    private final ForeignAddressDataRecord foreignAddress;
+    private final AddressDataRecord address;
+    private final ForeignAddressEmigrationDataRecord emigration;
+    private final AddressConameDataRecord coname;
+
+    /**
+     * @param now Point in time the records must be current at, both in registration and effect
+     */
+    public PersonCurrentView(PersonEntity person, OffsetDateTime now) {
+        Bitemporality current = new Bitemporality(now, now, now, now);
+        this.name = FilterUtilities.findCurrent(person.getName(), current);
+        this.civilStatus = FilterUtilities.findCurrent(person.getCivilstatus(), current);
+        this.core = FilterUtilities.findCurrent(person.getCore(), current);
+        this.personNumber = FilterUtilities.findCurrent(person.getPersonNumber(), current);
+        this.father = FilterUtilities.findCurrent(person.getFather(), current);
+        this.mother = FilterUtilities.findCurrent(person.getMother(), current);
+        this.status = FilterUtilities.findCurrent(person.getStatus(), current);
+        this.foreignAddress = FilterUtilities.findCurrent(person.getForeignAddress(), current);
+        this.address = FilterUtilities.findCurrent(person.getAddress(), current);
+        this.emigration = FilterUtilities.findCurrent(person.getEmigration(), current);
+        this.coname = FilterUtilities.findCurrent(person.getConame(), current);
+    }
+
+    public NameDataRecord getName() {
+        return this.name;
+    }
+
+    public CivilStatusDataRecord getCivilStatus() {
+        return this.civilStatus;
+    }
+
+    public PersonCoreDataRecord getCore() {
+        return this.core;
+    }
+
+    public PersonNumberDataRecord getPersonNumber() {
+        return this.personNumber;
+    }
+
+    public ParentDataRecord getFather() {
+        return this.father;
+    }
+
+    public ParentDataRecord getMother() {
+        return this.mother;
+    }
+
+    public PersonStatusDataRecord getStatus() {
+        return this.status;
+    }
+
+    public ForeignAddressDataRecord getForeignAddress() {
+        return this.foreignAddress;
+    }
+
+    public AddressDataRecord getAddress() {
+        return this.address;
+    }
+
+    public ForeignAddressEmigrationDataRecord getEmigration() {
+        return this.emigration;
+    }
+
+    public AddressConameDataRecord getConame() {
+        return this.coname;
+    }
+}
@@ -1,18 +1,21 @@
 package dk.magenta.datafordeler.prisme;
 
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import dk.magenta.datafordeler.core.database.Effect;
 import dk.magenta.datafordeler.core.fapi.BaseQuery;
 import dk.magenta.datafordeler.core.fapi.OutputWrapper;
-import dk.magenta.datafordeler.core.util.Bitemporality;
 import dk.magenta.datafordeler.cpr.data.person.PersonEntity;
-import dk.magenta.datafordeler.cpr.records.person.CprBitemporalPersonRecord;
 import dk.magenta.datafordeler.cpr.records.person.data.*;
 import dk.magenta.datafordeler.geo.GeoLookupDTO;
 import dk.magenta.datafordeler.geo.GeoLookupService;
+import org.hibernate.Hibernate;
+import org.hibernate.Session;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.time.OffsetDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
@@ -27,48 +30,51 @@ public class PersonOutputWrapperPrisme extends OutputWrapper<PersonEntity> {
 
     private GeoLookupService lookupService;
 
+    /**
+     * Set a default lookup service, used by {@link #wrapRecordResult(PersonEntity, BaseQuery)}.
+     * Since this wrapper is a shared singleton, concurrent requests should not rely on this,
+     * but pass their own lookup service to {@link #wrapRecordResult(PersonEntity, BaseQuery, GeoLookupService)}
+     */
     public void setLookupService(GeoLookupService lookupService) {
         this.lookupService = lookupService;
     }
 
-    private <T extends CprBitemporalPersonRecord> T getLatest(Collection<T> records) {
-        //OffsetDateTime latestEffect = OffsetDateTime.MIN;
-        OffsetDateTime latestRegistration = OffsetDateTime.MIN;
-        ArrayList<T> latest = new ArrayList<>();
-        OffsetDateTime now = OffsetDateTime.now();
-        Bitemporality currentBitemp = new Bitemporality(now, now, now, now);
-        OffsetDateTime latestUpdated = OffsetDateTime.MIN;
-        for (T record : records) {
-            if (record.getBitemporality().contains(currentBitemp) && !record.getDafoUpdated().isBefore(latestUpdated) && !record.isUndone()/* && record.getCorrector() == null*/) {
-                OffsetDateTime registrationFrom = record.getRegistrationFrom();
-                if (registrationFrom == null) {
-                    registrationFrom = OffsetDateTime.MIN;
-                }
-                if (!registrationFrom.isBefore(latestRegistration)) {
-                    if (!registrationFrom.isEqual(latestRegistration)) {
-                        latest.clear();
-                    }
-                    latest.add(record);
-                    latestUpdated = record.getDafoUpdated();
-                    latestRegistration = registrationFrom;
-                }
-            }
-        }
-        if (latest.size() > 1) {
-            latest.sort(Comparator.comparing(CprBitemporalPersonRecord::getId));
-        }
-        return latest.isEmpty() ? null : latest.get(latest.size()-1);
+    public Object wrapRecordResult(PersonEntity input, BaseQuery query) {
+        return this.wrapRecordResult(input, query, this.lookupService);
     }
 
-    public Object wrapRecordResult(PersonEntity input, BaseQuery query) {
+    /**
+     * Wrap a person for Prisme output, resolving addresses with the given lookup service.
+     * The lookup service is bound to the caller's session, and is not stored in the wrapper,
+     * so concurrent requests may each use their own.
+     */
+    public Object wrapRecordResult(PersonEntity input, BaseQuery query, GeoLookupService lookupService) {
+        TreeRecordOutput output = new TreeRecordOutput(objectMapper.createObjectNode(), true);
+        this.writeFields(input, lookupService, output);
+        return output.getNode();
+    }
 
-        // Root
-        NodeWrapper root = new NodeWrapper(objectMapper.createObjectNode());
-        root.put("cprNummer", input.getPersonnummer());
+    /**
+     * Write a person for Prisme output directly to a generator, as an object. The output is the same as
+     * {@link #wrapRecordResult(PersonEntity, BaseQuery, GeoLookupService)}, but no tree is built on the way
+     */
+    public void writeRecordResult(PersonEntity input, GeoLookupService lookupService, JsonGenerator generator) throws IOException {
+        generator.writeStartObject();
+        try {
+            this.writeFields(input, lookupService, new GeneratorRecordOutput(generator, true));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        generator.writeEndObject();
+    }
+
+    private void writeFields(PersonEntity input, GeoLookupService lookupService, RecordOutput output) {
+        PersonCurrentView current = new PersonCurrentView(input, OffsetDateTime.now());
+        output.put(FieldNames.CPR_NUMMER, input.getPersonnummer());
 
 
 
-        NameDataRecord nameData = this.getLatest(input.getName());
+        NameDataRecord nameData = current.getName();
         if (nameData != null) {
             StringJoiner nameJoiner = new StringJoiner(" ");
             if (!nameData.getFirstNames().isEmpty()) {
@@ -78,97 +84,97 @@ public class PersonOutputWrapperPrisme extends OutputWrapper<PersonEntity> {
                 nameJoiner.add(nameData.getMiddleName());
             }
             if (nameJoiner.length() > 0) {
-                root.put("fornavn", nameJoiner.toString());
+                output.put(FieldNames.FORNAVN, nameJoiner.toString());
             }
             if (nameData.getLastName() != null && !nameData.getLastName().isEmpty()) {
-                root.put("efternavn", nameData.getLastName());
+                output.put(FieldNames.EFTERNAVN, nameData.getLastName());
             }
         }
 
-        CivilStatusDataRecord civilStatusData = this.getLatest(input.getCivilstatus());
+        CivilStatusDataRecord civilStatusData = current.getCivilStatus();
         if (civilStatusData != null) {
-            root.put("civilstand", civilStatusData.getCivilStatus());
-            root.put("civilstandsdato", formatDate(civilStatusData.getEffectFrom()));
+            output.put(FieldNames.CIVILSTAND, civilStatusData.getCivilStatus());
+            output.put(FieldNames.CIVILSTANDSDATO, formatDate(civilStatusData.getEffectFrom()));
             if (!civilStatusData.getSpouseCpr().isEmpty()) {
-                root.put("ægtefælleCprNummer", civilStatusData.getSpouseCpr());
+                output.put(FieldNames.AEGTEFAELLE_CPR_NUMMER, civilStatusData.getSpouseCpr());
             }
         }
 
-        root.put("adressebeskyttelse", false);
+        output.put(FieldNames.ADRESSEBESKYTTELSE, false);
         /*Collection<ProtectionDataRecord> personProtectionData = input.getProtection();
         if (personProtectionData != null && !personProtectionData.isEmpty()) {
             for (ProtectionDataRecord personProtectionDataItem : personProtectionData) {
                 if (personProtectionDataItem.getRegistrationTo() == null && (personProtectionDataItem.getEffectTo() == null || personProtectionDataItem.getEffectTo().isAfter(OffsetDateTime.now())) && personProtectionDataItem.getProtectionType() == 1) {
-                    root.put("adressebeskyttelse", true);
+                    output.put(FieldNames.ADRESSEBESKYTTELSE, true);
                     break;
                 }
             }
         }*/
 
-        PersonCoreDataRecord personCoreData = this.getLatest(input.getCore());
+        PersonCoreDataRecord personCoreData = current.getCore();
         if (personCoreData != null) {
             if (personCoreData.getGender() != null) {
-                root.put("køn", (personCoreData.getGender() == PersonCoreDataRecord.Koen.KVINDE) ? "K" : "M");
+                output.put(FieldNames.KOEN, (personCoreData.getGender() == PersonCoreDataRecord.Koen.KVINDE) ? "K" : "M");
             }
         }
 
-        PersonNumberDataRecord personNumberDataRecord = this.getLatest(input.getPersonNumber());
+        PersonNumberDataRecord personNumberDataRecord = current.getPersonNumber();
         if (personNumberDataRecord != null) {
             String newPnr = personNumberDataRecord.getCprNumber();
             if (newPnr != null && !newPnr.isEmpty() && !input.getPersonnummer().equals(newPnr)) {
-                root.put("nytCprNummer", newPnr);
+                output.put(FieldNames.NYT_CPR_NUMMER, newPnr);
             }
         }
 
-        ParentDataRecord fatherData = this.getLatest(input.getFather());
+        ParentDataRecord fatherData = current.getFather();
         if (fatherData != null) {
-            root.put("far", fatherData.getCprNumber());
+            output.put(FieldNames.FAR, fatherData.getCprNumber());
         }
 
-        ParentDataRecord motherData = this.getLatest(input.getMother());
+        ParentDataRecord motherData = current.getMother();
         if (motherData != null) {
-            root.put("mor", motherData.getCprNumber());
+            output.put(FieldNames.MOR, motherData.getCprNumber());
         }
 
-        PersonStatusDataRecord personStatusData = this.getLatest(input.getStatus());
+        PersonStatusDataRecord personStatusData = current.getStatus();
         if (personStatusData != null) {
-            root.put("statuskode", personStatusData.getStatus());
-            root.put("statuskodedato", this.formatDate(
+            output.put(FieldNames.STATUSKODE, personStatusData.getStatus());
+            output.put(FieldNames.STATUSKODEDATO, this.formatDate(
                     personStatusData.getEffectFrom() != null ? personStatusData.getEffectFrom() : personStatusData.getRegistrationFrom()
             ));
         }
 
-        ForeignAddressDataRecord personForeignAddressData = this.getLatest(input.getForeignAddress());
-        AddressDataRecord personAddressData = this.getLatest(input.getAddress());
+        ForeignAddressDataRecord personForeignAddressData = current.getForeignAddress();
+        AddressDataRecord personAddressData = current.getAddress();
 
         if (personForeignAddressData != null && (personAddressData == null || personForeignAddressData.getEffectFrom().isAfter(personAddressData.getEffectFrom()))) {
             String address = personForeignAddressData.join("\n");
-            root.put("udlandsadresse", address);
-            ForeignAddressEmigrationDataRecord personEmigrationData = this.getLatest(input.getEmigration());
+            output.put(FieldNames.UDLANDSADRESSE, address);
+            ForeignAddressEmigrationDataRecord personEmigrationData = current.getEmigration();
             if (personEmigrationData != null) {
-                root.put("landekode", countryCodeMap.get(personEmigrationData.getEmigrationCountryCode()));
-                root.put("udrejsedato", formatDate(personEmigrationData.getEffectFrom()));
+                output.put(FieldNames.LANDEKODE, countryCodeMap.get(personEmigrationData.getEmigrationCountryCode()));
+                output.put(FieldNames.UDREJSEDATO, formatDate(personEmigrationData.getEffectFrom()));
             }
         } else {
             if (personAddressData != null) {
-                root.put("tilflytningsdato", formatDate(personAddressData.getEffectFrom()));
+                output.put(FieldNames.TILFLYTNINGSDATO, formatDate(personAddressData.getEffectFrom()));
                 int municipalityCode = personAddressData.getMunicipalityCode();
-                root.put("myndighedskode", municipalityCode);
+                output.put(FieldNames.MYNDIGHEDSKODE, municipalityCode);
                 int roadCode = personAddressData.getRoadCode();
                 String houseNumber = personAddressData.getHouseNumber();
                 String personBuildingNumber = personAddressData.getBuildingNumber();
                 if (roadCode > 0) {
-                    root.put("vejkode", roadCode);
+                    output.put(FieldNames.VEJKODE, roadCode);
 
                     GeoLookupDTO lookup = lookupService.doLookup(municipalityCode, roadCode, houseNumber, personBuildingNumber);
 
-                    root.put("kommune", lookup.getMunicipalityName());
+                    output.put(FieldNames.KOMMUNE, lookup.getMunicipalityName());
 
                     String buildingNumber = lookup.getbNumber();
                     String roadName = lookup.getRoadName();
 
                     if (roadName != null) {
-                        root.put("adresse", this.getAddressFormatted(
+                        output.put(FieldNames.ADRESSE, this.getAddressFormatted(
                                 roadName,
                                 personAddressData.getHouseNumber(),
                                 null,
@@ -178,23 +184,23 @@ public class PersonOutputWrapperPrisme extends OutputWrapper<PersonEntity> {
                                 buildingNumber
                         ));
                     } else if (buildingNumber != null && !buildingNumber.isEmpty()) {
-                        root.put("adresse", buildingNumber);
+                        output.put(FieldNames.ADRESSE, buildingNumber);
                     }
 
-                    root.put("postnummer", lookup.getPostalCode());
-                    root.put("bynavn", lookup.getPostalDistrict());
-                    root.put("stedkode", lookup.getLocalityCodeNumber());
+                    output.put(FieldNames.POSTNUMMER, lookup.getPostalCode());
+                    output.put(FieldNames.BYNAVN, lookup.getPostalDistrict());
+                    output.put(FieldNames.STEDKODE, lookup.getLocalityCodeNumber());
                 }
 
                 if (municipalityCode > 0 && municipalityCode < 900) {
-                    root.put("landekode", "DK");
+                    output.put(FieldNames.LANDEKODE, "DK");
                 } else if (municipalityCode > 900) {
-                    root.put("landekode", "GL");
+                    output.put(FieldNames.LANDEKODE, "GL");
                 }
             }
         }
 
-        AddressConameDataRecord personAddressConameData = this.getLatest(input.getConame());
+        AddressConameDataRecord personAddressConameData = current.getConame();
         if (personAddressConameData != null && !personAddressConameData.getConame().isEmpty()) {
             String coname = personAddressConameData.getConame();
             if (coname != null) {
@@ -203,12 +209,57 @@ public class PersonOutputWrapperPrisme extends OutputWrapper<PersonEntity> {
                 if (m.find()) {
                     try {
                         int postbox = Integer.parseInt(m.group(1), 10);
-                        root.put("postboks", postbox);
+                        output.put(FieldNames.POSTBOKS, postbox);
                     } catch (NumberFormatException e) {}
                 }
             }
         }
-        return root.getNode();
+    }
+
+    /**
+     * Load all the records read by the wrapper, so the entity can be wrapped after it has been detached from its session
+     */
+    public void loadRecords(PersonEntity input) {
+        Hibernate.initialize(input.getName());
+        Hibernate.initialize(input.getCivilstatus());
+        Hibernate.initialize(input.getCore());
+        Hibernate.initialize(input.getPersonNumber());
+        Hibernate.initialize(input.getFather());
+        Hibernate.initialize(input.getMother());
+        Hibernate.initialize(input.getStatus());
+        Hibernate.initialize(input.getForeignAddress());
+        Hibernate.initialize(input.getAddress());
+        Hibernate.initialize(input.getEmigration());
+        Hibernate.initialize(input.getConame());
+    }
+
+    /**
+     * The record collections read by the wrapper, by their mapped names in PersonEntity
+     */
+    static final String[] RECORD_COLLECTIONS = {
+            "name", "civilstatus", "core", "personNumber", "father", "mother",
+            "status", "foreignAddress", "address", "emigration", "coname"
+    };
+
+    /**
+     * Load all the records read by the wrapper for a chunk of persons in the given session, with one query per
+     * collection for the whole chunk instead of one per collection per person
+     */
+    public void loadRecords(Session session, Collection<PersonEntity> input) {
+        if (input.isEmpty()) {
+            return;
+        }
+        ArrayList<Long> ids = new ArrayList<>(input.size());
+        for (PersonEntity personEntity : input) {
+            ids.add(personEntity.getId());
+        }
+        for (String collection : RECORD_COLLECTIONS) {
+            // The persons are already in the session, so the fetched collections are set on them
+            session.createQuery(
+                    "select distinct p from " + PersonEntity.class.getCanonicalName() + " p left join fetch p." + collection + " where p.id in :ids",
+                    PersonEntity.class
+            ).setParameterList("ids", ids).getResultList();
+        }
     }
 
     @Override
@@ -0,0 +1,188 @@
+package dk.magenta.datafordeler.prisme;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.util.ByteArrayBuilder;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import dk.magenta.datafordeler.core.database.QueryManager;
+import dk.magenta.datafordeler.core.database.SessionManager;
+import dk.magenta.datafordeler.cpr.data.person.PersonEntity;
+import dk.magenta.datafordeler.cpr.data.person.PersonRecordQuery;
+import dk.magenta.datafordeler.geo.GeoLookupService;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.hibernate.Session;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Optional projection of the Prisme person output, holding each person's output already wrapped and serialized,
+ * with addresses resolved. When enabled, the CPR endpoints serve persons found here without loading their entities.
+ * The projection is built on startup, and kept up to date on a background thread by re-wrapping the persons
+ * with records imported since the last refresh. Since a record may also stop being current just because time passes,
+ * the projection is rebuilt completely at a longer interval
+ */
+@Component
+public class PersonProjection {
+
+    private Logger log = LogManager.getLogger(PersonProjection.class.getCanonicalName());
+
+    /**
+     * Refreshes look back this much further than the start of the previous refresh,
+     * to catch imports that were still running when it queried
+     */
+    private static final Duration REFRESH_OVERLAP = Duration.ofMinutes(5);
+
+    @Autowired
+    private SessionManager sessionManager;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Autowired
+    private PersonOutputWrapperPrisme personOutputWrapper;
+
+    @Autowired
+    private GeoLookupCache geoLookupCache;
+
+    @Value("${dafo.prisme.cpr.projection.enabled:false}")
+    private boolean enabled;
+
+    @Value("${dafo.prisme.cpr.projection.refreshIntervalSeconds:60}")
+    private long refreshIntervalSeconds;
+
+    @Value("${dafo.prisme.cpr.projection.rebuildIntervalHours:24}")
+    private long rebuildIntervalHours;
+
+    // Null until the first build has finished
+    private volatile ConcurrentHashMap<String, byte[]> persons;
+
+    private OffsetDateTime lastRefresh;
+
+    private OffsetDateTime lastRebuild;
+
+    private ScheduledExecutorService executor;
+
+    @PostConstruct
+    public void init() {
+        if (this.enabled) {
+            this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "prisme-person-projection");
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.executor.scheduleWithFixedDelay(this::refresh, 0, Math.max(1, this.refreshIntervalSeconds), TimeUnit.SECONDS);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (this.executor != null) {
+            this.executor.shutdownNow();
+        }
+    }
+
+    public boolean isReady() {
+        return this.persons != null;
+    }
+
+    public int size() {
+        ConcurrentHashMap<String, byte[]> persons = this.persons;
+        return persons != null ? persons.size() : 0;
+    }
+
+    /**
+     * Get the serialized output for a person
+     * @return The output as UTF-8 JSON, or null if the person is not in the projection
+     */
+    public byte[] get(String cprNumber) {
+        ConcurrentHashMap<String, byte[]> persons = this.persons;
+        return persons != null ? persons.get(cprNumber) : null;
+    }
+
+    /**
+     * Get bulk output rows for the given persons that are in the projection, and remove them from the set,
+     * leaving the ones that must be looked up in the database
+     */
+    public List<byte[]> takeRows(Set<String> cprNumbers) {
+        ArrayList<byte[]> rows = new ArrayList<>();
+        Iterator<String> iterator = cprNumbers.iterator();
+        while (iterator.hasNext()) {
+            String cprNumber = iterator.next();
+            byte[] output = this.get(cprNumber);
+            if (output != null) {
+                rows.add(ParallelBulkWriter.row(cprNumber, output));
+                iterator.remove();
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * Update the projection with persons imported since the last refresh, or rebuild it if it is due
+     */
+    public void refresh() {
+        try {
+            OffsetDateTime start = OffsetDateTime.now();
+            if (this.persons == null || this.lastRebuild.plusHours(this.rebuildIntervalHours).isBefore(start)) {
+                ConcurrentHashMap<String, byte[]> rebuilt = new ConcurrentHashMap<>();
+                int count = this.load(null, start, rebuilt);
+                this.persons = rebuilt;
+                this.lastRebuild = start;
+                log.info("Built person projection with " + count + " persons in " + Duration.between(start, OffsetDateTime.now()).toMillis() + " ms");
+            } else {
+                int count = this.load(this.lastRefresh.minus(REFRESH_OVERLAP), start, this.persons);
+                log.debug("Refreshed " + count + " persons in person projection");
+            }
+            this.lastRefresh = start;
+        } catch (Exception e) {
+            log.error("Failed refreshing person projection", e);
+        }
+    }
+
+    /**
+     * Wrap and serialize the persons with records updated after updatedSince (all persons if null) into target
+     */
+    private int load(OffsetDateTime updatedSince, OffsetDateTime now, Map<String, byte[]> target) throws IOException {
+        PersonRecordQuery query = new PersonRecordQuery();
+        query.setPageSize(Integer.MAX_VALUE);
+        query.setRecordAfter(updatedSince);
+        query.setRegistrationFromBefore(now);
+        query.setRegistrationToAfter(now);
+        query.setEffectFromBefore(now);
+        query.setEffectToAfter(now);
+
+        int count = 0;
+        try (
+                Session entitySession = sessionManager.getSessionFactory().openSession();
+                Session lookupSession = sessionManager.getSessionFactory().openSession()
+        ) {
+            query.applyFilters(entitySession);
+            GeoLookupService lookupService = geoLookupCache.getLookupService(lookupSession);
+            ByteArrayBuilder buffer = new ByteArrayBuilder();
+            Iterator<PersonEntity> iterator = QueryManager.getAllEntitiesAsStream(entitySession, query, PersonEntity.class).iterator();
+            while (iterator.hasNext()) {
+                PersonEntity personEntity = iterator.next();
+                try (JsonGenerator generator = objectMapper.getFactory().createGenerator(buffer)) {
+                    personOutputWrapper.writeRecordResult(personEntity, lookupService, generator);
+                }
+                target.put(personEntity.getPersonnummer(), buffer.toByteArray());
+                buffer.reset();
+                entitySession.evict(personEntity);
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,182 @@
+package dk.magenta.datafordeler.prisme;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import javax.annotation.PostConstruct;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Micrometer instrumentation of the Prisme endpoints, registered in the MeterRegistry set up by Spring Boot actuator
+ * and read through its metrics endpoint, which is exposed over http with
+ * management.endpoints.web.exposure.include=metrics in the application's configuration.
+ * Request timings per endpoint come from actuator's own http.server.requests timer, and this adds the meters below.
+ * Each meter is created once and kept, as most are used on hot paths:
+ * <ul>
+ *     <li>prisme.stage: time spent in each stage of producing output, tagged by stage</li>
+ *     <li>prisme.bulk.stream: time spent streaming a bulk response, tagged by endpoint</li>
+ *     <li>prisme.bulk.records and prisme.bulk.bytes: records and bytes written by bulk responses, tagged by endpoint</li>
+ *     <li>prisme.bulk.active: bulk responses being streamed right now</li>
+ *     <li>prisme.cpr.direct.fallbacks: persons looked up directly in CPR, tagged by the reason</li>
+ *     <li>prisme.geo.cache: geo lookups answered from the cache or not, tagged by result</li>
+ * </ul>
+ */
+@Component
+public class PrismeMetrics {
+
+    private Logger log = LogManager.getLogger(PrismeMetrics.class.getCanonicalName());
+
+    public static final String STAGE_FETCH = "fetch";
+    public static final String STAGE_WRAP = "wrap";
+    public static final String STAGE_GEO_LOOKUP = "geoLookup";
+    public static final String STAGE_DIRECT_LOOKUP = "directLookup";
+    public static final String STAGE_CVR_LOOKUP = "cvrLookup";
+    public static final String STAGE_GER_LOOKUP = "gerLookup";
+
+    @Autowired(required = false)
+    private MeterRegistry meterRegistry;
+
+    private final AtomicInteger activeBulkStreams = new AtomicInteger();
+
+    // The endpoint whose bulk response is being written on the current thread
+    private final ThreadLocal<String> currentEndpoint = new ThreadLocal<>();
+
+    private final ConcurrentHashMap<String, Timer> stageTimers = new ConcurrentHashMap<>();
+
+    private final ConcurrentHashMap<String, Counter> recordCounters = new ConcurrentHashMap<>();
+
+    private final ConcurrentHashMap<String, Counter> byteCounters = new ConcurrentHashMap<>();
+
+    private final ConcurrentHashMap<String, Timer> streamTimers = new ConcurrentHashMap<>();
+
+    private final ConcurrentHashMap<String, Counter> fallbackCounters = new ConcurrentHashMap<>();
+
+    private Counter geoCacheHits;
+
+    private Counter geoCacheMisses;
+
+    @PostConstruct
+    public void init() {
+        if (this.meterRegistry == null) {
+            log.warn("No meter registry found, Prisme metrics are kept in a registry of their own and not published");
+            this.meterRegistry = new SimpleMeterRegistry();
+        }
+        this.meterRegistry.gauge("prisme.bulk.active", this.activeBulkStreams);
+        this.geoCacheHits = Counter.builder("prisme.geo.cache").tag("result", "hit").register(this.meterRegistry);
+        this.geoCacheMisses = Counter.builder("prisme.geo.cache").tag("result", "miss").register(this.meterRegistry);
+    }
+
+    public MeterRegistry getMeterRegistry() {
+        return this.meterRegistry;
+    }
+
+    public Timer stage(String stage) {
+        return this.stageTimers.computeIfAbsent(stage,
+                s -> Timer.builder("prisme.stage").tag("stage", s).register(this.meterRegistry)
+        );
+    }
+
+    /**
+     * Run the given code, timing it as the given stage
+     */
+    public <T> T time(String stage, Supplier<T> code) {
+        return this.stage(stage).record(code);
+    }
+
+    /**
+     * Record the time spent in a stage that started at the given System.nanoTime()
+     */
+    public void recordStage(String stage, long startNanos) {
+        this.stage(stage).record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Count records written by the bulk response on the current thread
+     */
+    public void recordsEmitted(int count) {
+        String endpoint = this.currentEndpoint.get();
+        if (endpoint != null && count > 0) {
+            this.recordCounters.computeIfAbsent(endpoint,
+                    e -> Counter.builder("prisme.bulk.records").tag("endpoint", e).register(this.meterRegistry)
+            ).increment(count);
+        }
+    }
+
+    public void directLookupFallbacks(String reason, int count) {
+        if (count > 0) {
+            this.fallbackCounters.computeIfAbsent(reason,
+                    r -> Counter.builder("prisme.cpr.direct.fallbacks").tag("reason", r).register(this.meterRegistry)
+            ).increment(count);
+        }
+    }
+
+    public void geoCacheLookup(boolean hit) {
+        (hit ? this.geoCacheHits : this.geoCacheMisses).increment();
+    }
+
+    /**
+     * Instrument a bulk response, timing it and counting the bytes it writes.
+     * Records emitted while it is written are attributed to the given endpoint
+     */
+    public StreamingResponseBody instrumentBulk(String endpoint, StreamingResponseBody body) {
+        Counter bytes = this.byteCounters.computeIfAbsent(endpoint,
+                e -> Counter.builder("prisme.bulk.bytes").tag("endpoint", e).register(this.meterRegistry)
+        );
+        Timer timer = this.streamTimers.computeIfAbsent(endpoint,
+                e -> Timer.builder("prisme.bulk.stream").tag("endpoint", e).register(this.meterRegistry)
+        );
+        return outputStream -> {
+            this.activeBulkStreams.incrementAndGet();
+            this.currentEndpoint.set(endpoint);
+            long start = System.nanoTime();
+            try {
+                body.writeTo(new CountingOutputStream(outputStream, bytes));
+            } finally {
+                timer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                this.currentEndpoint.remove();
+                this.activeBulkStreams.decrementAndGet();
+            }
+        };
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+
+        private final Counter counter;
+
+        CountingOutputStream(OutputStream out, Counter counter) {
+            super(out);
+            this.counter = counter;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            this.out.write(b);
+            this.counter.increment();
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            this.out.write(b, off, len);
+            this.counter.increment(len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            // The response stream is closed by the container
+            this.out.flush();
+        }
+    }
+}
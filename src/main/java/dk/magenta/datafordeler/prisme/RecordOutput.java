@@ -0,0 +1,24 @@
+package dk.magenta.datafordeler.prisme;
+
+import com.fasterxml.jackson.core.io.SerializedString;
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * Receives the fields of a wrapped record. The wrappers write each record through this interface, so the same code
+ * can either build a tree ({@link TreeRecordOutput}) or write straight to a stream ({@link GeneratorRecordOutput}).
+ * Field names are passed pre-encoded, see {@link FieldNames}
+ */
+public interface RecordOutput {
+
+    void put(SerializedString key, String value);
+
+    void put(SerializedString key, Boolean value);
+
+    void put(SerializedString key, Short value);
+
+    void put(SerializedString key, Integer value);
+
+    void put(SerializedString key, Long value);
+
+    void set(SerializedString key, JsonNode value);
+}
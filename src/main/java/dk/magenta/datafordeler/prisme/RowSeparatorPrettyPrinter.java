@@ -0,0 +1,25 @@
+package dk.magenta.datafordeler.prisme;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.util.MinimalPrettyPrinter;
+
+import java.io.IOException;
+
+/**
+ * Writes compact JSON, except that the rows of the outermost object are separated by ",\n".
+ * Bulk endpoints writing with a JsonGenerator use this, so their output has the same layout as the rows
+ * written by {@link ParallelBulkWriter}, one row per line
+ */
+public class RowSeparatorPrettyPrinter extends MinimalPrettyPrinter {
+
+    private static final String ROW_SEPARATOR = ",\n";
+
+    @Override
+    public void writeObjectEntrySeparator(JsonGenerator generator) throws IOException {
+        if (generator.getOutputContext().getParent().inRoot()) {
+            generator.writeRaw(ROW_SEPARATOR);
+        } else {
+            super.writeObjectEntrySeparator(generator);
+        }
+    }
+}
@@ -1,8 +1,11 @@
 package dk.magenta.datafordeler.prisme;
 
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import dk.magenta.datafordeler.core.MonitorService;
 import dk.magenta.datafordeler.core.arearestriction.AreaRestriction;
 import dk.magenta.datafordeler.core.arearestriction.AreaRestrictionType;
@@ -26,17 +29,25 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.hibernate.Session;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.MediaType;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import javax.annotation.PostConstruct;
 import javax.servlet.http.HttpServletRequest;
+import java.io.IOException;
 import java.time.OffsetDateTime;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Objects;
+import java.util.regex.Pattern;
 
 /**
  * Lookup a householde with a cpr as input parameter, return all cpr's of persons living on the same address, together with address information
@@ -51,6 +62,9 @@ public class SameAddressService {
     @Autowired
     ObjectMapper objectMapper;
 
+    @Autowired
+    private PrismeMetrics metrics;
+
     @Autowired
     private DafoUserManager dafoUserManager;
 
@@ -60,6 +74,9 @@ public class SameAddressService {
     @Autowired
     protected MonitorService monitorService;
 
+    @Autowired
+    private GeoLookupCache geoLookupCache;
+
     private Logger log = LogManager.getLogger(SameAddressService.class.getCanonicalName());
 
     @Autowired
@@ -82,7 +99,7 @@ public class SameAddressService {
 
 
         try(Session session = sessionManager.getSessionFactory().openSession()) {
-            GeoLookupService lookupService = new GeoLookupService(session);
+            GeoLookupService lookupService = geoLookupCache.getLookupService(session);
 
             PersonRecordQuery personQuery = new PersonRecordQuery();
             personQuery.setPersonnummer(cprNummer);
@@ -100,51 +117,198 @@ public class SameAddressService {
             if (!personEntities.isEmpty()) {
                 PersonEntity person = personEntities.get(0);
                 AddressDataRecord address = FilterUtilities.findNewestUnclosed(person.getAddress());
+                return objectMapper.writeValueAsString(
+                        this.wrapHousehold(cprNummer, address, this.lookupSameAddress(session, address), lookupService)
+                );
+            }
+            throw new HttpNotFoundException("No entity with CPR number " + cprNummer + " was found");
+        }
+    }
 
-                PersonRecordQuery personSameAddressQuery = new PersonRecordQuery();
-                personSameAddressQuery.setPageSize("30");
-                personSameAddressQuery.addKommunekode(address.getMunicipalityCode());
-                personSameAddressQuery.addVejkode(address.getRoadCode());
-                personSameAddressQuery.addHouseNo(address.getHouseNumber());
-                personSameAddressQuery.addDoor(address.getDoor());
-                personSameAddressQuery.addFloor(address.getFloor());
-                personSameAddressQuery.addBuildingNo(address.getBuildingNumber());
+    private static final String PARAM_CPR_NUMBER = "cprNumber";
 
-                ArrayNode sameAddressCprs = objectMapper.createArrayNode();
+    @Value("${dafo.prisme.sameaddress.bulk.fetchChunkSize:500}")
+    private int fetchChunkSize;
 
-                List<PersonEntity> personEntitiesOnSameAdd = QueryManager.getAllEntities(session, personSameAddressQuery, PersonEntity.class);
-                for(PersonEntity personentity : personEntitiesOnSameAdd) {
-                    sameAddressCprs.add(personentity.getPersonnummer());
-                }
+    /**
+     * Look up the households of many persons at once. The output is a JSON object with the same output as the single
+     * lookup for each person found, keyed by CPR number.
+     * Persons are fetched in chunks, and the persons on each address are looked up only once per request,
+     * however many of the input persons live there
+     */
+    @RequestMapping(method = RequestMethod.POST, path = "/", produces = {MediaType.APPLICATION_JSON_VALUE})
+    public StreamingResponseBody getBulk(HttpServletRequest request)
+            throws AccessDeniedException, AccessRequiredException, InvalidTokenException, InvalidClientInputException, InvalidCertificateException {
+        JsonNode requestBody;
+        try {
+            requestBody = objectMapper.readTree(request.getInputStream());
+        } catch (IOException e) {
+            throw new InvalidClientInputException(e.getMessage());
+        }
+        if (requestBody == null || !requestBody.isObject()) {
+            throw new InvalidClientInputException("Input is not a JSON object");
+        }
+        final List<String> cprNumbers = requestBody.has(PARAM_CPR_NUMBER) ? this.getCprNumber(requestBody.get(PARAM_CPR_NUMBER)) : null;
 
-                OutputWrapper.NodeWrapper root = new OutputWrapper.NodeWrapper(objectMapper.createObjectNode());
+        DafoUserDetails user = dafoUserManager.getUserFromRequest(request);
+        LoggerHelper loggerHelper = new LoggerHelper(log, request, user);
+        loggerHelper.info(
+                "Incoming REST request for PrismeSameAddressService with " +
+                        PARAM_CPR_NUMBER + " = " + (cprNumbers != null && cprNumbers.size() > 10 ? (cprNumbers.size() + " cpr numbers") : cprNumbers)
+        );
+        this.checkAndLogAccess(loggerHelper);
 
-                root.put("cprNumber", cprNummer);
+        if (cprNumbers == null || cprNumbers.isEmpty()) {
+            throw new InvalidClientInputException("Please specify at least one CPR number");
+        }
 
-                int municipalityCode = address.getMunicipalityCode();
-                root.put("municipalitycode", municipalityCode);
-                int roadCode = address.getRoadCode();
-                root.put("roadcode", address.getRoadCode());
-                root.put("housenumber", address.getHouseNumber());
-                root.put("floor", address.getFloor());
-                root.put("door", address.getDoor());
-                root.put("buildingNo", address.getBuildingNumber());
+        OffsetDateTime now = OffsetDateTime.now();
+        ArrayList<PersonRecordQuery> chunkQueries = new ArrayList<>();
+        for (List<String> chunk : ParallelBulkWriter.partition(new LinkedHashSet<>(cprNumbers), this.fetchChunkSize)) {
+            PersonRecordQuery chunkQuery = new PersonRecordQuery();
+            chunkQuery.setPageSize(Integer.MAX_VALUE);
+            for (String cprNumber : chunk) {
+                chunkQuery.addPersonnummer(cprNumber);
+            }
+            chunkQuery.setRegistrationFromBefore(now);
+            chunkQuery.setRegistrationToAfter(now);
+            chunkQuery.setEffectFromBefore(now);
+            chunkQuery.setEffectToAfter(now);
+            this.applyAreaRestrictionsToQuery(chunkQuery, user);
+            chunkQueries.add(chunkQuery);
+        }
 
-                if (municipalityCode > 0 && lookupService != null) {
-                    GeoLookupDTO lookup = lookupService.doLookup(municipalityCode, roadCode);
-                    if (lookup.getLocalityCodeNumber() != 0) {
-                        root.put("localityCode", lookup.getLocalityCodeNumber());
-                        root.put("roadName", lookup.getRoadName());
+        return metrics.instrumentBulk("sameaddress/1", outputStream -> {
+            try (Session session = sessionManager.getSessionFactory().openSession()) {
+                chunkQueries.get(0).applyFilters(session);
+                // Persons on each address, shared by all input persons living there
+                HashMap<AddressKey, ArrayNode> households = new HashMap<>();
+                // Not closed, as that would close the response stream
+                JsonGenerator generator = objectMapper.getFactory().createGenerator(outputStream);
+                generator.setPrettyPrinter(new RowSeparatorPrettyPrinter());
+                generator.writeStartObject();
+                for (PersonRecordQuery chunkQuery : chunkQueries) {
+                    GeoLookupService lookupService = geoLookupCache.getLookupService(session);
+                    for (PersonEntity person : QueryManager.getAllEntities(session, chunkQuery, PersonEntity.class)) {
+                        AddressDataRecord address = FilterUtilities.findNewestUnclosed(person.getAddress());
+                        if (address != null) {
+                            ArrayNode sameAddressCprs = households.computeIfAbsent(
+                                    new AddressKey(address), key -> this.lookupSameAddress(session, address)
+                            );
+                            generator.writeFieldName(person.getPersonnummer());
+                            generator.writeTree(this.wrapHousehold(person.getPersonnummer(), address, sameAddressCprs, lookupService));
+                        }
                     }
+                    generator.flush();
+                    session.clear();
                 }
+                generator.writeEndObject();
+                generator.flush();
+            }
+        });
+    }
 
-                root.set("sameAddressCprs", sameAddressCprs);
-                return objectMapper.writeValueAsString(root.getNode());
+    /**
+     * Look up the CPR numbers of the persons living on the given address
+     */
+    private ArrayNode lookupSameAddress(Session session, AddressDataRecord address) {
+        PersonRecordQuery personSameAddressQuery = new PersonRecordQuery();
+        personSameAddressQuery.setPageSize("30");
+        personSameAddressQuery.addKommunekode(address.getMunicipalityCode());
+        personSameAddressQuery.addVejkode(address.getRoadCode());
+        personSameAddressQuery.addHouseNo(address.getHouseNumber());
+        personSameAddressQuery.addDoor(address.getDoor());
+        personSameAddressQuery.addFloor(address.getFloor());
+        personSameAddressQuery.addBuildingNo(address.getBuildingNumber());
+
+        ArrayNode sameAddressCprs = objectMapper.createArrayNode();
+
+        List<PersonEntity> personEntitiesOnSameAdd = QueryManager.getAllEntities(session, personSameAddressQuery, PersonEntity.class);
+        for(PersonEntity personentity : personEntitiesOnSameAdd) {
+            sameAddressCprs.add(personentity.getPersonnummer());
+        }
+        return sameAddressCprs;
+    }
+
+    private ObjectNode wrapHousehold(String cprNummer, AddressDataRecord address, ArrayNode sameAddressCprs, GeoLookupService lookupService) {
+        OutputWrapper.NodeWrapper root = new OutputWrapper.NodeWrapper(objectMapper.createObjectNode());
+
+        root.put("cprNumber", cprNummer);
+
+        int municipalityCode = address.getMunicipalityCode();
+        root.put("municipalitycode", municipalityCode);
+        int roadCode = address.getRoadCode();
+        root.put("roadcode", address.getRoadCode());
+        root.put("housenumber", address.getHouseNumber());
+        root.put("floor", address.getFloor());
+        root.put("door", address.getDoor());
+        root.put("buildingNo", address.getBuildingNumber());
+
+        if (municipalityCode > 0 && lookupService != null) {
+            GeoLookupDTO lookup = lookupService.doLookup(municipalityCode, roadCode);
+            if (lookup.getLocalityCodeNumber() != 0) {
+                root.put("localityCode", lookup.getLocalityCodeNumber());
+                root.put("roadName", lookup.getRoadName());
             }
-            throw new HttpNotFoundException("No entity with CPR number " + cprNummer + " was found");
         }
+
+        root.set("sameAddressCprs", sameAddressCprs);
+        return root.getNode();
     }
 
+    /**
+     * The parts of an address that the same-address lookup matches on
+     */
+    private static final class AddressKey {
+        private final int municipalityCode;
+        private final int roadCode;
+        private final String houseNumber;
+        private final String door;
+        private final String floor;
+        private final String buildingNumber;
+
+        private AddressKey(AddressDataRecord address) {
+            this.municipalityCode = address.getMunicipalityCode();
+            this.roadCode = address.getRoadCode();
+            this.houseNumber = address.getHouseNumber();
+            this.door = address.getDoor();
+            this.floor = address.getFloor();
+            this.buildingNumber = address.getBuildingNumber();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            AddressKey that = (AddressKey) o;
+            return municipalityCode == that.municipalityCode &&
+                    roadCode == that.roadCode &&
+                    Objects.equals(houseNumber, that.houseNumber) &&
+                    Objects.equals(door, that.door) &&
+                    Objects.equals(floor, that.floor) &&
+                    Objects.equals(buildingNumber, that.buildingNumber);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(municipalityCode, roadCode, houseNumber, door, floor, buildingNumber);
+        }
+    }
+
+    private static Pattern nonDigits = Pattern.compile("[^\\d]");
+    private List<String> getCprNumber(JsonNode node) {
+        ArrayList<String> cprNumbers = new ArrayList<>();
+        if (node.isArray()) {
+            for (JsonNode item : node) {
+                cprNumbers.addAll(this.getCprNumber(item));
+            }
+        } else if (node.isTextual()) {
+            cprNumbers.add(nonDigits.matcher(node.asText()).replaceAll(""));
+        } else if (node.isNumber()) {
+            cprNumbers.add(String.format("%010d", node.asInt()));
+        }
+        return cprNumbers;
+    }
 
     protected void checkAndLogAccess(LoggerHelper loggerHelper) throws AccessDeniedException, AccessRequiredException {
         try {
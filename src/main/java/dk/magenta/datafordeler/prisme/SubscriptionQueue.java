@@ -0,0 +1,130 @@
+package dk.magenta.datafordeler.prisme;
+
+import dk.magenta.datafordeler.cpr.data.person.PersonEntityManager;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects CPR numbers that should be subscribed to, and creates the subscriptions in batches on a background thread.
+ * Numbers already pending, or subscribed recently by this queue, are not queued again.
+ * A batch is written when the flush interval has passed or when batchSize numbers are pending, whichever comes first
+ */
+@Component
+public class SubscriptionQueue {
+
+    private Logger log = LogManager.getLogger(SubscriptionQueue.class.getCanonicalName());
+
+    @Autowired
+    private PersonEntityManager entityManager;
+
+    @Value("${dafo.prisme.cpr.subscription.flushIntervalMillis:5000}")
+    private long flushIntervalMillis;
+
+    @Value("${dafo.prisme.cpr.subscription.batchSize:100}")
+    private int batchSize;
+
+    @Value("${dafo.prisme.cpr.subscription.rememberSubscribed:100000}")
+    private int rememberSubscribed;
+
+    private final LinkedHashSet<String> pending = new LinkedHashSet<>();
+
+    private final Set<String> subscribed = Collections.newSetFromMap(new LinkedHashMap<String, Boolean>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return this.size() > SubscriptionQueue.this.rememberSubscribed;
+        }
+    });
+
+    private final Object flushLock = new Object();
+
+    private ScheduledExecutorService executor;
+
+    @PostConstruct
+    public void init() {
+        if (this.batchSize < 1) {
+            this.batchSize = 1;
+        }
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "prisme-subscription-queue");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.executor.scheduleWithFixedDelay(this::flush, this.flushIntervalMillis, this.flushIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        this.executor.shutdownNow();
+        this.flush();
+    }
+
+    /**
+     * Queue CPR numbers for subscription. Returns immediately
+     */
+    public void add(Collection<String> cprNumbers) {
+        boolean full;
+        synchronized (this) {
+            for (String cprNumber : cprNumbers) {
+                if (!this.subscribed.contains(cprNumber)) {
+                    this.pending.add(cprNumber);
+                }
+            }
+            full = this.pending.size() >= this.batchSize;
+        }
+        if (full) {
+            this.executor.execute(this::flush);
+        }
+    }
+
+    public void add(String cprNumber) {
+        this.add(Collections.singleton(cprNumber));
+    }
+
+    public synchronized int getPendingCount() {
+        return this.pending.size();
+    }
+
+    /**
+     * Create subscriptions for all pending numbers, in batches of at most batchSize
+     */
+    public void flush() {
+        // Only one flush at a time, so a flush returns only when everything pending at its start has been written
+        synchronized (this.flushLock) {
+            while (true) {
+                HashSet<String> batch = new HashSet<>();
+                synchronized (this) {
+                    Iterator<String> iterator = this.pending.iterator();
+                    while (iterator.hasNext() && batch.size() < this.batchSize) {
+                        batch.add(iterator.next());
+                        iterator.remove();
+                    }
+                }
+                if (batch.isEmpty()) {
+                    return;
+                }
+                try {
+                    entityManager.createSubscription(batch);
+                    synchronized (this) {
+                        this.subscribed.addAll(batch);
+                    }
+                } catch (Exception e) {
+                    log.error("Failed creating subscriptions for " + batch.size() + " persons, will retry", e);
+                    synchronized (this) {
+                        this.pending.addAll(batch);
+                    }
+                    return;
+                }
+            }
+        }
+    }
+}
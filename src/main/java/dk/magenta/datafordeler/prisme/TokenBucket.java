@@ -0,0 +1,56 @@
+package dk.magenta.datafordeler.prisme;
+
+/**
+ * Simple token bucket rate limiter. Tokens are added at a fixed rate up to the capacity of the bucket,
+ * and each call to {@link #acquire()} takes one token, waiting for it if the bucket is empty
+ */
+public class TokenBucket {
+
+    private final double capacity;
+    private final double tokensPerNano;
+    private double tokens;
+    private long lastRefill;
+
+    /**
+     * @param ratePerSecond Tokens added per second. Zero or less disables the limit
+     * @param capacity Max number of tokens available at once, i.e. the largest burst allowed
+     */
+    public TokenBucket(double ratePerSecond, int capacity) {
+        this.capacity = Math.max(1, capacity);
+        this.tokensPerNano = ratePerSecond / 1_000_000_000.0;
+        this.tokens = this.capacity;
+        this.lastRefill = System.nanoTime();
+    }
+
+    public boolean isUnlimited() {
+        return this.tokensPerNano <= 0;
+    }
+
+    /**
+     * Take a token, waiting until one is available
+     */
+    public void acquire() throws InterruptedException {
+        if (this.isUnlimited()) {
+            return;
+        }
+        long wait;
+        while ((wait = this.tryAcquire()) > 0) {
+            Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+        }
+    }
+
+    /**
+     * Take a token if one is available
+     * @return 0 if a token was taken, otherwise the number of nanoseconds until one will be available
+     */
+    private synchronized long tryAcquire() {
+        long now = System.nanoTime();
+        this.tokens = Math.min(this.capacity, this.tokens + (now - this.lastRefill) * this.tokensPerNano);
+        this.lastRefill = now;
+        if (this.tokens >= 1) {
+            this.tokens -= 1;
+            return 0;
+        }
+        return Math.max(1, (long) Math.ceil((1 - this.tokens) / this.tokensPerNano));
+    }
+}
@@ -0,0 +1,70 @@
+package dk.magenta.datafordeler.prisme;
+
+import com.fasterxml.jackson.core.io.SerializedString;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Puts the fields of a wrapped record into an ObjectNode
+ */
+public class TreeRecordOutput implements RecordOutput {
+
+    private final ObjectNode node;
+
+    private final boolean skipNulls;
+
+    /**
+     * @param node Node to add fields to
+     * @param skipNulls If true, fields with null values are left out, otherwise they are added as nulls
+     */
+    public TreeRecordOutput(ObjectNode node, boolean skipNulls) {
+        this.node = node;
+        this.skipNulls = skipNulls;
+    }
+
+    public ObjectNode getNode() {
+        return this.node;
+    }
+
+    @Override
+    public void put(SerializedString key, String value) {
+        if (value != null || !this.skipNulls) {
+            this.node.put(key.getValue(), value);
+        }
+    }
+
+    @Override
+    public void put(SerializedString key, Boolean value) {
+        if (value != null || !this.skipNulls) {
+            this.node.put(key.getValue(), value);
+        }
+    }
+
+    @Override
+    public void put(SerializedString key, Short value) {
+        if (value != null || !this.skipNulls) {
+            this.node.put(key.getValue(), value);
+        }
+    }
+
+    @Override
+    public void put(SerializedString key, Integer value) {
+        if (value != null || !this.skipNulls) {
+            this.node.put(key.getValue(), value);
+        }
+    }
+
+    @Override
+    public void put(SerializedString key, Long value) {
+        if (value != null || !this.skipNulls) {
+            this.node.put(key.getValue(), value);
+        }
+    }
+
+    @Override
+    public void set(SerializedString key, JsonNode value) {
+        if (value != null || !this.skipNulls) {
+            this.node.set(key.getValue(), value);
+        }
+    }
+}
@@ -0,0 +1,386 @@
+package dk.magenta.datafordeler.prisme;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import dk.magenta.datafordeler.core.Application;
+import dk.magenta.datafordeler.core.database.SessionManager;
+import dk.magenta.datafordeler.core.io.ImportMetadata;
+import dk.magenta.datafordeler.core.user.DafoUserManager;
+import dk.magenta.datafordeler.core.util.InputStreamReader;
+import dk.magenta.datafordeler.cpr.CprRolesDefinition;
+import dk.magenta.datafordeler.cpr.data.person.PersonEntityManager;
+import dk.magenta.datafordeler.cpr.direct.CprDirectLookup;
+import dk.magenta.datafordeler.cvr.CvrPlugin;
+import dk.magenta.datafordeler.cvr.access.CvrRolesDefinition;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.hibernate.Session;
+import org.hibernate.Transaction;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.boot.test.mock.mockito.SpyBean;
+import org.springframework.boot.web.server.LocalServerPort;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.StringJoiner;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.IntFunction;
+
+import static org.mockito.Mockito.when;
+
+/**
+ * Load harness for the bulk endpoints. Seeds growing numbers of persons and companies into the embedded test database,
+ * and for each size drives every bulk endpoint with concurrent clients, measuring records/sec, time to first byte,
+ * request latency and peak heap. The results are written as JSON to a report file.
+ * <p>
+ * The harness only runs when sizes are given, e.g.
+ * mvn test -Dtest=BulkThroughputTest -Dprisme.throughput.sizes=10000,100000,500000
+ * <ul>
+ *     <li>prisme.throughput.sizes: numbers of persons and companies to seed, in increasing order</li>
+ *     <li>prisme.throughput.clients: concurrent clients per endpoint, default 4</li>
+ *     <li>prisme.throughput.requestsPerClient: requests sent by each client, default 5</li>
+ *     <li>prisme.throughput.keysPerRequest: CPR or CVR numbers in each request, default 1000</li>
+ *     <li>prisme.throughput.report: report file, default target/bulk-throughput.json</li>
+ * </ul>
+ * Direct CPR lookups are mocked, so no request leaves the test.
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(classes = Application.class)
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+public class BulkThroughputTest extends TestBase {
+
+    private static Logger log = LogManager.getLogger(BulkThroughputTest.class.getCanonicalName());
+
+    private static final String PROPERTY_PREFIX = "prisme.throughput.";
+
+    // Number of persons or companies committed in each seeding transaction
+    private static final int SEED_BATCH_SIZE = 1000;
+
+    @Autowired
+    private SessionManager sessionManager;
+
+    @Autowired
+    private PersonEntityManager personEntityManager;
+
+    @Autowired
+    private CvrPlugin cvrPlugin;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @SpyBean
+    private DafoUserManager dafoUserManager;
+
+    @MockBean
+    private CprDirectLookup cprDirectLookup;
+
+    @LocalServerPort
+    private int port;
+
+    private List<Integer> sizes;
+
+    private int clients;
+
+    private int requestsPerClient;
+
+    private int keysPerRequest;
+
+    private int seededPersons = 0;
+
+    private int seededCompanies = 0;
+
+    private static class Endpoint {
+        final String path;
+        final String keyField;
+        final IntFunction<String> key;
+
+        Endpoint(String path, String keyField, IntFunction<String> key) {
+            this.path = path;
+            this.keyField = keyField;
+            this.key = key;
+        }
+    }
+
+    // Keys as generated by the seeding, see seedPersons and TestBase.loadManyCompanies
+    private static final IntFunction<String> CPR_KEY = i -> String.format("%010d", i);
+    private static final IntFunction<String> CVR_KEY = i -> "1" + String.format("%07d", i);
+
+    private static final List<Endpoint> ENDPOINTS = List.of(
+            new Endpoint("/prisme/cpr/2/", "cprNumber", CPR_KEY),
+            new Endpoint("/prisme/cpr/combined/1/", "cprNumber", CPR_KEY),
+            new Endpoint("/prisme/cvr/1/", "cvrNumber", CVR_KEY),
+            new Endpoint("/prisme/cvr/3/", "cvrNumber", CVR_KEY)
+    );
+
+    private static class RequestResult {
+        long firstByteNanos;
+        long totalNanos;
+        int records;
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        String sizes = System.getProperty(PROPERTY_PREFIX + "sizes");
+        Assume.assumeTrue("Set " + PROPERTY_PREFIX + "sizes to run the bulk throughput harness", sizes != null && !sizes.isEmpty());
+        this.sizes = new ArrayList<>();
+        for (String size : sizes.split(",")) {
+            this.sizes.add(Integer.parseInt(size.trim()));
+        }
+        Collections.sort(this.sizes);
+        this.clients = Integer.getInteger(PROPERTY_PREFIX + "clients", 4);
+        this.requestsPerClient = Integer.getInteger(PROPERTY_PREFIX + "requestsPerClient", 5);
+        this.keysPerRequest = Integer.getInteger(PROPERTY_PREFIX + "keysPerRequest", 1000);
+
+        TestUserDetails testUserDetails = new TestUserDetails();
+        testUserDetails.giveAccess(CprRolesDefinition.READ_CPR_ROLE);
+        testUserDetails.giveAccess(CvrRolesDefinition.READ_CVR_ROLE);
+        when(dafoUserManager.getFallbackUser()).thenReturn(testUserDetails);
+
+        this.loadAllGeoAdress(sessionManager);
+    }
+
+    @After
+    public void cleanup() {
+        if (this.seededPersons > 0) {
+            this.cleanupPersonData(sessionManager);
+        }
+        if (this.seededCompanies > 0) {
+            this.cleanupCompanyData(sessionManager);
+        }
+        this.cleanupGeoData(sessionManager);
+    }
+
+    @Test
+    public void testBulkThroughput() throws Exception {
+        ObjectNode report = objectMapper.createObjectNode();
+        report.put("generated", OffsetDateTime.now().toString());
+        report.put("clients", this.clients);
+        report.put("requestsPerClient", this.requestsPerClient);
+        report.put("keysPerRequest", this.keysPerRequest);
+        report.put("maxHeapBytes", Runtime.getRuntime().maxMemory());
+        ArrayNode results = report.putArray("results");
+
+        for (int size : this.sizes) {
+            long seedStart = System.nanoTime();
+            this.seedPersons(size);
+            this.seedCompanies(size);
+            log.info("Seeded " + size + " persons and companies in " + (System.nanoTime() - seedStart) / 1000000 + " ms");
+
+            for (Endpoint endpoint : ENDPOINTS) {
+                ObjectNode result = this.measure(endpoint, size);
+                log.info("Bulk throughput: " + result);
+                results.add(result);
+            }
+        }
+
+        File reportFile = new File(System.getProperty(PROPERTY_PREFIX + "report", "target/bulk-throughput.json"));
+        if (reportFile.getParentFile() != null) {
+            reportFile.getParentFile().mkdirs();
+        }
+        objectMapper.writerWithDefaultPrettyPrinter().writeValue(reportFile, report);
+        log.info("Wrote bulk throughput report to " + reportFile.getAbsolutePath());
+    }
+
+    private ObjectNode measure(Endpoint endpoint, int size) throws Exception {
+        int keyCount = Math.min(this.keysPerRequest, size);
+
+        // Warm up the endpoint before measuring
+        this.request(endpoint, size, 0, keyCount);
+
+        // Peak heap is the sum of each heap pool's peak, as the pools don't peak at the same time this is an upper bound
+        System.gc();
+        List<MemoryPoolMXBean> heapPools = new ArrayList<>();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+                heapPools.add(pool);
+            }
+        }
+
+        ExecutorService executorService = Executors.newFixedThreadPool(this.clients);
+        List<Future<RequestResult>> futures = new ArrayList<>();
+        long start = System.nanoTime();
+        try {
+            for (int client = 0; client < this.clients; client++) {
+                for (int i = 0; i < this.requestsPerClient; i++) {
+                    int offset = (int) (((long) (client * this.requestsPerClient + i) * keyCount) % size);
+                    futures.add(executorService.submit(() -> this.request(endpoint, size, offset, keyCount)));
+                }
+            }
+            List<RequestResult> requestResults = new ArrayList<>();
+            for (Future<RequestResult> future : futures) {
+                requestResults.add(future.get());
+            }
+            long elapsed = System.nanoTime() - start;
+
+            long peakHeap = 0;
+            for (MemoryPoolMXBean pool : heapPools) {
+                peakHeap += pool.getPeakUsage().getUsed();
+            }
+
+            long records = 0;
+            List<Long> firstByte = new ArrayList<>();
+            List<Long> latency = new ArrayList<>();
+            for (RequestResult requestResult : requestResults) {
+                records += requestResult.records;
+                firstByte.add(requestResult.firstByteNanos);
+                latency.add(requestResult.totalNanos);
+            }
+            Collections.sort(firstByte);
+            Collections.sort(latency);
+
+            ObjectNode result = objectMapper.createObjectNode();
+            result.put("endpoint", endpoint.path);
+            result.put("size", size);
+            result.put("requests", requestResults.size());
+            result.put("records", records);
+            result.put("seconds", elapsed / 1e9);
+            result.put("recordsPerSecond", records / (elapsed / 1e9));
+            ObjectNode firstByteNode = result.putObject("timeToFirstByteMillis");
+            firstByteNode.put("p50", percentile(firstByte, 0.5) / 1e6);
+            firstByteNode.put("p99", percentile(firstByte, 0.99) / 1e6);
+            ObjectNode latencyNode = result.putObject("latencyMillis");
+            latencyNode.put("p50", percentile(latency, 0.5) / 1e6);
+            latencyNode.put("p99", percentile(latency, 0.99) / 1e6);
+            latencyNode.put("max", latency.get(latency.size() - 1) / 1e6);
+            result.put("peakHeapBytes", peakHeap);
+            return result;
+        } finally {
+            executorService.shutdownNow();
+        }
+    }
+
+    /**
+     * Send one bulk request for keyCount seeded keys from offset, reading the response as it streams in
+     */
+    private RequestResult request(Endpoint endpoint, int size, int offset, int keyCount) throws Exception {
+        ObjectNode body = objectMapper.createObjectNode();
+        ArrayNode keys = body.putArray(endpoint.keyField);
+        for (int i = 0; i < keyCount; i++) {
+            keys.add(endpoint.key.apply((offset + i) % size));
+        }
+        byte[] requestBody = objectMapper.writeValueAsBytes(body);
+
+        RequestResult result = new RequestResult();
+        long start = System.nanoTime();
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + this.port + endpoint.path).openConnection();
+        try {
+            connection.setRequestMethod("POST");
+            connection.setRequestProperty("Content-Type", "application/json");
+            connection.setDoOutput(true);
+            connection.setFixedLengthStreamingMode(requestBody.length);
+            try (OutputStream outputStream = connection.getOutputStream()) {
+                outputStream.write(requestBody);
+            }
+            Assert.assertEquals(endpoint.path, HttpURLConnection.HTTP_OK, connection.getResponseCode());
+            try (InputStream inputStream = new BufferedInputStream(connection.getInputStream())) {
+                inputStream.mark(1);
+                inputStream.read();
+                result.firstByteNanos = System.nanoTime() - start;
+                inputStream.reset();
+                result.records = countRecords(inputStream);
+            }
+            result.totalNanos = System.nanoTime() - start;
+        } finally {
+            connection.disconnect();
+        }
+        return result;
+    }
+
+    /**
+     * Count the records in a bulk response, which is an object with a field for each record
+     */
+    private int countRecords(InputStream inputStream) throws Exception {
+        int records = 0;
+        int depth = 0;
+        try (JsonParser parser = objectMapper.getFactory().createParser(inputStream)) {
+            JsonToken token;
+            while ((token = parser.nextToken()) != null) {
+                if (token == JsonToken.START_OBJECT || token == JsonToken.START_ARRAY) {
+                    depth++;
+                } else if (token == JsonToken.END_OBJECT || token == JsonToken.END_ARRAY) {
+                    depth--;
+                } else if (token == JsonToken.FIELD_NAME && depth == 1) {
+                    records++;
+                }
+            }
+        }
+        return records;
+    }
+
+    private static long percentile(List<Long> sorted, double fraction) {
+        int index = (int) Math.ceil(fraction * sorted.size()) - 1;
+        return sorted.get(Math.max(index, 0));
+    }
+
+    /**
+     * Seed persons cloned from person.txt until there are count of them, a transaction at a time
+     */
+    private void seedPersons(int count) throws Exception {
+        String[] lines = InputStreamReader.readInputStream(BulkThroughputTest.class.getResourceAsStream("/person.txt")).split("\n");
+        while (this.seededPersons < count) {
+            int batchEnd = Math.min(this.seededPersons + SEED_BATCH_SIZE, count);
+            ImportMetadata importMetadata = new ImportMetadata();
+            Session session = sessionManager.getSessionFactory().openSession();
+            importMetadata.setSession(session);
+            Transaction transaction = session.beginTransaction();
+            importMetadata.setTransactionInProgress(true);
+            try {
+                for (int i = this.seededPersons; i < batchEnd; i++) {
+                    StringJoiner sb = new StringJoiner("\n");
+                    String newCpr = CPR_KEY.apply(i);
+                    for (String line : lines) {
+                        sb.add(line.substring(0, 3) + newCpr + line.substring(13));
+                    }
+                    ByteArrayInputStream bais = new ByteArrayInputStream(sb.toString().getBytes(StandardCharsets.UTF_8));
+                    personEntityManager.parseData(bais, importMetadata);
+                    bais.close();
+                }
+                transaction.commit();
+            } finally {
+                importMetadata.setTransactionInProgress(false);
+                session.close();
+            }
+            this.seededPersons = batchEnd;
+        }
+    }
+
+    /**
+     * Seed companies cloned from company_in.json until there are count of them, a session at a time
+     */
+    private void seedCompanies(int count) throws Exception {
+        while (this.seededCompanies < count) {
+            int batchSize = Math.min(SEED_BATCH_SIZE, count - this.seededCompanies);
+            this.loadManyCompanies(cvrPlugin, sessionManager, batchSize, this.seededCompanies);
+            this.seededCompanies += batchSize;
+        }
+    }
+}
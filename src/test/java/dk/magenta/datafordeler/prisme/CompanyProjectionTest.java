@@ -0,0 +1,193 @@
+package dk.magenta.datafordeler.prisme;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import dk.magenta.datafordeler.core.Application;
+import dk.magenta.datafordeler.core.database.QueryManager;
+import dk.magenta.datafordeler.core.database.SessionManager;
+import dk.magenta.datafordeler.core.user.DafoUserManager;
+import dk.magenta.datafordeler.cvr.CvrPlugin;
+import dk.magenta.datafordeler.cvr.access.CvrAreaRestrictionDefinition;
+import dk.magenta.datafordeler.cvr.access.CvrRolesDefinition;
+import dk.magenta.datafordeler.ger.GerPlugin;
+import dk.magenta.datafordeler.ger.data.company.CompanyEntity;
+import org.hibernate.Session;
+import org.junit.*;
+import org.junit.runner.RunWith;
+import org.junit.runners.MethodSorters;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.SpyBean;
+import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.http.*;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.time.OffsetDateTime;
+import java.util.List;
+import java.util.Map;
+
+import static org.mockito.Mockito.when;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(classes = Application.class)
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+@DirtiesContext(classMode = DirtiesContext.ClassMode.BEFORE_EACH_TEST_METHOD)
+public class CompanyProjectionTest extends TestBase {
+
+    @Autowired
+    private SessionManager sessionManager;
+
+    @Autowired
+    private TestRestTemplate restTemplate;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @SpyBean
+    private DafoUserManager dafoUserManager;
+
+    @Autowired
+    private CvrPlugin cvrPlugin;
+
+    @Autowired
+    private GerPlugin gerPlugin;
+
+    @Autowired
+    private CvrRecordService cvrRecordService;
+
+    @Autowired
+    private CompanyProjection companyProjection;
+
+    @Before
+    public void load() throws Exception {
+        this.cvrRecordService.setEnableDirectLookup(true);
+        this.loadAllGeoAdress(sessionManager);
+    }
+
+    @After
+    public void cleanup() {
+        ReflectionTestUtils.setField(companyProjection, "companies", null);
+        this.cleanupCompanyData(sessionManager);
+        this.cleanupGeoData(sessionManager);
+    }
+
+    private ResponseEntity<String> getCompany(String cvrNumber) {
+        return restTemplate.exchange(
+                "/prisme/cvr/1/" + cvrNumber,
+                HttpMethod.GET,
+                new HttpEntity<>("", new HttpHeaders()),
+                String.class
+        );
+    }
+
+    private TestUserDetails applyAccess() {
+        TestUserDetails testUserDetails = new TestUserDetails();
+        testUserDetails.giveAccess(CvrRolesDefinition.READ_CVR_ROLE);
+        when(dafoUserManager.getFallbackUser()).thenReturn(testUserDetails);
+        return testUserDetails;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, byte[]> getCvrCompanies() {
+        return (Map<String, byte[]>) ReflectionTestUtils.getField(ReflectionTestUtils.getField(companyProjection, "companies"), "cvr");
+    }
+
+    @Test
+    public void test1Build() throws Exception {
+        this.loadCompany(cvrPlugin, sessionManager, objectMapper);
+        this.loadGerCompany(gerPlugin, sessionManager);
+        this.applyAccess();
+
+        // Not built yet, so the company is wrapped from the database
+        Assert.assertFalse(companyProjection.isReady());
+        Assert.assertNull(companyProjection.get("25052943"));
+        ResponseEntity<String> response = this.getCompany("25052943");
+        Assert.assertEquals(HttpStatus.OK, response.getStatusCode());
+
+        companyProjection.refresh();
+        Assert.assertTrue(companyProjection.isReady());
+        byte[] projected = companyProjection.getCvr("25052943");
+        Assert.assertNotNull(projected);
+        Assert.assertEquals(objectMapper.readTree(response.getBody()), objectMapper.readTree(projected));
+        Assert.assertSame(projected, companyProjection.get("25052943"));
+
+        Session session = sessionManager.getSessionFactory().openSession();
+        try {
+            List<CompanyEntity> gerCompanies = QueryManager.getAllItems(session, CompanyEntity.class);
+            Assert.assertFalse(gerCompanies.isEmpty());
+            for (CompanyEntity gerCompany : gerCompanies) {
+                String gerNumber = Integer.toString(gerCompany.getGerNr());
+                Assert.assertNotNull(companyProjection.getGer(gerNumber));
+                Assert.assertEquals(
+                        gerNumber,
+                        objectMapper.readTree(companyProjection.getGer(gerNumber)).get("cvrNummer").asText()
+                );
+            }
+        } finally {
+            session.close();
+        }
+    }
+
+    @Test
+    public void test2IncrementalRefresh() throws Exception {
+        this.loadManyCompanies(cvrPlugin, sessionManager, 2, 0);
+        companyProjection.refresh();
+        Assert.assertNotNull(companyProjection.getCvr("10000001"));
+        Assert.assertNull(companyProjection.getCvr("10000002"));
+
+        this.loadManyCompanies(cvrPlugin, sessionManager, 2, 2);
+        // Pretend the previous refresh started after this import had begun, as when an import is still running
+        // while the projection queries. The companies are still caught, as refreshes look back past the last one
+        ReflectionTestUtils.setField(companyProjection, "lastRefresh", OffsetDateTime.now().plusMinutes(4));
+        companyProjection.refresh();
+        Assert.assertNotNull(companyProjection.getCvr("10000003"));
+
+        // Imports before the overlap are not read again, which is what makes the refresh incremental
+        this.loadManyCompanies(cvrPlugin, sessionManager, 1, 4);
+        ReflectionTestUtils.setField(companyProjection, "lastRefresh", OffsetDateTime.now().plusMinutes(10));
+        companyProjection.refresh();
+        Assert.assertNull(companyProjection.getCvr("10000004"));
+    }
+
+    @Test
+    public void test3Fallback() throws Exception {
+        this.loadCompany(cvrPlugin, sessionManager, objectMapper);
+        TestUserDetails testUserDetails = this.applyAccess();
+
+        // Plant an output that can only have come from the projection
+        companyProjection.refresh();
+        this.getCvrCompanies().put("25052943", "{\"projected\":true}".getBytes(StandardCharsets.UTF_8));
+        ResponseEntity<String> response = this.getCompany("25052943");
+        Assert.assertTrue(objectMapper.readTree(response.getBody()).has("projected"));
+
+        // The projection holds no participant details
+        response = this.getCompany("25052943?returnParticipantDetails=1");
+        Assert.assertEquals(HttpStatus.OK, response.getStatusCode());
+        Assert.assertFalse(objectMapper.readTree(response.getBody()).has("projected"));
+
+        // Users with area restrictions are always served from the database, where the restrictions apply
+        testUserDetails.giveAccess(
+                cvrPlugin.getAreaRestrictionDefinition().getAreaRestrictionTypeByName(
+                        CvrAreaRestrictionDefinition.RESTRICTIONTYPE_KOMMUNEKODER
+                ).getRestriction(
+                        CvrAreaRestrictionDefinition.RESTRICTION_KOMMUNE_SERMERSOOQ
+                )
+        );
+        when(dafoUserManager.getFallbackUser()).thenReturn(testUserDetails);
+        response = this.getCompany("25052943");
+        Assert.assertEquals(HttpStatus.NOT_FOUND, response.getStatusCode());
+
+        // Before the projection is ready, companies are served from the database
+        this.applyAccess();
+        ReflectionTestUtils.setField(companyProjection, "companies", null);
+        Assert.assertFalse(companyProjection.isReady());
+        response = this.getCompany("25052943");
+        Assert.assertEquals(HttpStatus.OK, response.getStatusCode());
+        Assert.assertFalse(objectMapper.readTree(response.getBody()).has("projected"));
+        Assert.assertEquals(25052943, objectMapper.readTree(response.getBody()).get("cvrNummer").asInt());
+    }
+}
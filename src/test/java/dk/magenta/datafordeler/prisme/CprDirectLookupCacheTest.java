@@ -0,0 +1,128 @@
+package dk.magenta.datafordeler.prisme;
+
+import dk.magenta.datafordeler.cpr.data.person.PersonEntity;
+import dk.magenta.datafordeler.cpr.direct.CprDirectLookup;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.ArgumentMatchers;
+import org.mockito.Mockito;
+
+import java.time.Duration;
+
+public class CprDirectLookupCacheTest {
+
+    private CprDirectLookup cprDirectLookup = Mockito.mock(CprDirectLookup.class);
+
+    private TestClock clock = new TestClock();
+
+    @Test
+    public void testPositiveAndNegativeTtl() throws Exception {
+        PersonEntity person = Mockito.mock(PersonEntity.class);
+        Mockito.doReturn(person).when(cprDirectLookup).getPerson(ArgumentMatchers.eq("0101011234"));
+        Mockito.doReturn(null).when(cprDirectLookup).getPerson(ArgumentMatchers.eq("0202021234"));
+        CprDirectLookupCache cache = new CprDirectLookupCache(cprDirectLookup, true, 3, 1, 100, clock);
+
+        Assert.assertSame(person, cache.getPerson("0101011234"));
+        Assert.assertNull(cache.getPerson("0202021234"));
+        Assert.assertSame(person, cache.getPerson("0101011234"));
+        Assert.assertNull(cache.getPerson("0202021234"));
+        Mockito.verify(cprDirectLookup, Mockito.times(1)).getPerson("0101011234");
+        Mockito.verify(cprDirectLookup, Mockito.times(1)).getPerson("0202021234");
+
+        // The unknown number expires first, and is then asked for again
+        clock.advance(Duration.ofSeconds(1));
+        Assert.assertSame(person, cache.getPerson("0101011234"));
+        Assert.assertNull(cache.getPerson("0202021234"));
+        Mockito.verify(cprDirectLookup, Mockito.times(1)).getPerson("0101011234");
+        Mockito.verify(cprDirectLookup, Mockito.times(2)).getPerson("0202021234");
+
+        clock.advance(Duration.ofMillis(1999));
+        Assert.assertSame(person, cache.getPerson("0101011234"));
+        Mockito.verify(cprDirectLookup, Mockito.times(1)).getPerson("0101011234");
+        clock.advance(Duration.ofMillis(1));
+        Assert.assertSame(person, cache.getPerson("0101011234"));
+        Mockito.verify(cprDirectLookup, Mockito.times(2)).getPerson("0101011234");
+    }
+
+    @Test
+    public void testZeroTtlIsNotCached() throws Exception {
+        Mockito.doReturn(null).when(cprDirectLookup).getPerson(ArgumentMatchers.anyString());
+        CprDirectLookupCache cache = new CprDirectLookupCache(cprDirectLookup, true, 300, 0, 100, clock);
+
+        Assert.assertNull(cache.getPerson("0202021234"));
+        Assert.assertNull(cache.getPerson("0202021234"));
+        Assert.assertEquals(0, cache.size());
+        Mockito.verify(cprDirectLookup, Mockito.times(2)).getPerson("0202021234");
+    }
+
+    @Test
+    public void testLeastRecentlyUsedIsEvicted() throws Exception {
+        Mockito.doAnswer(invocation -> Mockito.mock(PersonEntity.class)).when(cprDirectLookup).getPerson(ArgumentMatchers.anyString());
+        CprDirectLookupCache cache = new CprDirectLookupCache(cprDirectLookup, true, 300, 60, 2, clock);
+
+        cache.getPerson("0000000001");
+        cache.getPerson("0000000002");
+        // Using the first makes the second the least recently used
+        cache.getPerson("0000000001");
+        cache.getPerson("0000000003");
+        Assert.assertEquals(2, cache.size());
+
+        cache.getPerson("0000000001");
+        cache.getPerson("0000000003");
+        Mockito.verify(cprDirectLookup, Mockito.times(1)).getPerson("0000000001");
+        Mockito.verify(cprDirectLookup, Mockito.times(1)).getPerson("0000000003");
+
+        cache.getPerson("0000000002");
+        Mockito.verify(cprDirectLookup, Mockito.times(2)).getPerson("0000000002");
+        Assert.assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void testUncachedBypassesAndReplaces() throws Exception {
+        PersonEntity first = Mockito.mock(PersonEntity.class);
+        PersonEntity second = Mockito.mock(PersonEntity.class);
+        Mockito.doReturn(first, second).when(cprDirectLookup).getPerson(ArgumentMatchers.eq("0101011234"));
+        CprDirectLookupCache cache = new CprDirectLookupCache(cprDirectLookup, true, 300, 60, 100, clock);
+
+        Assert.assertSame(first, cache.getPerson("0101011234"));
+        // As with forceDirect, the service is asked even though the person is cached, and the new result is kept
+        Assert.assertSame(second, cache.getPersonUncached("0101011234"));
+        Assert.assertSame(second, cache.getPerson("0101011234"));
+        Mockito.verify(cprDirectLookup, Mockito.times(2)).getPerson("0101011234");
+        Assert.assertEquals(1, cache.getHits());
+        Assert.assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void testCounters() throws Exception {
+        Mockito.doAnswer(invocation -> Mockito.mock(PersonEntity.class)).when(cprDirectLookup).getPerson(ArgumentMatchers.anyString());
+        CprDirectLookupCache cache = new CprDirectLookupCache(cprDirectLookup, true, 300, 60, 100, clock);
+
+        cache.getPerson("0000000001");
+        cache.getPerson("0000000002");
+        cache.getPerson("0000000001");
+        cache.getPerson("0000000001");
+        Assert.assertEquals(2, cache.getHits());
+        Assert.assertEquals(2, cache.getMisses());
+
+        cache.clear();
+        Assert.assertEquals(0, cache.size());
+        cache.getPerson("0000000001");
+        Assert.assertEquals(2, cache.getHits());
+        Assert.assertEquals(3, cache.getMisses());
+    }
+
+    @Test
+    public void testDisabled() throws Exception {
+        Mockito.doAnswer(invocation -> Mockito.mock(PersonEntity.class)).when(cprDirectLookup).getPerson(ArgumentMatchers.anyString());
+        CprDirectLookupCache cache = new CprDirectLookupCache(cprDirectLookup, false, 300, 60, 100, clock);
+
+        cache.getPerson("0000000001");
+        cache.getPerson("0000000001");
+        Mockito.verify(cprDirectLookup, Mockito.times(2)).getPerson("0000000001");
+        Assert.assertEquals(0, cache.size());
+        // Nothing is counted when there is no cache to hit or miss
+        Assert.assertEquals(0, cache.getHits());
+        Assert.assertEquals(0, cache.getMisses());
+    }
+}
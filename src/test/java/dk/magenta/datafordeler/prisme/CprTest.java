@@ -1,5 +1,6 @@
 package dk.magenta.datafordeler.prisme;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
@@ -15,6 +16,7 @@ import dk.magenta.datafordeler.cpr.CprPlugin;
 import dk.magenta.datafordeler.cpr.CprRolesDefinition;
 import dk.magenta.datafordeler.cpr.data.person.PersonEntity;
 import dk.magenta.datafordeler.cpr.data.person.PersonEntityManager;
+import dk.magenta.datafordeler.cpr.data.person.PersonRecordQuery;
 import dk.magenta.datafordeler.cpr.data.person.PersonSubscription;
 import dk.magenta.datafordeler.cpr.data.person.PersonSubscriptionAssignmentStatus;
 import dk.magenta.datafordeler.cpr.direct.CprDirectLookup;
@@ -22,8 +24,10 @@ import dk.magenta.datafordeler.geo.GeoLookupService;
 import dk.magenta.datafordeler.geo.GeoPlugin;
 
 import org.hamcrest.CoreMatchers;
+import org.hibernate.Hibernate;
 import org.hibernate.Session;
 import org.hibernate.Transaction;
+import org.hibernate.stat.Statistics;
 import org.junit.*;
 import org.junit.runner.RunWith;
 import org.junit.runners.MethodSorters;
@@ -43,7 +47,9 @@ import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.util.Iterator;
 import java.util.List;
 import java.util.StringJoiner;
 
@@ -412,6 +418,127 @@ public class CprTest extends TestBase {
 
     }
 
+    @Test
+    public void test5PersonDeltaPrisme() throws Exception {
+
+        loadManyPersons(5, 0);
+        OffsetDateTime middle = OffsetDateTime.now();
+        Thread.sleep(10);
+        loadManyPersons(5, 5);
+
+        TestUserDetails testUserDetails = new TestUserDetails();
+        testUserDetails.giveAccess(CprRolesDefinition.READ_CPR_ROLE);
+        this.applyAccess(testUserDetails);
+
+        ResponseEntity<String> response = restTemplate.exchange(
+                "/prisme/cpr/2/delta",
+                HttpMethod.GET,
+                new HttpEntity<>("", new HttpHeaders()),
+                String.class
+        );
+        Assert.assertEquals(HttpStatus.BAD_REQUEST, response.getStatusCode());
+
+        response = restTemplate.exchange(
+                "/prisme/cpr/2/delta?cursor=" + middle.withOffsetSameInstant(ZoneOffset.UTC).format(DateTimeFormatter.ISO_OFFSET_DATE_TIME),
+                HttpMethod.GET,
+                new HttpEntity<>("", new HttpHeaders()),
+                String.class
+        );
+        Assert.assertEquals(HttpStatus.OK, response.getStatusCode());
+        JsonNode delta = objectMapper.readTree(response.getBody());
+        Assert.assertEquals(5, delta.get("data").size());
+        Assert.assertTrue(delta.get("data").has("0000000005"));
+        Assert.assertFalse(delta.get("data").has("0000000004"));
+        Assert.assertTrue(delta.get("cursor").isTextual());
+    }
+
+    @Test
+    public void test6PersonBulkResumePrisme() throws Exception {
+
+        loadManyPersons(10, 0);
+
+        TestUserDetails testUserDetails = new TestUserDetails();
+        testUserDetails.giveAccess(CprRolesDefinition.READ_CPR_ROLE);
+        this.applyAccess(testUserDetails);
+
+        ObjectNode body = objectMapper.createObjectNode();
+        ArrayNode cprList = objectMapper.createArrayNode();
+        for (int i = 9; i >= 0; i--) {
+            cprList.add(String.format("%010d", i));
+        }
+        body.set("cprNumber", cprList);
+        ResponseEntity<String> response = restTemplate.exchange(
+                "/prisme/cpr/2/",
+                HttpMethod.POST,
+                new HttpEntity<>(body.toString(), new HttpHeaders()),
+                String.class
+        );
+        Assert.assertEquals(HttpStatus.OK, response.getStatusCode());
+        String fingerprint = response.getHeaders().getFirst(ContinuationToken.HEADER);
+        Assert.assertNotNull(fingerprint);
+        Iterator<String> keys = objectMapper.readTree(response.getBody()).fieldNames();
+        for (int i = 0; i < 10; i++) {
+            Assert.assertEquals(String.format("%010d", i), keys.next());
+        }
+
+        body.put(ContinuationToken.PARAM_CONTINUE_AFTER, fingerprint + ":0000000004");
+        response = restTemplate.exchange(
+                "/prisme/cpr/2/",
+                HttpMethod.POST,
+                new HttpEntity<>(body.toString(), new HttpHeaders()),
+                String.class
+        );
+        Assert.assertEquals(HttpStatus.OK, response.getStatusCode());
+        JsonNode resumed = objectMapper.readTree(response.getBody());
+        Assert.assertEquals(5, resumed.size());
+        Assert.assertEquals("0000000005", resumed.fieldNames().next());
+
+        body.put(ContinuationToken.PARAM_CONTINUE_AFTER, "0123456789abcdef:0000000004");
+        response = restTemplate.exchange(
+                "/prisme/cpr/2/",
+                HttpMethod.POST,
+                new HttpEntity<>(body.toString(), new HttpHeaders()),
+                String.class
+        );
+        Assert.assertEquals(HttpStatus.BAD_REQUEST, response.getStatusCode());
+    }
+
+    @Test
+    public void test7PersonChunkLoadRecords() throws Exception {
+        loadManyPersons(20, 0);
+
+        Session session = sessionManager.getSessionFactory().openSession();
+        try {
+            PersonRecordQuery query = new PersonRecordQuery();
+            for (int i = 0; i < 20; i++) {
+                query.addPersonnummer(String.format("%010d", i));
+            }
+            List<PersonEntity> personEntities = QueryManager.getAllEntities(session, query, PersonEntity.class);
+            Assert.assertEquals(20, personEntities.size());
+
+            Statistics statistics = sessionManager.getSessionFactory().getStatistics();
+            boolean statisticsEnabled = statistics.isStatisticsEnabled();
+            statistics.setStatisticsEnabled(true);
+            statistics.clear();
+            try {
+                personOutputWrapper.loadRecords(session, personEntities);
+                // One query per collection for the whole chunk, not one per collection per person
+                Assert.assertEquals(PersonOutputWrapperPrisme.RECORD_COLLECTIONS.length, statistics.getPrepareStatementCount());
+            } finally {
+                statistics.setStatisticsEnabled(statisticsEnabled);
+            }
+
+            for (PersonEntity personEntity : personEntities) {
+                Assert.assertTrue(Hibernate.isInitialized(personEntity.getName()));
+                Assert.assertTrue(Hibernate.isInitialized(personEntity.getAddress()));
+                Assert.assertTrue(Hibernate.isInitialized(personEntity.getConame()));
+                Assert.assertFalse(personEntity.getName().isEmpty());
+            }
+        } finally {
+            session.close();
+        }
+    }
+
     private void applyAccess(TestUserDetails testUserDetails) {
         when(dafoUserManager.getFallbackUser()).thenReturn(testUserDetails);
     }
@@ -419,6 +546,9 @@ public class CprTest extends TestBase {
     @SpyBean
     private CprDirectLookup cprDirectLookup;
 
+    @Autowired
+    private SubscriptionQueue subscriptionQueue;
+
     @Test
     public void testDirectLookup1() throws Exception {
 
@@ -458,6 +588,7 @@ public class CprTest extends TestBase {
         Assert.assertEquals(600, responseObject.get("stedkode").asInt());
         Assert.assertEquals("GL", responseObject.get("landekode").asText());
 
+        subscriptionQueue.flush();
         Session session = sessionManager.getSessionFactory().openSession();
         try {
             List<PersonSubscription> existingSubscriptions = QueryManager.getAllItems(session, PersonSubscription.class);
@@ -511,6 +642,7 @@ public class CprTest extends TestBase {
         Assert.assertNull(responseObject.get("stedkode"));
         Assert.assertNull(responseObject.get("landekode"));
 
+        subscriptionQueue.flush();
         Session session = sessionManager.getSessionFactory().openSession();
         try {
             List<PersonSubscription> existingSubscriptions = QueryManager.getAllItems(session, PersonSubscription.class);
@@ -588,6 +720,7 @@ public class CprTest extends TestBase {
         Assert.assertEquals(600, personObject.get("stedkode").asInt());
         Assert.assertEquals("GL", personObject.get("landekode").asText());
 
+        subscriptionQueue.flush();
         Session session = sessionManager.getSessionFactory().openSession();
         try {
             List<PersonSubscription> existingSubscriptions = QueryManager.getAllItems(session, PersonSubscription.class);
@@ -654,6 +787,7 @@ public class CprTest extends TestBase {
         Assert.assertEquals("0607621234", responseObject.get("cprNummer").asText());
 
 
+        subscriptionQueue.flush();
         Session session = sessionManager.getSessionFactory().openSession();
         try {
             List<PersonSubscription> existingSubscriptions = QueryManager.getAllItems(session, PersonSubscription.class);
@@ -698,6 +832,7 @@ public class CprTest extends TestBase {
         Assert.assertEquals("404", responseObject.get("status").asText());
 
 
+        subscriptionQueue.flush();
         Session session = sessionManager.getSessionFactory().openSession();
         try {
             List<PersonSubscription> existingSubscriptions = QueryManager.getAllItems(session, PersonSubscription.class);
@@ -19,6 +19,9 @@ import dk.magenta.datafordeler.cvr.access.CvrRolesDefinition;
 import dk.magenta.datafordeler.cvr.entitymanager.CompanyEntityManager;
 import dk.magenta.datafordeler.geo.GeoPlugin;
 import dk.magenta.datafordeler.ger.GerPlugin;
+import dk.magenta.datafordeler.ger.data.company.CompanyEntity;
+import dk.magenta.datafordeler.ger.data.responsible.ResponsibleEntity;
+import dk.magenta.datafordeler.ger.data.responsible.ResponsibleQuery;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.hibernate.Session;
@@ -33,11 +36,16 @@ import org.springframework.boot.test.web.client.TestRestTemplate;
 import org.springframework.http.*;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.util.ReflectionTestUtils;
 
 import java.io.IOException;
 import java.time.Instant;
 import java.time.OffsetDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 
 import static org.mockito.Mockito.when;
 
@@ -76,6 +84,9 @@ public class CvrCombinedTest extends TestBase {
     @Autowired
     private GerPlugin gerPlugin;
 
+    @Autowired
+    private CvrOutputWrapperPrisme cvrWrapper;
+
 
     @After
     public void cleanup() {
@@ -321,6 +332,41 @@ public class CvrCombinedTest extends TestBase {
             Assert.assertEquals(0, objectMapper.readTree(response.getBody()).size());
     }
 
+    @Test
+    public void testGerResponsiblesBatch() throws Exception {
+        this.loadGerCompany(gerPlugin, sessionManager);
+        this.loadGerParticipant(gerPlugin, sessionManager);
+
+        // Smaller than the number of companies, so they are looked up in several chunks
+        int chunkSize = (int) ReflectionTestUtils.getField(cvrWrapper, "participantLookupChunkSize");
+        ReflectionTestUtils.setField(cvrWrapper, "participantLookupChunkSize", 2);
+        try (Session session = sessionManager.getSessionFactory().openSession()) {
+            List<CompanyEntity> companyEntities = QueryManager.getAllItems(session, CompanyEntity.class);
+            Assert.assertTrue(companyEntities.size() > 2);
+            Map<Integer, List<ResponsibleEntity>> batched = cvrWrapper.lookupResponsibles(session, cvrWrapper.getGerNumbers(companyEntities));
+
+            int found = 0;
+            for (CompanyEntity companyEntity : companyEntities) {
+                ResponsibleQuery responsibleQuery = new ResponsibleQuery();
+                responsibleQuery.setGerNr(companyEntity.getGerNr());
+                HashSet<Long> expected = new HashSet<>();
+                for (ResponsibleEntity responsibleEntity : QueryManager.getAllEntities(session, responsibleQuery, ResponsibleEntity.class)) {
+                    expected.add(responsibleEntity.getId());
+                }
+                HashSet<Long> actual = new HashSet<>();
+                for (ResponsibleEntity responsibleEntity : batched.getOrDefault(companyEntity.getGerNr(), Collections.emptyList())) {
+                    Assert.assertEquals(companyEntity.getGerNr(), responsibleEntity.getGerNr());
+                    actual.add(responsibleEntity.getId());
+                }
+                Assert.assertEquals(expected, actual);
+                found += actual.size();
+            }
+            Assert.assertTrue(found > 0);
+        } finally {
+            ReflectionTestUtils.setField(cvrWrapper, "participantLookupChunkSize", chunkSize);
+        }
+    }
+
     private void applyAccess(TestUserDetails testUserDetails) {
         when(dafoUserManager.getFallbackUser()).thenReturn(testUserDetails);
     }
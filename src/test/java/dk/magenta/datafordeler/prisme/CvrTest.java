@@ -1,5 +1,6 @@
 package dk.magenta.datafordeler.prisme;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
@@ -29,10 +30,12 @@ import org.springframework.boot.test.web.client.TestRestTemplate;
 import org.springframework.http.*;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.util.ReflectionTestUtils;
 
 import java.io.IOException;
 import java.time.Instant;
 import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
 import java.util.HashSet;
 
@@ -306,6 +309,81 @@ public class CvrTest extends TestBase {
         }
     }
 
+    @Test
+    public void testCompanyDeltaPrisme() throws Exception {
+
+        loadAllGeoAdress(sessionManager);
+        loadManyCompanies(cvrPlugin, sessionManager, 5, 0);
+
+        OffsetDateTime companyUpdate = OffsetDateTime.parse("2017-04-10T09:01:06.000+02:00");
+
+        // Smaller than the delta, so it is written in several batches
+        ReflectionTestUtils.setField(cvrRecordService, "fetchChunkSize", 2);
+        try {
+            TestUserDetails testUserDetails = new TestUserDetails();
+            testUserDetails.giveAccess(CvrRolesDefinition.READ_CVR_ROLE);
+            testUserDetails.giveAccess(CprRolesDefinition.READ_CPR_ROLE);
+            this.applyAccess(testUserDetails);
+
+            HttpEntity<String> httpEntity = new HttpEntity<>("", new HttpHeaders());
+            ResponseEntity<String> response = restTemplate.exchange(
+                    "/prisme/cvr/1/delta",
+                    HttpMethod.GET,
+                    httpEntity,
+                    String.class
+            );
+            Assert.assertEquals(HttpStatus.BAD_REQUEST, response.getStatusCode());
+
+            for (String participantDetails : new String[] {"0", "1"}) {
+                OffsetDateTime before = OffsetDateTime.now();
+                response = restTemplate.exchange(
+                        "/prisme/cvr/1/delta?returnParticipantDetails=" + participantDetails + "&cursor=" +
+                                companyUpdate.minusSeconds(1).withOffsetSameInstant(ZoneOffset.UTC).format(DateTimeFormatter.ISO_OFFSET_DATE_TIME),
+                        HttpMethod.GET,
+                        httpEntity,
+                        String.class
+                );
+                OffsetDateTime after = OffsetDateTime.now();
+                Assert.assertEquals(HttpStatus.OK, response.getStatusCode());
+                JsonNode delta = objectMapper.readTree(response.getBody());
+
+                // The cursor lies the overlap before the response was started
+                OffsetDateTime cursor = OffsetDateTime.parse(delta.get("cursor").asText());
+                Assert.assertFalse(cursor.isBefore(DeltaCursor.next(before)));
+                Assert.assertFalse(cursor.isAfter(DeltaCursor.next(after)));
+
+                // Each company is output as it would be on its own
+                JsonNode data = delta.get("data");
+                Assert.assertEquals(5, data.size());
+                for (int i = 0; i < 5; i++) {
+                    String cvrNumber = "1" + String.format("%07d", i);
+                    ResponseEntity<String> single = restTemplate.exchange(
+                            "/prisme/cvr/1/" + cvrNumber + "?returnParticipantDetails=" + participantDetails,
+                            HttpMethod.GET,
+                            httpEntity,
+                            String.class
+                    );
+                    Assert.assertEquals(HttpStatus.OK, single.getStatusCode());
+                    Assert.assertEquals(objectMapper.readTree(single.getBody()), data.get(cvrNumber));
+                }
+            }
+
+            // Nothing has been updated after the last update in the data
+            response = restTemplate.exchange(
+                    "/prisme/cvr/1/delta?cursor=" + companyUpdate.withOffsetSameInstant(ZoneOffset.UTC).format(DateTimeFormatter.ISO_OFFSET_DATE_TIME),
+                    HttpMethod.GET,
+                    httpEntity,
+                    String.class
+            );
+            Assert.assertEquals(HttpStatus.OK, response.getStatusCode());
+            Assert.assertEquals(0, objectMapper.readTree(response.getBody()).get("data").size());
+
+        } finally {
+            ReflectionTestUtils.setField(cvrRecordService, "fetchChunkSize", 500);
+            cleanup();
+        }
+    }
+
     private void applyAccess(TestUserDetails testUserDetails) {
         when(dafoUserManager.getFallbackUser()).thenReturn(testUserDetails);
     }
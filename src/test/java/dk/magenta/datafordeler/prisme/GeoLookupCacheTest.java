@@ -0,0 +1,100 @@
+package dk.magenta.datafordeler.prisme;
+
+import dk.magenta.datafordeler.geo.GeoLookupDTO;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class GeoLookupCacheTest {
+
+    private final AtomicInteger loads = new AtomicInteger();
+
+    private final TestClock clock = new TestClock();
+
+    private GeoLookupCache createCache(long ttlSeconds, int maxEntries) {
+        PrismeMetrics metrics = new PrismeMetrics();
+        metrics.init();
+        return new GeoLookupCache(metrics, ttlSeconds, maxEntries, this.clock);
+    }
+
+    private String getDistrict(GeoLookupCache cache, int postalCode) {
+        return cache.getPostalCodeDistrict(postalCode, () -> {
+            this.loads.incrementAndGet();
+            return "District " + postalCode;
+        });
+    }
+
+    @Test
+    public void testTtlExpiry() throws Exception {
+        GeoLookupCache cache = this.createCache(1, 100);
+        GeoLookupDTO road = Mockito.mock(GeoLookupDTO.class);
+
+        Assert.assertEquals("District 3900", this.getDistrict(cache, 3900));
+        Assert.assertEquals("District 3900", this.getDistrict(cache, 3900));
+        Assert.assertSame(road, cache.getRoadLookup(956, 254, () -> {
+            this.loads.incrementAndGet();
+            return road;
+        }));
+        Assert.assertSame(road, cache.getRoadLookup(956, 254, () -> {
+            this.loads.incrementAndGet();
+            return null;
+        }));
+        Assert.assertEquals(2, this.loads.get());
+
+        // Results are kept until the ttl has passed, and are then looked up again
+        this.clock.advance(Duration.ofMillis(999));
+        Assert.assertEquals("District 3900", this.getDistrict(cache, 3900));
+        Assert.assertEquals(2, this.loads.get());
+        this.clock.advance(Duration.ofMillis(1));
+        Assert.assertEquals("District 3900", this.getDistrict(cache, 3900));
+        Assert.assertNull(cache.getRoadLookup(956, 254, () -> {
+            this.loads.incrementAndGet();
+            return null;
+        }));
+        Assert.assertEquals(4, this.loads.get());
+    }
+
+    @Test
+    public void testSizeCap() throws Exception {
+        GeoLookupCache cache = this.createCache(3600, 3);
+
+        for (int postalCode = 3900; postalCode < 3910; postalCode++) {
+            this.getDistrict(cache, postalCode);
+        }
+        Assert.assertEquals(3, cache.size());
+        Assert.assertEquals(10, this.loads.get());
+
+        // New results are still cached when the cache is full, in place of the least recently used
+        this.getDistrict(cache, 3909);
+        this.getDistrict(cache, 3907);
+        Assert.assertEquals(10, this.loads.get());
+        this.getDistrict(cache, 3920);
+        this.getDistrict(cache, 3920);
+        Assert.assertEquals(11, this.loads.get());
+        this.getDistrict(cache, 3909);
+        this.getDistrict(cache, 3907);
+        Assert.assertEquals(11, this.loads.get());
+        this.getDistrict(cache, 3908);
+        Assert.assertEquals(12, this.loads.get());
+        Assert.assertEquals(3, cache.size());
+
+        cache.clear();
+        Assert.assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testNullIsNotCached() throws Exception {
+        GeoLookupCache cache = this.createCache(3600, 100);
+        for (int i = 0; i < 2; i++) {
+            Assert.assertNull(cache.getPostalCodeDistrict(3900, () -> {
+                this.loads.incrementAndGet();
+                return null;
+            }));
+        }
+        Assert.assertEquals(2, this.loads.get());
+        Assert.assertEquals(0, cache.size());
+    }
+}
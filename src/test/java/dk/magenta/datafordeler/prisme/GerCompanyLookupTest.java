@@ -0,0 +1,190 @@
+package dk.magenta.datafordeler.prisme;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import dk.magenta.datafordeler.core.Application;
+import dk.magenta.datafordeler.core.database.QueryManager;
+import dk.magenta.datafordeler.core.database.SessionManager;
+import dk.magenta.datafordeler.core.user.DafoUserManager;
+import dk.magenta.datafordeler.cvr.access.CvrRolesDefinition;
+import dk.magenta.datafordeler.ger.GerPlugin;
+import dk.magenta.datafordeler.ger.data.company.CompanyEntity;
+import dk.magenta.datafordeler.ger.data.company.CompanyQuery;
+import org.hibernate.Session;
+import org.junit.*;
+import org.junit.runner.RunWith;
+import org.junit.runners.MethodSorters;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.SpyBean;
+import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.http.*;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.*;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.mockito.Mockito.when;
+
+/**
+ * Test the in-memory index of GER companies against looking them up in the database
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(classes = Application.class)
+@SpringBootTest(
+        webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT,
+        properties = {"dafo.prisme.ger.index.enabled=true", "dafo.prisme.ger.index.reloadIntervalMinutes=1440"}
+)
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+@DirtiesContext
+public class GerCompanyLookupTest extends TestBase {
+
+    @Autowired
+    private SessionManager sessionManager;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Autowired
+    private TestRestTemplate restTemplate;
+
+    @SpyBean
+    private DafoUserManager dafoUserManager;
+
+    @Autowired
+    private GerPlugin gerPlugin;
+
+    @Autowired
+    private GerCompanyLookup gerCompanyLookup;
+
+    @Before
+    public void load() throws Exception {
+        // Stop the scheduled loads, so the test decides when the index is loaded
+        ScheduledExecutorService executor = (ScheduledExecutorService) ReflectionTestUtils.getField(gerCompanyLookup, "executor");
+        Assert.assertNotNull(executor);
+        executor.shutdownNow();
+        Assert.assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES));
+        this.getIndex().set(null);
+
+        this.loadAllGeoAdress(sessionManager);
+        this.loadGerCompany(gerPlugin, sessionManager);
+        this.loadGerParticipant(gerPlugin, sessionManager);
+
+        TestUserDetails testUserDetails = new TestUserDetails();
+        testUserDetails.giveAccess(CvrRolesDefinition.READ_CVR_ROLE);
+        when(dafoUserManager.getFallbackUser()).thenReturn(testUserDetails);
+    }
+
+    @After
+    public void cleanup() {
+        this.getIndex().set(null);
+        this.cleanupCompanyData(sessionManager);
+        this.cleanupGeoData(sessionManager);
+    }
+
+    @SuppressWarnings("unchecked")
+    private AtomicReference<Map<Integer, CompanyEntity>> getIndex() {
+        return (AtomicReference<Map<Integer, CompanyEntity>>) ReflectionTestUtils.getField(gerCompanyLookup, "index");
+    }
+
+    private List<String> getGerNumbers() {
+        try (Session session = sessionManager.getSessionFactory().openSession()) {
+            ArrayList<String> gerNumbers = new ArrayList<>();
+            for (CompanyEntity companyEntity : QueryManager.getAllItems(session, CompanyEntity.class)) {
+                gerNumbers.add(Integer.toString(companyEntity.getGerNr()));
+            }
+            Assert.assertFalse(gerNumbers.isEmpty());
+            return gerNumbers;
+        }
+    }
+
+    private Map<Integer, String> lookupNames(Collection<String> gerNumbers) {
+        try (Session session = sessionManager.getSessionFactory().openSession()) {
+            HashMap<Integer, String> names = new HashMap<>();
+            for (CompanyEntity companyEntity : gerCompanyLookup.lookup(session, gerNumbers)) {
+                names.put(companyEntity.getGerNr(), companyEntity.getName());
+            }
+            return names;
+        }
+    }
+
+    private Map<Integer, String> queryNames(Collection<String> gerNumbers) {
+        try (Session session = sessionManager.getSessionFactory().openSession()) {
+            CompanyQuery query = new CompanyQuery();
+            for (String gerNumber : gerNumbers) {
+                query.addGerNr(gerNumber);
+            }
+            HashMap<Integer, String> names = new HashMap<>();
+            for (CompanyEntity companyEntity : QueryManager.getAllEntities(session, query, CompanyEntity.class)) {
+                names.put(companyEntity.getGerNr(), companyEntity.getName());
+            }
+            return names;
+        }
+    }
+
+    private String getCompany(String gerNumber) {
+        ResponseEntity<String> response = restTemplate.exchange(
+                "/prisme/cvr/1/" + gerNumber,
+                HttpMethod.GET,
+                new HttpEntity<>("", new HttpHeaders()),
+                String.class
+        );
+        Assert.assertEquals(HttpStatus.OK, response.getStatusCode());
+        return response.getBody();
+    }
+
+    @Test
+    public void test1IndexMatchesQuery() throws Exception {
+        List<String> gerNumbers = this.getGerNumbers();
+        ArrayList<String> requested = new ArrayList<>(gerNumbers);
+        requested.add("99999999");
+        requested.add("not a number");
+
+        // Before the first load, companies are looked up in the database
+        Assert.assertFalse(gerCompanyLookup.isIndexReady());
+        Map<Integer, String> expected = this.queryNames(gerNumbers);
+        Assert.assertEquals(gerNumbers.size(), expected.size());
+        Assert.assertEquals(expected, this.lookupNames(gerNumbers));
+        HashMap<String, String> databaseOutput = new HashMap<>();
+        for (String gerNumber : gerNumbers) {
+            databaseOutput.put(gerNumber, this.getCompany(gerNumber));
+        }
+
+        gerCompanyLookup.reloadIndex();
+        Assert.assertTrue(gerCompanyLookup.isIndexReady());
+        Assert.assertEquals(expected, this.lookupNames(requested));
+        for (String gerNumber : gerNumbers) {
+            Assert.assertEquals(
+                    objectMapper.readTree(databaseOutput.get(gerNumber)),
+                    objectMapper.readTree(this.getCompany(gerNumber))
+            );
+        }
+    }
+
+    @Test
+    public void test2IndexIsSwapped() throws Exception {
+        List<String> gerNumbers = this.getGerNumbers();
+        gerCompanyLookup.reloadIndex();
+        Map<Integer, CompanyEntity> loaded = this.getIndex().get();
+        Assert.assertEquals(gerNumbers.size(), loaded.size());
+
+        // The index doesn't see changes in the database until it is reloaded, and is then replaced whole
+        this.cleanupCompanyData(sessionManager);
+        Assert.assertEquals(gerNumbers.size(), this.lookupNames(gerNumbers).size());
+        Assert.assertTrue(this.queryNames(gerNumbers).isEmpty());
+
+        gerCompanyLookup.reloadIndex();
+        Assert.assertNotSame(loaded, this.getIndex().get());
+        Assert.assertEquals(gerNumbers.size(), loaded.size());
+        Assert.assertTrue(this.lookupNames(gerNumbers).isEmpty());
+
+        // Whoever still holds the previous index keeps a consistent view of it
+        for (String gerNumber : gerNumbers) {
+            Assert.assertNotNull(loaded.get(Integer.parseInt(gerNumber)));
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package dk.magenta.datafordeler.prisme;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+public class ParallelBulkWriterTest {
+
+    private static ParallelBulkWriter createWriter(int workerCount, int batchSize, int maxPendingBatches) {
+        PrismeMetrics metrics = new PrismeMetrics();
+        metrics.init();
+        return new ParallelBulkWriter(metrics, workerCount, batchSize, maxPendingBatches);
+    }
+
+    private static List<byte[]> serialize(List<Integer> batch) {
+        ArrayList<byte[]> rows = new ArrayList<>();
+        for (Integer item : batch) {
+            rows.add(ParallelBulkWriter.row(item.toString(), item.toString().getBytes(StandardCharsets.UTF_8)));
+        }
+        return rows;
+    }
+
+    private static String expected(IntStream items) {
+        return items.mapToObj(i -> "\"" + i + "\":" + i).collect(Collectors.joining(",\n", "{", "}"));
+    }
+
+    @Test
+    public void testPartition() {
+        List<Integer> items = Arrays.asList(1, 2, 3, 4, 5);
+        Assert.assertEquals(
+                Arrays.asList(Arrays.asList(1, 2), Arrays.asList(3, 4), Collections.singletonList(5)),
+                ParallelBulkWriter.partition(items, 2)
+        );
+        Assert.assertEquals(Collections.singletonList(items), ParallelBulkWriter.partition(items, 10));
+        Assert.assertTrue(ParallelBulkWriter.partition(Collections.emptyList(), 10).isEmpty());
+        // Sizes below 1 are taken as 1
+        Assert.assertEquals(5, ParallelBulkWriter.partition(items, 0).size());
+        Assert.assertEquals(5, ParallelBulkWriter.partition(items, -1).size());
+    }
+
+    @Test
+    public void testOrdering() throws Exception {
+        try (ParallelBulkWriter writer = createWriter(4, 3, 0)) {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            List<byte[]> rows = Arrays.asList(
+                    ParallelBulkWriter.row("-2", "-2".getBytes(StandardCharsets.UTF_8)),
+                    ParallelBulkWriter.row("-1", "-1".getBytes(StandardCharsets.UTF_8))
+            );
+            // Earlier batches take longer, so workers finish them out of order
+            writer.write(rows, IntStream.range(0, 100).boxed(), null, batch -> {
+                try {
+                    Thread.sleep(10 - (batch.get(0) / 3) % 10);
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                return serialize(batch);
+            }, output);
+            Assert.assertEquals(expected(IntStream.range(-2, 100)), output.toString(StandardCharsets.UTF_8.name()));
+
+            output.reset();
+            writer.write(Collections.emptyList(), Collections.<Integer>emptyList().stream(), null, ParallelBulkWriterTest::serialize, output);
+            Assert.assertEquals("{}", output.toString(StandardCharsets.UTF_8.name()));
+        }
+    }
+
+    @Test
+    public void testPendingBatchLimit() throws Exception {
+        int batchSize = 5;
+        int maxPendingBatches = 3;
+        try (ParallelBulkWriter writer = createWriter(4, batchSize, maxPendingBatches)) {
+
+            // Count the rows written, by recognizing the arrays handed out by the serializer
+            Set<byte[]> served = Collections.newSetFromMap(Collections.synchronizedMap(new IdentityHashMap<>()));
+            AtomicInteger written = new AtomicInteger();
+            ByteArrayOutputStream output = new ByteArrayOutputStream() {
+                @Override
+                public void write(byte[] b) throws IOException {
+                    super.write(b);
+                    if (served.remove(b)) {
+                        written.incrementAndGet();
+                    }
+                }
+            };
+
+            // The items fetched but not yet written must never exceed the pending batches
+            AtomicInteger fetched = new AtomicInteger();
+            AtomicInteger maxAhead = new AtomicInteger();
+            ConcurrentHashMap<Integer, Boolean> serialized = new ConcurrentHashMap<>();
+            writer.write(IntStream.range(0, 500).boxed(), item -> {
+                maxAhead.accumulateAndGet(fetched.incrementAndGet() - written.get(), Math::max);
+            }, batch -> {
+                try {
+                    Thread.sleep(5);
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                for (Integer item : batch) {
+                    serialized.put(item, true);
+                }
+                List<byte[]> rows = serialize(batch);
+                served.addAll(rows);
+                return rows;
+            }, output);
+
+            Assert.assertEquals(500, fetched.get());
+            Assert.assertEquals(500, written.get());
+            Assert.assertEquals(500, serialized.size());
+            Assert.assertTrue("Fetched " + maxAhead.get() + " items ahead", maxAhead.get() <= maxPendingBatches * batchSize);
+            Assert.assertTrue("Fetched " + maxAhead.get() + " items ahead", maxAhead.get() > batchSize);
+            Assert.assertEquals(expected(IntStream.range(0, 500)), output.toString(StandardCharsets.UTF_8.name()));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testSerializerFailure() throws Exception {
+        try (ParallelBulkWriter writer = createWriter(2, 10, 0)) {
+            writer.write(IntStream.range(0, 100).boxed(), null, batch -> {
+                if (batch.contains(42)) {
+                    throw new IOException("Failed");
+                }
+                return serialize(batch);
+            }, new ByteArrayOutputStream());
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package dk.magenta.datafordeler.prisme;
+
+import dk.magenta.datafordeler.core.exception.DataStreamException;
+import dk.magenta.datafordeler.cpr.data.person.PersonEntity;
+import dk.magenta.datafordeler.cpr.direct.CprDirectLookup;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.ArgumentMatchers;
+import org.mockito.Mockito;
+
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ParallelCprDirectLookupTest {
+
+    private CprDirectLookup cprDirectLookup = Mockito.mock(CprDirectLookup.class);
+
+    private ParallelCprDirectLookup createLookup(int maxInFlight, long timeoutMillis) {
+        // No rate limit, so only maxInFlight and the timeout decide when lookups run
+        return new ParallelCprDirectLookup(cprDirectLookup, maxInFlight, timeoutMillis, 0.0, 1);
+    }
+
+    @Test
+    public void testFoundAndMissing() throws Exception {
+        PersonEntity person = Mockito.mock(PersonEntity.class);
+        Mockito.doReturn(person).when(cprDirectLookup).getPerson(ArgumentMatchers.eq("0101011234"));
+        Mockito.doReturn(null).when(cprDirectLookup).getPerson(ArgumentMatchers.eq("0202021234"));
+        Mockito.doThrow(DataStreamException.class).when(cprDirectLookup).getPerson(ArgumentMatchers.eq("0303031234"));
+
+        ArrayList<PersonEntity> output = new ArrayList<>();
+        Set<String> found;
+        try (ParallelCprDirectLookup lookup = this.createLookup(4, 10000)) {
+            found = lookup.lookup(Arrays.asList("0101011234", "0202021234", "0303031234"), output::add);
+        }
+
+        Assert.assertEquals(Collections.singleton("0101011234"), found);
+        Assert.assertEquals(1, output.size());
+        Assert.assertSame(person, output.get(0));
+    }
+
+    @Test
+    public void testMaxInFlight() throws Exception {
+        AtomicInteger inFlight = new AtomicInteger();
+        AtomicInteger maxInFlight = new AtomicInteger();
+        Mockito.doAnswer(invocation -> {
+            maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+            Thread.sleep(50);
+            inFlight.decrementAndGet();
+            return Mockito.mock(PersonEntity.class);
+        }).when(cprDirectLookup).getPerson(ArgumentMatchers.anyString());
+
+        ArrayList<String> cprNumbers = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            cprNumbers.add(String.format("%010d", i));
+        }
+        ArrayList<PersonEntity> output = new ArrayList<>();
+        Set<String> found;
+        try (ParallelCprDirectLookup lookup = this.createLookup(2, 10000)) {
+            found = lookup.lookup(cprNumbers, output::add);
+        }
+
+        Assert.assertEquals(new HashSet<>(cprNumbers), found);
+        Assert.assertEquals(10, output.size());
+        Assert.assertTrue(maxInFlight.get() <= 2);
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        PersonEntity person = Mockito.mock(PersonEntity.class);
+        Mockito.doAnswer(invocation -> {
+            Thread.sleep(5000);
+            return Mockito.mock(PersonEntity.class);
+        }).when(cprDirectLookup).getPerson(ArgumentMatchers.eq("0101011234"));
+        Mockito.doReturn(person).when(cprDirectLookup).getPerson(ArgumentMatchers.eq("0202021234"));
+
+        ArrayList<PersonEntity> output = new ArrayList<>();
+        long start = System.currentTimeMillis();
+        Set<String> found;
+        try (ParallelCprDirectLookup lookup = this.createLookup(4, 200)) {
+            found = lookup.lookup(Arrays.asList("0101011234", "0202021234"), output::add);
+        }
+
+        Assert.assertTrue(System.currentTimeMillis() - start < 5000);
+        Assert.assertEquals(Collections.singleton("0202021234"), found);
+        Assert.assertEquals(Collections.singletonList(person), output);
+    }
+
+    @Test
+    public void testMaxInFlightAcrossRequests() throws Exception {
+        AtomicInteger inFlight = new AtomicInteger();
+        AtomicInteger maxInFlight = new AtomicInteger();
+        Mockito.doAnswer(invocation -> {
+            maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+            Thread.sleep(100);
+            inFlight.decrementAndGet();
+            return Mockito.mock(PersonEntity.class);
+        }).when(cprDirectLookup).getPerson(ArgumentMatchers.anyString());
+
+        // Each lookup takes half the timeout, and lookups wait for each other far longer than the timeout,
+        // which must not count against them
+        ExecutorService requests = Executors.newFixedThreadPool(3);
+        try (ParallelCprDirectLookup lookup = this.createLookup(2, 200)) {
+            ArrayList<Future<Set<String>>> results = new ArrayList<>();
+            ArrayList<Set<String>> expected = new ArrayList<>();
+            for (int request = 0; request < 3; request++) {
+                ArrayList<String> cprNumbers = new ArrayList<>();
+                for (int i = 0; i < 4; i++) {
+                    cprNumbers.add(String.format("%010d", request * 10 + i));
+                }
+                expected.add(new HashSet<>(cprNumbers));
+                results.add(requests.submit(() -> lookup.lookup(cprNumbers, personEntity -> {})));
+            }
+            for (int request = 0; request < 3; request++) {
+                Assert.assertEquals(expected.get(request), results.get(request).get());
+            }
+        } finally {
+            requests.shutdownNow();
+        }
+        Assert.assertTrue(maxInFlight.get() <= 2);
+    }
+}
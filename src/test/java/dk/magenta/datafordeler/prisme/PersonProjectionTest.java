@@ -0,0 +1,206 @@
+package dk.magenta.datafordeler.prisme;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import dk.magenta.datafordeler.core.Application;
+import dk.magenta.datafordeler.core.database.SessionManager;
+import dk.magenta.datafordeler.core.io.ImportMetadata;
+import dk.magenta.datafordeler.core.user.DafoUserManager;
+import dk.magenta.datafordeler.core.util.InputStreamReader;
+import dk.magenta.datafordeler.cpr.CprAreaRestrictionDefinition;
+import dk.magenta.datafordeler.cpr.CprPlugin;
+import dk.magenta.datafordeler.cpr.CprRolesDefinition;
+import dk.magenta.datafordeler.cpr.data.person.PersonEntityManager;
+import org.hibernate.Session;
+import org.hibernate.Transaction;
+import org.junit.*;
+import org.junit.runner.RunWith;
+import org.junit.runners.MethodSorters;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.SpyBean;
+import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.http.*;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.OffsetDateTime;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.mockito.Mockito.when;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(classes = Application.class)
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+@DirtiesContext(classMode = DirtiesContext.ClassMode.BEFORE_EACH_TEST_METHOD)
+public class PersonProjectionTest extends TestBase {
+
+    @Autowired
+    private SessionManager sessionManager;
+
+    @Autowired
+    private PersonEntityManager personEntityManager;
+
+    @Autowired
+    private TestRestTemplate restTemplate;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @SpyBean
+    private DafoUserManager dafoUserManager;
+
+    @Autowired
+    private CprPlugin cprPlugin;
+
+    @Autowired
+    private PersonProjection personProjection;
+
+    @Before
+    public void load() throws Exception {
+        this.loadAllGeoAdress(sessionManager);
+    }
+
+    @After
+    public void cleanup() {
+        ReflectionTestUtils.setField(personProjection, "persons", null);
+        this.cleanupPersonData(sessionManager);
+        this.cleanupGeoData(sessionManager);
+    }
+
+    public void loadManyPersons(int count, int start) throws Exception {
+        ImportMetadata importMetadata = new ImportMetadata();
+        Session session = sessionManager.getSessionFactory().openSession();
+        importMetadata.setSession(session);
+        Transaction transaction = session.beginTransaction();
+        importMetadata.setTransactionInProgress(true);
+        String testData = InputStreamReader.readInputStream(PersonProjectionTest.class.getResourceAsStream("/person.txt"));
+        String[] lines = testData.split("\n");
+        for (int i = start; i < count + start; i++) {
+            StringJoiner sb = new StringJoiner("\n");
+            String newCpr = String.format("%010d", i);
+            for (String line : lines) {
+                sb.add(line.substring(0, 3) + newCpr + line.substring(13));
+            }
+            ByteArrayInputStream bais = new ByteArrayInputStream(sb.toString().getBytes("UTF-8"));
+            personEntityManager.parseData(bais, importMetadata);
+            bais.close();
+        }
+        transaction.commit();
+        session.close();
+    }
+
+    private ResponseEntity<String> getPerson(String cprNumber) {
+        return restTemplate.exchange(
+                "/prisme/cpr/2/" + cprNumber,
+                HttpMethod.GET,
+                new HttpEntity<>("", new HttpHeaders()),
+                String.class
+        );
+    }
+
+    private TestUserDetails applyAccess() {
+        TestUserDetails testUserDetails = new TestUserDetails();
+        testUserDetails.giveAccess(CprRolesDefinition.READ_CPR_ROLE);
+        when(dafoUserManager.getFallbackUser()).thenReturn(testUserDetails);
+        return testUserDetails;
+    }
+
+    @Test
+    public void test1Build() throws Exception {
+        loadManyPersons(3, 0);
+        this.applyAccess();
+
+        // Not built yet, so the person is wrapped from the database
+        Assert.assertFalse(personProjection.isReady());
+        Assert.assertNull(personProjection.get("0000000001"));
+        ResponseEntity<String> response = this.getPerson("0000000001");
+        Assert.assertEquals(HttpStatus.OK, response.getStatusCode());
+
+        personProjection.refresh();
+        Assert.assertTrue(personProjection.isReady());
+        Assert.assertEquals(3, personProjection.size());
+        byte[] projected = personProjection.get("0000000001");
+        Assert.assertNotNull(projected);
+        Assert.assertEquals(objectMapper.readTree(response.getBody()), objectMapper.readTree(projected));
+    }
+
+    @Test
+    public void test2IncrementalRefresh() throws Exception {
+        loadManyPersons(3, 0);
+        personProjection.refresh();
+        Assert.assertEquals(3, personProjection.size());
+
+        loadManyPersons(2, 3);
+        // Pretend the previous refresh started after this import had begun, as when an import is still running
+        // while the projection queries. The persons are still caught, as refreshes look back past the last one
+        ReflectionTestUtils.setField(personProjection, "lastRefresh", OffsetDateTime.now().plusMinutes(4));
+        personProjection.refresh();
+        Assert.assertEquals(5, personProjection.size());
+        Assert.assertNotNull(personProjection.get("0000000004"));
+
+        // Imports before the overlap are not read again, which is what makes the refresh incremental
+        ReflectionTestUtils.setField(personProjection, "persons", new ConcurrentHashMap<String, byte[]>());
+        ReflectionTestUtils.setField(personProjection, "lastRefresh", OffsetDateTime.now().plusMinutes(10));
+        personProjection.refresh();
+        Assert.assertEquals(0, personProjection.size());
+    }
+
+    @Test
+    public void test3TakeRows() throws Exception {
+        loadManyPersons(3, 0);
+        personProjection.refresh();
+
+        Set<String> cprNumbers = new HashSet<>(Arrays.asList("0000000000", "0000000002", "9999999999"));
+        List<byte[]> rows = personProjection.takeRows(cprNumbers);
+        Assert.assertEquals(Collections.singleton("9999999999"), cprNumbers);
+        Assert.assertEquals(2, rows.size());
+        HashSet<String> keys = new HashSet<>();
+        for (byte[] row : rows) {
+            String json = "{" + new String(row, StandardCharsets.UTF_8) + "}";
+            keys.addAll(objectMapper.readTree(json).findValuesAsText("cprNummer"));
+        }
+        Assert.assertEquals(new HashSet<>(Arrays.asList("0000000000", "0000000002")), keys);
+    }
+
+    @Test
+    public void test4Fallback() throws Exception {
+        loadManyPersons(1, 0);
+        TestUserDetails testUserDetails = this.applyAccess();
+
+        // Plant an output that can only have come from the projection
+        ConcurrentHashMap<String, byte[]> persons = new ConcurrentHashMap<>();
+        persons.put("0000000000", "{\"projected\":true}".getBytes(StandardCharsets.UTF_8));
+        ReflectionTestUtils.setField(personProjection, "persons", persons);
+        ResponseEntity<String> response = this.getPerson("0000000000");
+        Assert.assertTrue(objectMapper.readTree(response.getBody()).has("projected"));
+
+        // Users with area restrictions are always served from the database, where the restrictions apply
+        testUserDetails.giveAccess(
+                cprPlugin.getAreaRestrictionDefinition().getAreaRestrictionTypeByName(
+                        CprAreaRestrictionDefinition.RESTRICTIONTYPE_KOMMUNEKODER
+                ).getRestriction(
+                        CprAreaRestrictionDefinition.RESTRICTION_KOMMUNE_SERMERSOOQ
+                )
+        );
+        when(dafoUserManager.getFallbackUser()).thenReturn(testUserDetails);
+        response = this.getPerson("0000000000");
+        Assert.assertEquals(HttpStatus.OK, response.getStatusCode());
+        Assert.assertFalse(objectMapper.readTree(response.getBody()).has("projected"));
+        Assert.assertEquals("0000000000", objectMapper.readTree(response.getBody()).get("cprNummer").asText());
+
+        // Before the projection is ready, persons are served from the database
+        this.applyAccess();
+        ReflectionTestUtils.setField(personProjection, "persons", null);
+        Assert.assertFalse(personProjection.isReady());
+        response = this.getPerson("0000000000");
+        Assert.assertEquals(HttpStatus.OK, response.getStatusCode());
+        Assert.assertFalse(objectMapper.readTree(response.getBody()).has("projected"));
+        Assert.assertEquals("0000000000", objectMapper.readTree(response.getBody()).get("cprNummer").asText());
+    }
+}
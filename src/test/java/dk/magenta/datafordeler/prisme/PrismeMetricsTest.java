@@ -0,0 +1,61 @@
+package dk.magenta.datafordeler.prisme;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+public class PrismeMetricsTest {
+
+    private PrismeMetrics metrics;
+
+    @Before
+    public void setUp() {
+        this.metrics = new PrismeMetrics();
+        this.metrics.init();
+    }
+
+    @Test
+    public void testInstrumentBulk() throws Exception {
+        MeterRegistry registry = metrics.getMeterRegistry();
+        byte[] content = "{\"a\":1}".getBytes(StandardCharsets.UTF_8);
+        StreamingResponseBody body = metrics.instrumentBulk("test", outputStream -> {
+            Assert.assertEquals(1.0, registry.get("prisme.bulk.active").gauge().value(), 0);
+            outputStream.write(content);
+            metrics.recordsEmitted(1);
+        });
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        body.writeTo(output);
+
+        Assert.assertArrayEquals(content, output.toByteArray());
+        Assert.assertEquals(content.length, registry.get("prisme.bulk.bytes").tag("endpoint", "test").counter().count(), 0);
+        Assert.assertEquals(1, registry.get("prisme.bulk.records").tag("endpoint", "test").counter().count(), 0);
+        Assert.assertEquals(1, registry.get("prisme.bulk.stream").tag("endpoint", "test").timer().count());
+        Assert.assertEquals(0.0, registry.get("prisme.bulk.active").gauge().value(), 0);
+
+        // Records written outside a bulk response aren't attributed to any endpoint
+        metrics.recordsEmitted(1);
+        Assert.assertEquals(1, registry.get("prisme.bulk.records").tag("endpoint", "test").counter().count(), 0);
+    }
+
+    @Test
+    public void testMetersAreReused() throws Exception {
+        Assert.assertSame(metrics.stage(PrismeMetrics.STAGE_FETCH), metrics.stage(PrismeMetrics.STAGE_FETCH));
+        Assert.assertNotSame(metrics.stage(PrismeMetrics.STAGE_FETCH), metrics.stage(PrismeMetrics.STAGE_WRAP));
+
+        metrics.geoCacheLookup(true);
+        metrics.geoCacheLookup(true);
+        metrics.geoCacheLookup(false);
+        MeterRegistry registry = metrics.getMeterRegistry();
+        Assert.assertEquals(2, registry.get("prisme.geo.cache").tag("result", "hit").counter().count(), 0);
+        Assert.assertEquals(1, registry.get("prisme.geo.cache").tag("result", "miss").counter().count(), 0);
+
+        metrics.directLookupFallbacks("missing", 3);
+        metrics.directLookupFallbacks("missing", 2);
+        Assert.assertEquals(5, registry.get("prisme.cpr.direct.fallbacks").tag("reason", "missing").counter().count(), 0);
+    }
+}
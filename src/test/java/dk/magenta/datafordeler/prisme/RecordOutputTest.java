@@ -0,0 +1,69 @@
+package dk.magenta.datafordeler.prisme;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.function.Consumer;
+
+public class RecordOutputTest {
+
+    private ObjectMapper objectMapper = new ObjectMapper();
+
+    private void writeFields(RecordOutput output) {
+        output.put(FieldNames.CPR_NUMMER, "0101011234");
+        output.put(FieldNames.FORNAVN, (String) null);
+        output.put(FieldNames.ADRESSEBESKYTTELSE, false);
+        output.put(FieldNames.MYNDIGHEDSKODE, 956);
+        output.put(FieldNames.POSTBOKS, (Integer) null);
+        output.put(FieldNames.CVR_NUMMER, 4000000000L);
+        output.put(FieldNames.AEGTEFAELLE_CPR_NUMMER, "0202021234");
+        output.set(FieldNames.DELTAGERE, objectMapper.createArrayNode().add("deltager"));
+    }
+
+    private JsonNode writeTree(boolean skipNulls, Consumer<RecordOutput> writer) {
+        TreeRecordOutput output = new TreeRecordOutput(objectMapper.createObjectNode(), skipNulls);
+        writer.accept(output);
+        return output.getNode();
+    }
+
+    private JsonNode writeGenerated(boolean skipNulls, Consumer<RecordOutput> writer) throws IOException {
+        StringWriter stringWriter = new StringWriter();
+        try (JsonGenerator generator = objectMapper.getFactory().createGenerator(stringWriter)) {
+            generator.writeStartObject();
+            writer.accept(new GeneratorRecordOutput(generator, skipNulls));
+            generator.writeEndObject();
+        }
+        return objectMapper.readTree(stringWriter.toString());
+    }
+
+    @Test
+    public void testSkipNulls() throws IOException {
+        JsonNode tree = this.writeTree(true, this::writeFields);
+        Assert.assertEquals(tree, this.writeGenerated(true, this::writeFields));
+        Assert.assertNull(tree.get("fornavn"));
+        Assert.assertNull(tree.get("postboks"));
+        Assert.assertEquals("0202021234", tree.get("ægtefælleCprNummer").textValue());
+        Assert.assertEquals(6, tree.size());
+    }
+
+    @Test
+    public void testWriteNulls() throws IOException {
+        JsonNode tree = this.writeTree(false, this::writeFields);
+        Assert.assertEquals(tree, this.writeGenerated(false, this::writeFields));
+        Assert.assertTrue(tree.get("fornavn").isNull());
+        Assert.assertTrue(tree.get("postboks").isNull());
+        Assert.assertEquals(8, tree.size());
+    }
+
+    @Test
+    public void testFieldOrder() throws IOException {
+        ObjectNode tree = (ObjectNode) this.writeTree(false, this::writeFields);
+        Assert.assertEquals(objectMapper.writeValueAsString(tree), objectMapper.writeValueAsString(this.writeGenerated(false, this::writeFields)));
+    }
+}
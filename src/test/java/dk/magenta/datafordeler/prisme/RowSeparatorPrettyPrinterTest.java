@@ -0,0 +1,37 @@
+package dk.magenta.datafordeler.prisme;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+public class RowSeparatorPrettyPrinterTest {
+
+    @Test
+    public void testRowsAreSeparatedLikeTheBulkWriter() throws Exception {
+        ObjectMapper objectMapper = new ObjectMapper();
+        ObjectNode row = objectMapper.createObjectNode();
+        row.put("a", 1);
+        row.putArray("b").add(2).add(3);
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (JsonGenerator generator = objectMapper.getFactory().createGenerator(output)) {
+            generator.setPrettyPrinter(new RowSeparatorPrettyPrinter());
+            generator.writeStartObject();
+            generator.writeFieldName("1");
+            objectMapper.writeTree(generator, row);
+            generator.writeFieldName("2");
+            generator.writeRawValue("{\"a\":4}");
+            generator.writeEndObject();
+        }
+        // Nested objects stay compact, as the rows written by ParallelBulkWriter
+        Assert.assertEquals(
+                "{\"1\":{\"a\":1,\"b\":[2,3]},\n\"2\":{\"a\":4}}",
+                output.toString(StandardCharsets.UTF_8.name())
+        );
+    }
+}
@@ -1,6 +1,9 @@
 package dk.magenta.datafordeler.prisme;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import dk.magenta.datafordeler.core.Application;
 import dk.magenta.datafordeler.core.database.Entity;
 import dk.magenta.datafordeler.core.database.QueryManager;
@@ -202,6 +205,37 @@ public class SameAddressTest extends TestBase {
 
 
 
+    @Test
+    public void test4SameAddressBulk() throws Exception {
+        loadPerson();
+        try {
+            TestUserDetails testUserDetails = new TestUserDetails();
+            testUserDetails.giveAccess(CprRolesDefinition.READ_CPR_ROLE);
+            this.applyAccess(testUserDetails);
+
+            ObjectNode body = objectMapper.createObjectNode();
+            ArrayNode cprList = objectMapper.createArrayNode();
+            cprList.add("0101001234");
+            cprList.add("0101001242");
+            cprList.add("0000000001");
+            body.set("cprNumber", cprList);
+            ResponseEntity<String> response = restTemplate.exchange(
+                    "/prisme/sameaddress/1/",
+                    HttpMethod.POST,
+                    new HttpEntity<>(body.toString(), new HttpHeaders()),
+                    String.class
+            );
+            Assert.assertEquals(HttpStatus.OK, response.getStatusCode());
+            JsonNode households = objectMapper.readTree(response.getBody());
+            Assert.assertEquals(2, households.size());
+            Assert.assertEquals("0101001234", households.get("0101001234").get("cprNumber").asText());
+            Assert.assertEquals(16, households.get("0101001234").get("sameAddressCprs").size());
+            Assert.assertEquals(households.get("0101001234").get("sameAddressCprs"), households.get("0101001242").get("sameAddressCprs"));
+        } finally {
+            cleanup();
+        }
+    }
+
     private void applyAccess(TestUserDetails testUserDetails) {
         when(dafoUserManager.getFallbackUser()).thenReturn(testUserDetails);
     }
@@ -56,6 +56,9 @@ public abstract class TestBase {
     @Autowired
     private UnitAddressEntityManager unitAddressEntityManager;
 
+    @Autowired
+    private GeoLookupCache geoLookupCache;
+
 
     protected void loadAllGeoAdress(SessionManager sessionManager) throws IOException {
         this.loadGeoData(sessionManager, localityEntityManager, "/locality.json");
@@ -65,6 +68,7 @@ public abstract class TestBase {
         this.loadGeoData(sessionManager, postcodeEntityManager, "/post.json");
         this.loadGeoData(sessionManager, buildingEntityManager, "/building.json");
         this.loadGeoData(sessionManager, accessAddressEntityManager, "/access.json");
+        geoLookupCache.clear();
     }
 
 
@@ -183,6 +187,7 @@ public abstract class TestBase {
 
     protected void cleanupGeoData(SessionManager sessionManager) {
         //TODO: might be needed for some cleanup between tests
+        geoLookupCache.clear();
 
     }
 
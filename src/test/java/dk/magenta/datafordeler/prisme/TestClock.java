@@ -0,0 +1,34 @@
+package dk.magenta.datafordeler.prisme;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+
+/**
+ * Clock that stands still until it is advanced, for testing expiry without waiting
+ */
+public class TestClock extends Clock {
+
+    private volatile Instant instant = Instant.parse("2020-01-01T00:00:00Z");
+
+    public void advance(Duration duration) {
+        this.instant = this.instant.plus(duration);
+    }
+
+    @Override
+    public Instant instant() {
+        return this.instant;
+    }
+
+    @Override
+    public ZoneId getZone() {
+        return ZoneOffset.UTC;
+    }
+
+    @Override
+    public Clock withZone(ZoneId zone) {
+        return this;
+    }
+}
@@ -0,0 +1,58 @@
+package dk.magenta.datafordeler.prisme;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+public class TokenBucketTest {
+
+    @Test
+    public void testBurstAndRate() throws Exception {
+        TokenBucket bucket = new TokenBucket(20, 5);
+        Assert.assertFalse(bucket.isUnlimited());
+
+        // A full bucket lets a burst through at once
+        long start = System.nanoTime();
+        for (int i = 0; i < 5; i++) {
+            bucket.acquire();
+        }
+        Assert.assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 100);
+
+        // After that, tokens come at 20 per second, so 10 more take at least half a second
+        start = System.nanoTime();
+        for (int i = 0; i < 10; i++) {
+            bucket.acquire();
+        }
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        Assert.assertTrue("Took " + elapsed + " ms", elapsed >= 450);
+        Assert.assertTrue("Took " + elapsed + " ms", elapsed < 2000);
+    }
+
+    @Test
+    public void testRefillIsCappedAtCapacity() throws Exception {
+        TokenBucket bucket = new TokenBucket(100, 2);
+        bucket.acquire();
+        bucket.acquire();
+        // Long enough to refill far more than the capacity
+        Thread.sleep(200);
+
+        long start = System.nanoTime();
+        bucket.acquire();
+        bucket.acquire();
+        Assert.assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 5);
+        bucket.acquire();
+        Assert.assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 5);
+    }
+
+    @Test
+    public void testUnlimited() throws Exception {
+        TokenBucket bucket = new TokenBucket(0, 1);
+        Assert.assertTrue(bucket.isUnlimited());
+        long start = System.nanoTime();
+        for (int i = 0; i < 10000; i++) {
+            bucket.acquire();
+        }
+        Assert.assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 1000);
+    }
+}